@@ -0,0 +1,111 @@
+package org.acme.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.MongoClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.acme.gridfs.GridFSChunkReader;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.gridfs.GridFSStreamingUploader;
+import org.acme.metrics.ArchiveMetrics;
+import org.acme.query.FileListing;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+/**
+ * Wires the service classes under test by hand so the benchmarks
+ * measure them without starting Quarkus
+ * <p>
+ * The beans use package-private field injection, so the fields are set
+ * reflectively by name. Keep this in step when their dependencies change.
+ */
+public final class ArchiveFixture {
+
+    public static final String DATABASE = "bench";
+
+    public final GridFSRepository repository = new GridFSRepository();
+    public final ArchiveMetrics metrics = new ArchiveMetrics();
+    public final GridFSChunkReader chunkReader = new GridFSChunkReader();
+    public final GridFSStreamingUploader uploader = new GridFSStreamingUploader();
+    public final FileListing listing = new FileListing();
+
+    public ArchiveFixture(MongoClient client, int chunkSize) {
+        this(client, chunkSize, 1);
+    }
+
+    /**
+     * @param readAhead Chunk fetches kept in flight while downloading
+     */
+    public ArchiveFixture(MongoClient client, int chunkSize, int readAhead) {
+        set(repository, "client", client);
+        set(repository, "databaseName", DATABASE);
+        set(repository, "bucketName", "fs");
+        set(repository, "chunkSize", chunkSize);
+
+        set(metrics, "registry", new SimpleMeterRegistry());
+        call(metrics, "init");
+
+        set(chunkReader, "repository", repository);
+        set(chunkReader, "metrics", metrics);
+        set(chunkReader, "readAheadWindow", readAhead);
+        set(chunkReader, "readAheadThreads", 16);
+        call(chunkReader, "init");
+
+        set(uploader, "repository", repository);
+        set(uploader, "metrics", metrics);
+
+        set(listing, "repository", repository);
+        set(listing, "objectMapper", new ObjectMapper());
+        set(listing, "metrics", metrics);
+    }
+
+    /**
+     * Removes everything the benchmark stored
+     */
+    public void drop() {
+        repository.database().drop();
+    }
+
+    /**
+     * Test data that is roughly half compressible, like the logs and dumps we archive
+     */
+    public static byte[] content(int size, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[size];
+        byte[] text = "2023-03-01 12:00:00 INFO snapshot archived ticket=INC0001234 ".getBytes();
+        for (int offset = 0; offset < size; offset += 1024) {
+            int len = Math.min(1024, size - offset);
+            if (random.nextBoolean()) {
+                byte[] block = new byte[len];
+                random.nextBytes(block);
+                System.arraycopy(block, 0, data, offset, len);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    data[offset + i] = text[i % text.length];
+                }
+            }
+        }
+        return data;
+    }
+
+    private static void set(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't set " + target.getClass().getSimpleName() + "." + name, e);
+        }
+    }
+
+    private static void call(Object target, String name) {
+        try {
+            Method method = target.getClass().getDeclaredMethod(name);
+            method.setAccessible(true);
+            method.invoke(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't call " + target.getClass().getSimpleName() + "." + name, e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.acme.bench;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.bson.Document;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * The Mongo the benchmarks run against
+ * <ul>
+ *     <li>memory - an in-process stand-in speaking the wire protocol on loopback, nothing to install</li>
+ *     <li>mongod - a real server, either the one at -Dbench.mongo.uri or a throwaway
+ *     mongod started from -Dbench.mongod (default: mongod on the PATH)</li>
+ * </ul>
+ * The stand-in has none of the storage engine costs of a real server, so its numbers
+ * show the overhead of our own code rather than what production will see.
+ */
+public final class BenchmarkBackend implements Closeable {
+
+    private final MongoClient client;
+    private final MongoServer server;
+    private final Process mongod;
+    private final Path dbPath;
+
+    private BenchmarkBackend(MongoClient client, MongoServer server, Process mongod, Path dbPath) {
+        this.client = client;
+        this.server = server;
+        this.mongod = mongod;
+        this.dbPath = dbPath;
+    }
+
+    public static BenchmarkBackend start(String kind) throws IOException {
+        switch (kind) {
+            case "memory":
+                MongoServer server = new MongoServer(new MemoryBackend());
+                InetSocketAddress address = server.bind();
+                return new BenchmarkBackend(MongoClients.create("mongodb://127.0.0.1:" + address.getPort()), server, null, null);
+            case "mongod":
+                String uri = System.getProperty("bench.mongo.uri");
+                if (uri != null) {
+                    return new BenchmarkBackend(MongoClients.create(uri), null, null, null);
+                }
+                return startMongod(System.getProperty("bench.mongod", "mongod"));
+            default:
+                throw new IllegalArgumentException("Unknown backend: " + kind);
+        }
+    }
+
+    private static BenchmarkBackend startMongod(String executable) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        Path dbPath = Files.createTempDirectory("bench-mongod");
+        Process process;
+        try {
+            process = new ProcessBuilder(executable,
+                    "--dbpath", dbPath.toString(),
+                    "--port", String.valueOf(port),
+                    "--bind_ip", "127.0.0.1",
+                    "--quiet")
+                    .redirectErrorStream(true)
+                    .redirectOutput(dbPath.resolve("mongod.log").toFile())
+                    .start();
+        } catch (IOException e) {
+            deleteRecursively(dbPath);
+            throw new IllegalStateException("No mongod available, set -Dbench.mongod or -Dbench.mongo.uri", e);
+        }
+
+        MongoClient client = MongoClients.create("mongodb://127.0.0.1:" + port);
+        BenchmarkBackend backend = new BenchmarkBackend(client, null, process, dbPath);
+
+        // Wait for it to accept connections
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try {
+                client.getDatabase("admin").runCommand(new Document("ping", 1));
+                return backend;
+            } catch (RuntimeException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    backend.close();
+                    throw new IllegalStateException("mongod did not start, see " + dbPath.resolve("mongod.log"), e);
+                }
+            }
+        }
+    }
+
+    public MongoClient client() {
+        return client;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+        if (server != null) {
+            server.shutdownNow();
+        }
+        if (mongod != null) {
+            mongod.destroy();
+            try {
+                mongod.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            deleteRecursively(dbPath);
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
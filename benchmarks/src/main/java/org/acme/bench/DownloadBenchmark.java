@@ -0,0 +1,97 @@
+package org.acme.bench;
+
+import org.acme.gridfs.GridFSStreamingUploader;
+import org.acme.storage.StorageCodec;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * Reading files back out of the GridFS chunks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({"memory"})
+    String backend;
+
+    @Param({"65536", "1048576", "16777216"})
+    int size;
+
+    @Param({"1048576"})
+    int chunkSize;
+
+    @Param({"1", "4"})
+    int readAhead;
+
+    private BenchmarkBackend mongo;
+    private ArchiveFixture fixture;
+    private Document file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mongo = BenchmarkBackend.start(backend);
+        fixture = new ArchiveFixture(mongo.client(), chunkSize, readAhead);
+        fixture.drop();
+
+        GridFSStreamingUploader.Result result = fixture.uploader.upload(
+                new ByteArrayInputStream(ArchiveFixture.content(size, 1)), "download.bin", new HashMap<>(), StorageCodec.NONE);
+        file = fixture.repository.files().find(eq("_id", result.getId())).first();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.drop();
+        mongo.close();
+    }
+
+    @Benchmark
+    public void copyAll() throws IOException {
+        fixture.chunkReader.copyAll(file, OutputStream.nullOutputStream());
+    }
+
+    /**
+     * 64K from the middle of the file, e.g. a resumed or seeking client
+     */
+    @Benchmark
+    public void copyRange() throws IOException {
+        long start = Math.max(0, size / 2 - 32 * 1024);
+        long end = Math.min(size - 1, start + 64 * 1024 - 1);
+        fixture.chunkReader.copyRange(file, start, end, OutputStream.nullOutputStream());
+    }
+
+    /**
+     * The pull based path used by decoding and bundles
+     */
+    @Benchmark
+    public long openStream() throws IOException {
+        try (InputStream in = fixture.chunkReader.openStream(file)) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.acme.bench;
+
+import org.acme.gridfs.GridFSRepository;
+import org.acme.query.FileListing;
+import org.acme.query.FileQueryFilters;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing queries over a collection of file records
+ * <p>
+ * Only the files documents are seeded, listing never touches the chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ListingBenchmark {
+
+    @Param({"memory"})
+    String backend;
+
+    @Param({"10000"})
+    int files;
+
+    @Param({"100"})
+    int pageSize;
+
+    private BenchmarkBackend mongo;
+    private ArchiveFixture fixture;
+    private String deepCursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mongo = BenchmarkBackend.start(backend);
+        fixture = new ArchiveFixture(mongo.client(), 1024 * 1024);
+        fixture.drop();
+
+        long now = System.currentTimeMillis();
+        List<Document> batch = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            batch.add(new Document("_id", new ObjectId())
+                    .append(GridFSRepository.FILENAME, "file-" + i + ".log")
+                    .append(GridFSRepository.LENGTH, 1024L * (i % 100 + 1))
+                    .append(GridFSRepository.CHUNK_SIZE, 1024 * 1024)
+                    .append(GridFSRepository.UPLOAD_DATE, new Date(now - i * 60_000L))
+                    .append(GridFSRepository.METADATA, new Document(GridFSRepository.TICKET_NUMBER, "INC" + (i % 50))
+                            .append(GridFSRepository.HASH, Integer.toHexString(i))));
+            if (batch.size() == 1000) {
+                fixture.repository.files().insertMany(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            fixture.repository.files().insertMany(batch);
+        }
+
+        // Cursor for the page half way through the collection
+        String cursor = null;
+        for (int i = 0; i < files / 2 / pageSize; i++) {
+            cursor = fixture.listing.page(new FileQueryFilters(), "DESC", cursor, pageSize).getNextCursor();
+        }
+        deepCursor = cursor;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.drop();
+        mongo.close();
+    }
+
+    @Benchmark
+    public FileListing.Page firstPage() {
+        return fixture.listing.page(new FileQueryFilters(), "DESC", null, pageSize);
+    }
+
+    @Benchmark
+    public FileListing.Page deepPage() {
+        return fixture.listing.page(new FileQueryFilters(), "DESC", deepCursor, pageSize);
+    }
+
+    @Benchmark
+    public FileListing.Page byTicket() {
+        return fixture.listing.page(new FileQueryFilters().ticketNumber("INC7"), "DESC", null, pageSize);
+    }
+
+    @Benchmark
+    public void streamAll() throws IOException {
+        fixture.listing.stream(fixture.listing.streamQuery(new FileQueryFilters(), "DESC", null, null), OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,351 @@
+package org.acme.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives a running instance of the service over HTTP and reports
+ * throughput and latency percentiles per operation
+ * <p>
+ * Start the service first (e.g. java -jar target/quarkus-app/quarkus-run.jar), then
+ * <pre>
+ * java -cp target/benchmarks.jar org.acme.bench.LoadTest --url=http://localhost:8080 \
+ *     --concurrency=16 --duration=60 --sizes=64K:60,1M:30,16M:10 \
+ *     --ops=download:70,upload:20,list:10 --out=results.json --compare=previous.json
+ * </pre>
+ * Every upload gets a unique prefix so deduplication doesn't turn it into a metadata write.
+ * The --out file can be passed as --compare on a later run to print the difference between builds.
+ */
+public final class LoadTest {
+
+    private static final Pattern SIZE = Pattern.compile("(\\d+)([KMG]?)");
+    private static final Pattern ID = Pattern.compile("\"id\"\\s*:\\s*\"([0-9a-f]{24})\"");
+    private static final String TICKET = "LOADTEST";
+
+    private final HttpClient client;
+    private final String url;
+    private final Map<Integer, byte[]> contents = new HashMap<>();
+    private final List<Weighted<Integer>> sizes;
+    private final List<Weighted<String>> ops;
+    private final List<String> ids = new CopyOnWriteArrayList<>();
+    private final Map<String, Latencies> results = new ConcurrentHashMap<>();
+
+    private LoadTest(String url, List<Weighted<Integer>> sizes, List<Weighted<String>> ops) {
+        this.client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        this.url = url.replaceAll("/$", "");
+        this.sizes = sizes;
+        this.ops = ops;
+        for (Weighted<Integer> size : sizes) {
+            contents.put(size.value, ArchiveFixture.content(size.value, size.value));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(parts[0], parts.length > 1 ? parts[1] : "true");
+        }
+
+        LoadTest test = new LoadTest(
+                options.getOrDefault("url", "http://localhost:8080"),
+                parseWeights(options.getOrDefault("sizes", "64K:60,1M:30,16M:10"), LoadTest::parseSize),
+                parseWeights(options.getOrDefault("ops", "download:70,upload:20,list:10"), op -> op));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "60"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        int seed = Integer.parseInt(options.getOrDefault("seed", "20"));
+
+        System.out.printf("Seeding %d files per size%n", seed);
+        for (Weighted<Integer> size : test.sizes) {
+            for (int i = 0; i < seed; i++) {
+                test.upload(size.value, null);
+            }
+        }
+
+        if (warmup > 0) {
+            System.out.printf("Warming up for %ds%n", warmup);
+            test.run(concurrency, warmup);
+            test.results.clear();
+        }
+
+        System.out.printf("Running for %ds with %d clients%n", duration, concurrency);
+        test.run(concurrency, duration);
+
+        Map<String, Map<String, Double>> summary = test.summary(duration);
+        print(summary);
+
+        if (options.containsKey("out")) {
+            Files.writeString(Path.of(options.get("out")), toJson(summary));
+        }
+        if (options.containsKey("compare")) {
+            compare(parseJson(Files.readString(Path.of(options.get("compare")))), summary);
+        }
+    }
+
+    private void run(int concurrency, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    String op = pick(ops);
+                    try {
+                        switch (op) {
+                            case "upload":
+                                upload(pick(sizes), op);
+                                break;
+                            case "download":
+                                download(op);
+                                break;
+                            case "list":
+                                list(op);
+                                break;
+                            default:
+                                throw new IllegalArgumentException("Unknown operation: " + op);
+                        }
+                    } catch (Exception e) {
+                        results.computeIfAbsent(op, k -> new Latencies()).error();
+                    }
+                }
+            }, "load-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private void upload(int size, String op) throws IOException, InterruptedException {
+        byte[] prefix = new byte[16];
+        ThreadLocalRandom.current().nextBytes(prefix);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/archive/stream?ticketNumber=" + TICKET
+                        + "&filename=load-" + size + ".bin"))
+                .header("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.concat(
+                        HttpRequest.BodyPublishers.ofByteArray(prefix),
+                        HttpRequest.BodyPublishers.ofByteArray(contents.get(size))))
+                .build();
+
+        long start = System.nanoTime();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        long elapsed = System.nanoTime() - start;
+        check(response);
+
+        Matcher matcher = ID.matcher(response.body());
+        if (matcher.find()) {
+            ids.add(matcher.group(1));
+        }
+        if (op != null) {
+            results.computeIfAbsent(op, k -> new Latencies()).record(elapsed, size + prefix.length);
+        }
+    }
+
+    private void download(String op) throws IOException, InterruptedException {
+        String id = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/archive/download/" + id)).GET().build();
+
+        long start = System.nanoTime();
+        HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        long firstByte = System.nanoTime() - start;
+        long bytes;
+        try (InputStream in = response.body()) {
+            bytes = in.transferTo(OutputStream.nullOutputStream());
+        }
+        long elapsed = System.nanoTime() - start;
+        check(response);
+
+        results.computeIfAbsent(op, k -> new Latencies()).record(elapsed, bytes);
+        results.computeIfAbsent(op + ".ttfb", k -> new Latencies()).record(firstByte, 0);
+    }
+
+    private void list(String op) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/archive/page?pageSize=100&ticketNumber=" + TICKET))
+                .GET().build();
+
+        long start = System.nanoTime();
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        long elapsed = System.nanoTime() - start;
+        check(response);
+
+        results.computeIfAbsent(op, k -> new Latencies()).record(elapsed, response.body().length);
+    }
+
+    private static void check(HttpResponse<?> response) throws IOException {
+        if (response.statusCode() >= 400) {
+            throw new IOException("HTTP " + response.statusCode() + " from " + response.uri());
+        }
+    }
+
+    private Map<String, Map<String, Double>> summary(int seconds) {
+        Map<String, Map<String, Double>> summary = new LinkedHashMap<>();
+        results.keySet().stream().sorted().forEach(op -> summary.put(op, results.get(op).summary(seconds)));
+        return summary;
+    }
+
+    private static void print(Map<String, Map<String, Double>> summary) {
+        System.out.printf("%-15s %8s %7s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "errors", "ops/s", "MB/s", "p50 ms", "p99 ms", "max ms");
+        summary.forEach((op, s) -> System.out.printf("%-15s %8.0f %7.0f %10.1f %10.1f %10.2f %10.2f %10.2f%n",
+                op, s.get("count"), s.get("errors"), s.get("opsPerSec"), s.get("mbPerSec"),
+                s.get("p50Ms"), s.get("p99Ms"), s.get("maxMs")));
+    }
+
+    private static void compare(Map<String, Map<String, Double>> before, Map<String, Map<String, Double>> after) {
+        System.out.println();
+        System.out.printf("%-15s %12s %12s %12s%n", "vs previous", "ops/s", "p50", "p99");
+        after.forEach((op, s) -> {
+            Map<String, Double> old = before.get(op);
+            if (old != null) {
+                System.out.printf("%-15s %12s %12s %12s%n", op,
+                        change(old.get("opsPerSec"), s.get("opsPerSec")),
+                        change(old.get("p50Ms"), s.get("p50Ms")),
+                        change(old.get("p99Ms"), s.get("p99Ms")));
+            }
+        });
+    }
+
+    private static String change(Double before, Double after) {
+        if (before == null || after == null || before == 0) {
+            return "-";
+        }
+        return String.format("%+.1f%%", (after - before) / before * 100);
+    }
+
+    /**
+     * Flat JSON of op -> metric -> number, small enough not to need a JSON library
+     */
+    private static String toJson(Map<String, Map<String, Double>> summary) {
+        StringBuilder json = new StringBuilder("{\n");
+        int i = 0;
+        for (Map.Entry<String, Map<String, Double>> op : summary.entrySet()) {
+            json.append("  \"").append(op.getKey()).append("\": {");
+            int j = 0;
+            for (Map.Entry<String, Double> metric : op.getValue().entrySet()) {
+                json.append(j++ > 0 ? ", " : "").append('"').append(metric.getKey()).append("\": ").append(metric.getValue());
+            }
+            json.append(i++ < summary.size() - 1 ? "},\n" : "}\n");
+        }
+        return json.append("}\n").toString();
+    }
+
+    private static Map<String, Map<String, Double>> parseJson(String json) {
+        Map<String, Map<String, Double>> summary = new LinkedHashMap<>();
+        Matcher op = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\\{([^}]*)}").matcher(json);
+        while (op.find()) {
+            Map<String, Double> metrics = new LinkedHashMap<>();
+            Matcher metric = Pattern.compile("\"([^\"]+)\"\\s*:\\s*([-0-9.Ee]+|NaN)").matcher(op.group(2));
+            while (metric.find()) {
+                metrics.put(metric.group(1), Double.valueOf(metric.group(2)));
+            }
+            summary.put(op.group(1), metrics);
+        }
+        return summary;
+    }
+
+    private static int parseSize(String size) {
+        Matcher matcher = SIZE.matcher(size.toUpperCase());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        int shift = "KMG".indexOf(matcher.group(2)) + 1;
+        return Math.toIntExact(Long.parseLong(matcher.group(1)) << (10 * (matcher.group(2).isEmpty() ? 0 : shift)));
+    }
+
+    private static <T> List<Weighted<T>> parseWeights(String spec, Function<String, T> parser) {
+        List<Weighted<T>> weights = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split(":");
+            weights.add(new Weighted<>(parser.apply(pair[0]), pair.length > 1 ? Integer.parseInt(pair[1]) : 1));
+        }
+        return weights;
+    }
+
+    private static <T> T pick(List<Weighted<T>> weights) {
+        int total = weights.stream().mapToInt(w -> w.weight).sum();
+        int roll = ThreadLocalRandom.current().nextInt(total);
+        for (Weighted<T> weighted : weights) {
+            roll -= weighted.weight;
+            if (roll < 0) {
+                return weighted.value;
+            }
+        }
+        return weights.get(weights.size() - 1).value;
+    }
+
+    private static final class Weighted<T> {
+        final T value;
+        final int weight;
+
+        Weighted(T value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Every sample is kept, a run produces at most a few million of them
+     */
+    private static final class Latencies {
+        private long[] samples = new long[1024];
+        private int count;
+        private long bytes;
+        private long errors;
+
+        synchronized void record(long nanos, long size) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = nanos;
+            bytes += size;
+        }
+
+        synchronized void error() {
+            errors++;
+        }
+
+        synchronized Map<String, Double> summary(int seconds) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+
+            Map<String, Double> summary = new LinkedHashMap<>();
+            summary.put("count", (double) count);
+            summary.put("errors", (double) errors);
+            summary.put("opsPerSec", (double) count / seconds);
+            summary.put("mbPerSec", bytes / (1024.0 * 1024.0) / seconds);
+            summary.put("p50Ms", percentile(sorted, 0.50));
+            summary.put("p99Ms", percentile(sorted, 0.99));
+            summary.put("maxMs", count == 0 ? 0 : sorted[count - 1] / 1e6);
+            return summary;
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
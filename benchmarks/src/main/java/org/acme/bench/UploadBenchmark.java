@@ -0,0 +1,79 @@
+package org.acme.bench;
+
+import org.acme.gridfs.GridFSStreamingUploader;
+import org.acme.storage.StorageCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming uploads into GridFS, including the hashing and optional compression
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class UploadBenchmark {
+
+    @Param({"memory"})
+    String backend;
+
+    @Param({"65536", "1048576", "16777216"})
+    int size;
+
+    @Param({"NONE", "GZIP"})
+    StorageCodec codec;
+
+    @Param({"1048576"})
+    int chunkSize;
+
+    private BenchmarkBackend mongo;
+    private ArchiveFixture fixture;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mongo = BenchmarkBackend.start(backend);
+        fixture = new ArchiveFixture(mongo.client(), chunkSize);
+        fixture.drop();
+        data = ArchiveFixture.content(size, 1);
+    }
+
+    /**
+     * Keeps the collections from growing without bound across iterations
+     */
+    @TearDown(Level.Iteration)
+    public void clear() {
+        fixture.drop();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mongo.close();
+    }
+
+    @Benchmark
+    public GridFSStreamingUploader.Result upload() throws IOException {
+        Map<String, Object> metaData = new HashMap<>();
+        metaData.put("ticketNumber", "BENCH");
+        return fixture.uploader.upload(new ByteArrayInputStream(data), "upload.bin", metaData, codec);
+    }
+}
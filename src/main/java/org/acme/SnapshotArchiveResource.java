@@ -1,6 +1,27 @@
 package org.acme;
 
+import com.mongodb.client.FindIterable;
+import org.acme.batch.ArchiveBatchService;
+import org.acme.batch.BulkDeleteRequest;
+import org.acme.bundle.BundleWriter;
+import org.acme.cache.MetadataCache;
+import org.acme.exceptions.InvalidRequestException;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.metrics.ArchiveMetrics;
+import org.acme.query.FileListing;
+import org.acme.query.FileQueryFilters;
+import org.acme.query.IndexManager;
+import org.acme.query.QueryGuard;
+import org.acme.retention.RetentionEngine;
 import org.acme.service.MongoGridFSService;
+import org.acme.stats.ArchiveStats;
+import org.acme.storage.ArchiveDownloader;
+import org.acme.storage.ArchiveStore;
+import org.acme.upload.UploadSessions;
+import org.acme.util.HttpValidators;
+import org.acme.util.MultipartStreamReader;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.enums.SchemaType;
@@ -17,10 +38,16 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.json.Json;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDate;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -32,6 +59,8 @@ import java.util.Map;
 @Tag(name = "Snapshot Archive Resource", description = "JAX-RS Resource that handles file operations with MongoDB")
 public class SnapshotArchiveResource {
 
+    // Read buffer used when parsing streamed multipart uploads
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
 
     @Context
     UriInfo uriInfo;
@@ -39,6 +68,48 @@ public class SnapshotArchiveResource {
     @Inject
     MongoGridFSService mongoGridFSService;
 
+    @Inject
+    ArchiveStore archiveStore;
+
+    @Inject
+    MetadataCache metadataCache;
+
+    @Inject
+    FileListing fileListing;
+
+    @Inject
+    ArchiveBatchService archiveBatchService;
+
+    @Inject
+    BundleWriter bundleWriter;
+
+    @Inject
+    ArchiveDownloader archiveDownloader;
+
+    @Inject
+    ArchiveMetrics archiveMetrics;
+
+    @Inject
+    ArchiveStats archiveStats;
+
+    @Inject
+    IndexManager indexManager;
+
+    @Inject
+    QueryGuard queryGuard;
+
+    // Metadata fields that change after a record is stored
+    private static final List<String> FILE_INFO_VERSION = List.of(
+            GridFSRepository.HASH, GridFSRepository.ORIGINAL_LENGTH,
+            GridFSRepository.REF_COUNT, GridFSRepository.BLOB_ID, GridFSRepository.CHUNKS_ID,
+            GridFSRepository.TIER, GridFSRepository.LOCATION, GridFSRepository.MIGRATED_AT);
+
+    @Inject
+    RetentionEngine retentionEngine;
+
+    @Inject
+    UploadSessions uploadSessions;
+
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Operation(summary = "Retrieves a listing of all the files", description = "Retrieves a listing of all the files using the optional parameters")
@@ -59,32 +130,210 @@ public class SnapshotArchiveResource {
                            @Parameter(description = "Sort direction: ASC or DESC") @QueryParam("sortDir") String sortDir,
                            @Parameter(description = "Name of file") @QueryParam("filename") String filename) {
 
-        // Build up the param map to pass into the service
-        Map<String, String> queryParams = new HashMap<>();
-        queryParams.put("ticketNumber", ticketNumber);
-        queryParams.put("startDate", startDate);
-        queryParams.put("endDate", endDate);
-        queryParams.put("limit", recordLimit);
-        queryParams.put("skip", skipRecord);
-        queryParams.put("sortFields", sortFields);
-        queryParams.put("sortDir", sortDir);
-        queryParams.put("filename", filename);
+        // Checked against the indexes before it runs
+        FileQueryFilters filters = new FileQueryFilters()
+                .ticketNumber(ticketNumber)
+                .startDate(startDate)
+                .endDate(endDate)
+                .filename(filename);
 
+        queryGuard.check(filters, sortFields);
 
-        return Response.ok(mongoGridFSService.listAllFiles(queryParams)).build();
+        // Built from the records rather than by the library so the length is the original one
+        return Response.ok(archiveMetrics.timeQuery("listAll", filters.names(),
+                () -> fileListing.listAll(filters, sortFields, sortDir, recordLimit, skipRecord))).build();
     }
 
 
+    @GET
+    @Path("/listing")
+    @Produces(FileListing.NDJSON)
+    @Operation(summary = "Streams a listing of all the files",
+            description = "Streams the matching files as newline delimited JSON ordered by upload date, without building the whole result in memory")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "Successully retrieved records",
+                    content = @Content(mediaType = FileListing.NDJSON)),
+            @APIResponse(responseCode = "400",
+                    description = "An error with one of the parameters",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response streamAll(@Parameter(description = "Help Desk Ticket Number") @QueryParam("ticketNumber") String ticketNumber,
+                              @Parameter(description = "Start Date (MM-DD-YYYY)") @QueryParam("startDate") String startDate,
+                              @Parameter(description = "End Date (MM-DD-YYYY)") @QueryParam("endDate") String endDate,
+                              @Parameter(description = "Limit the number of results") @QueryParam("limit") Integer recordLimit,
+                              @Parameter(description = "Continue after the position of a previous cursor") @QueryParam("cursor") String cursor,
+                              @Parameter(description = "Sort direction by upload date: ASC or DESC") @QueryParam("sortDir") String sortDir,
+                              @Parameter(description = "Name of file") @QueryParam("filename") String filename) {
+
+        FileQueryFilters filters = new FileQueryFilters()
+                .ticketNumber(ticketNumber)
+                .startDate(startDate)
+                .endDate(endDate)
+                .filename(filename);
+
+        // Built up front so bad parameters are still a 400 and not a broken stream
+        FindIterable<Document> query = fileListing.streamQuery(filters, sortDir, cursor, recordLimit);
+
+        StreamingOutput stream = output -> fileListing.stream(query, output);
+        return Response.ok(stream, FileListing.NDJSON).build();
+    }
+
+    @GET
+    @Path("/page")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Retrieves a page of files",
+            description = "Retrieves a page of files ordered by upload date. Pass the nextCursor of a page as the cursor parameter to get the following page")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "Successully retrieved records",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "An error with one of the parameters",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response getPage(@Parameter(description = "Help Desk Ticket Number") @QueryParam("ticketNumber") String ticketNumber,
+                            @Parameter(description = "Start Date (MM-DD-YYYY)") @QueryParam("startDate") String startDate,
+                            @Parameter(description = "End Date (MM-DD-YYYY)") @QueryParam("endDate") String endDate,
+                            @Parameter(description = "Number of files per page") @QueryParam("pageSize") Integer pageSize,
+                            @Parameter(description = "Cursor returned with the previous page") @QueryParam("cursor") String cursor,
+                            @Parameter(description = "Sort direction by upload date: ASC or DESC") @QueryParam("sortDir") String sortDir,
+                            @Parameter(description = "Name of file") @QueryParam("filename") String filename) {
+
+        FileQueryFilters filters = new FileQueryFilters()
+                .ticketNumber(ticketNumber)
+                .startDate(startDate)
+                .endDate(endDate)
+                .filename(filename);
+
+        return Response.ok(fileListing.page(filters, sortDir, cursor, pageSize)).build();
+    }
+
     @GET
     @Path("/count")
     @Produces(MediaType.APPLICATION_JSON)
     @Operation(summary = "Retrieves total count of all the files", description = "Retrieves a total count of all the files stored in the system")
     public Response getTotalCount() {
-        long count = mongoGridFSService.totalFileCount();
+
+        // Counting the collection is only needed until the stats have been computed
+        Long count = archiveStats.totalFiles();
+        if (count == null) {
+            count = mongoGridFSService.totalFileCount();
+        }
         JsonObject json = Json.createObjectBuilder().add("totalRecords", count).build();
         return Response.ok(json.toString()).build();
     }
 
+    @GET
+    @Path("/stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Retrieves statistics about the archive",
+            description = "Retrieves the total files and bytes, and the files and bytes per ticket number and per upload day")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "Successully retrieved statistics",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "An error with one of the parameters",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response getStats(@Parameter(description = "Only this Help Desk Ticket Number") @QueryParam("ticketNumber") String ticketNumber,
+                             @Parameter(description = "First upload day (MM-DD-YYYY)") @QueryParam("startDate") String startDate,
+                             @Parameter(description = "Last upload day (MM-DD-YYYY)") @QueryParam("endDate") String endDate) {
+
+        LocalDate from = startDate != null ? FileQueryFilters.parseDate(startDate) : null;
+        LocalDate to = endDate != null ? FileQueryFilters.parseDate(endDate) : null;
+
+        Document totals = archiveStats.totals();
+        JsonObjectBuilder json = Json.createObjectBuilder()
+                .add("files", totals != null ? totals.get("files", Number.class).longValue() : 0)
+                .add("bytes", totals != null ? totals.get("bytes", Number.class).longValue() : 0);
+        if (totals != null && totals.getDate("reconciledAt") != null) {
+            json.add("reconciledAt", totals.getDate("reconciledAt").toInstant().toString());
+        }
+
+        JsonArrayBuilder tickets = Json.createArrayBuilder();
+        for (Document ticket : archiveStats.tickets(ticketNumber)) {
+            tickets.add(Json.createObjectBuilder()
+                    .add("ticketNumber", ticket.getString("ticketNumber"))
+                    .add("files", ticket.get("files", Number.class).longValue())
+                    .add("bytes", ticket.get("bytes", Number.class).longValue()));
+        }
+
+        JsonArrayBuilder days = Json.createArrayBuilder();
+        for (Document day : archiveStats.days(from, to)) {
+            days.add(Json.createObjectBuilder()
+                    .add("day", day.getString("day"))
+                    .add("files", day.get("files", Number.class).longValue())
+                    .add("bytes", day.get("bytes", Number.class).longValue()));
+        }
+
+        return Response.ok(json.add("tickets", tickets).add("days", days).build().toString()).build();
+    }
+
+    @GET
+    @Path("/admin/indexes")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Shows the index a listing query uses",
+            description = "Explains the listing query for the given filters and sort: the indexes on the files collection, "
+                    + "the ones the query plan uses and whether it scans the collection or sorts in memory")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "Successully explained the query",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "An error with one of the parameters",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response explainQuery(@Parameter(description = "Help Desk Ticket Number") @QueryParam("ticketNumber") String ticketNumber,
+                                 @Parameter(description = "Start Date (MM-DD-YYYY)") @QueryParam("startDate") String startDate,
+                                 @Parameter(description = "End Date (MM-DD-YYYY)") @QueryParam("endDate") String endDate,
+                                 @Parameter(description = "Comma separated list of fields to sort on") @QueryParam("sortyBy") String sortFields,
+                                 @Parameter(description = "Sort direction: ASC or DESC") @QueryParam("sortDir") String sortDir,
+                                 @Parameter(description = "Name of file") @QueryParam("filename") String filename) {
+
+        FileQueryFilters filters = new FileQueryFilters()
+                .ticketNumber(ticketNumber)
+                .startDate(startDate)
+                .endDate(endDate)
+                .filename(filename);
+
+        Document plan = indexManager.explain(filters.toBson(), QueryGuard.sortOf(sortFields, sortDir));
+        String problem = QueryGuard.problem(filters, sortFields);
+
+        JsonArrayBuilder available = Json.createArrayBuilder();
+        for (Document index : indexManager.listFilesIndexes()) {
+            available.add(index.getString("name"));
+        }
+
+        JsonObjectBuilder json = Json.createObjectBuilder()
+                .add("filters", Json.createArrayBuilder(filters.names()))
+                .add("sort", Json.createArrayBuilder(QueryGuard.sortFieldsOf(sortFields)))
+                .add("indexesUsed", Json.createArrayBuilder(plan.getList("indexes", String.class)))
+                .add("collectionScan", plan.getBoolean("collectionScan"))
+                .add("inMemorySort", plan.getBoolean("inMemorySort"))
+                .add("stages", Json.createArrayBuilder(plan.getList("stages", String.class)))
+                .add("indexes", available);
+        if (problem != null) {
+            json.add("guard", problem);
+        }
+        return Response.ok(json.build().toString()).build();
+    }
+
+    @GET
+    @Path("/admin/retention")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Reports what retention would delete",
+            description = "Dry run of the retention rules: the files and bytes each rule would delete right now and the oldest of those files")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "Successully built the report",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response getRetentionReport() {
+        return Response.ok(retentionEngine.report().toJson()).build();
+    }
+
     @GET
     @Path("/{id}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -97,8 +346,48 @@ public class SnapshotArchiveResource {
                     description = "An error with the format of parameter, or record not found",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON))
     })
-    public Response getFileInfo(@Parameter(description = "ID of the File") @PathParam("id") String id) {
-        return Response.ok(mongoGridFSService.getFileInfo(id)).build();
+    public Response getFileInfo(@Parameter(description = "ID of the File") @PathParam("id") String id,
+                                @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                                @HeaderParam(HttpHeaders.IF_MODIFIED_SINCE) String ifModifiedSince) {
+        HttpValidators validators = fileInfoValidators(id);
+        if (validators.notModified(ifNoneMatch, ifModifiedSince)) {
+            return fileInfoHeaders(Response.notModified(), validators).build();
+        }
+        return fileInfoHeaders(Response.ok(FileListing.toJson(metadataCache.findFile(id))), validators).build();
+    }
+
+    @HEAD
+    @Path("/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Checks a single file record", description = "Returns the headers of the file info without the body")
+    public Response headFileInfo(@Parameter(description = "ID of the File") @PathParam("id") String id,
+                                 @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                                 @HeaderParam(HttpHeaders.IF_MODIFIED_SINCE) String ifModifiedSince) {
+        HttpValidators validators = fileInfoValidators(id);
+        return fileInfoHeaders(validators.notModified(ifNoneMatch, ifModifiedSince) ? Response.notModified() : Response.ok(), validators).build();
+    }
+
+    /**
+     * The hash and original length are filled in after the record is stored, and
+     * deletes and tier moves change who holds the bytes and where, so the weak ETag
+     * is built from those fields. There is no Last-Modified since the upload date
+     * isn't when the record last changed.
+     */
+    private HttpValidators fileInfoValidators(String id) {
+        Document record = metadataCache.findFile(id);
+        Document metadata = GridFSRepository.metadataOf(record);
+
+        StringBuilder version = new StringBuilder(id);
+        for (String field : FILE_INFO_VERSION) {
+            version.append('|').append(metadata.get(field));
+        }
+        return new HttpValidators(HttpValidators.weak(DigestUtils.sha256Hex(version.toString())), null);
+    }
+
+    private Response.ResponseBuilder fileInfoHeaders(Response.ResponseBuilder builder, HttpValidators validators) {
+        return builder
+                .header(HttpHeaders.ETAG, validators.getETag())
+                .header(HttpHeaders.CACHE_CONTROL, archiveDownloader.fileInfoCacheControl());
     }
 
     @DELETE
@@ -114,23 +403,23 @@ public class SnapshotArchiveResource {
                     content = @Content(mediaType = MediaType.APPLICATION_JSON))
     })
     public Response deleteById(@Parameter(description = "ID of the File") @PathParam("id") String id) {
-        mongoGridFSService.deleteFile(id);
+        archiveStore.delete(id);
         return Response.ok().build();
     }
 
     @POST
     @Consumes(MediaType.MULTIPART_FORM_DATA)
-    @Operation(summary = "Uploads a file", description = "Uploads a file with the optional ticketNumber stored with it")
+    @Operation(summary = "Uploads a file", description = "Uploads a file with the optional ticketNumber stored with it. Content that is already stored is only referenced, not stored again")
     @APIResponses(value = {
             @APIResponse(responseCode = "201",
                     description = "Success file upload and return the ID of the newly created record in the body as well as setting the Location header",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON)),
             @APIResponse(responseCode = "400",
-                    description = "An error with the format of parameters or file was already uploaded",
+                    description = "An error with the format of parameters",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON))
     })
     public Response uploadFile(@RestForm("file") @Schema(implementation = UploadItemSchema.class) FileUpload fileData,
-                               @Parameter(description = "Associated Help Desk Ticket Number") @QueryParam("ticketNumber") String ticketNumber) {
+                               @Parameter(description = "Associated Help Desk Ticket Number") @QueryParam("ticketNumber") String ticketNumber) throws IOException {
 
 
 
@@ -140,18 +429,203 @@ public class SnapshotArchiveResource {
             metaData.put("ticketNumber", ticketNumber);
         }
 
-        // Perform the upload
-        ObjectId id = mongoGridFSService.uploadFile(fileData.uploadedFile(), fileData.fileName(), metaData);
+        // Perform the upload, only a reference is stored if the content already exists
+        ObjectId id = archiveStore.store(fileData.uploadedFile(), fileData.fileName(), metaData);
 
-        // Build the location header response
-        UriBuilder builder = uriInfo.getAbsolutePathBuilder();
-        builder.path(id.toString());
+        return createdResponse(id);
+    }
 
-        // Build the response JSON for the body
-        JsonObject json = Json.createObjectBuilder().add("id", id.toString()).build();
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Uploads several files", description = "Uploads every 'files' part of the form with the optional ticketNumber stored with each of them")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "The result of each upload",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "An error with the format of parameters",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response uploadFiles(@RestForm("files") @Schema(implementation = UploadItemSchema[].class) List<FileUpload> files,
+                                @Parameter(description = "Associated Help Desk Ticket Number") @QueryParam("ticketNumber") String ticketNumber) {
+        return Response.ok(archiveBatchService.upload(files, ticketNumber)).build();
+    }
 
-        // Add the response to the body and set the location header
-        return Response.created(builder.build()).entity(json.toString()).build();
+    @POST
+    @Path("/delete")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Deletes several files", description = "Deletes the files with the given ids, or every file of a ticket number")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "The result of each delete",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "An error with the format of the request",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response deleteFiles(BulkDeleteRequest request) {
+        return Response.ok(archiveBatchService.delete(request)).build();
+    }
+
+    @POST
+    @Path("/stream")
+    @Consumes({MediaType.MULTIPART_FORM_DATA, MediaType.APPLICATION_OCTET_STREAM})
+    @Operation(summary = "Uploads a file without spooling it to disk",
+            description = "Streams the request body straight into storage. Accepts either a multipart form with a 'file' part, " +
+                    "or the raw bytes as application/octet-stream with the filename query parameter")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "201",
+                    description = "Success file upload and return the ID of the newly created record in the body as well as setting the Location header",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "An error with the format of parameters",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response uploadFileStream(InputStream body,
+                                     @HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
+                                     @Parameter(description = "Name of the file, required for raw uploads") @QueryParam("filename") String filename,
+                                     @Parameter(description = "Associated Help Desk Ticket Number") @QueryParam("ticketNumber") String ticketNumber) throws IOException {
+
+        // Store the ticket number
+        Map<String, Object> metaData = new HashMap<>();
+        if (ticketNumber != null) {
+            metaData.put("ticketNumber", ticketNumber);
+        }
+
+        String boundary = MultipartStreamReader.boundaryOf(contentType);
+
+        // Raw body, the whole thing is the file
+        if (boundary == null) {
+            if (filename == null || filename.isBlank()) {
+                throw new InvalidRequestException("filename is required for raw uploads");
+            }
+            return createdResponse(archiveStore.store(body, filename, metaData));
+        }
+
+        // Multipart, find the file part and stream just that
+        MultipartStreamReader reader = new MultipartStreamReader(body, boundary, STREAM_BUFFER_SIZE);
+        MultipartStreamReader.Part part;
+        while ((part = reader.nextPart()) != null) {
+            if ("file".equals(part.getName())) {
+                String partFileName = filename != null ? filename : part.getFileName();
+                if (partFileName == null || partFileName.isBlank()) {
+                    throw new InvalidRequestException("filename is required");
+                }
+                return createdResponse(archiveStore.store(part.getBody(), partFileName, metaData));
+            }
+        }
+
+        throw new InvalidRequestException("No 'file' part in request");
+    }
+
+    @POST
+    @Path("/uploads")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Starts an upload sent in parts",
+            description = "Creates an upload session for a file of the given length. The parts are then sent with " +
+                    "PUT /archive/uploads/{uploadId}/parts/{part}, in any order and in parallel, and the file is stored by the commit")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "201",
+                    description = "Session created, the body has the uploadId, partSize and number of parts and the Location header points at the session",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "An error with the format of parameters",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response createUpload(@Parameter(description = "Name of the file") @QueryParam("filename") String filename,
+                                 @Parameter(description = "Associated Help Desk Ticket Number") @QueryParam("ticketNumber") String ticketNumber,
+                                 @Parameter(description = "Length of the whole file in bytes") @QueryParam("length") Long length,
+                                 @Parameter(description = "Size of each part in bytes, rounded down to whole storage chunks") @QueryParam("partSize") Long partSize,
+                                 @Parameter(description = "SHA-256 of the whole file, checked at commit") @QueryParam("sha256") String sha256) {
+
+        Map<String, Object> metaData = new HashMap<>();
+        if (ticketNumber != null) {
+            metaData.put("ticketNumber", ticketNumber);
+        }
+
+        Document session = uploadSessions.create(filename, metaData, length, partSize, sha256);
+        String uploadId = session.getObjectId("_id").toHexString();
+
+        JsonObject json = Json.createObjectBuilder()
+                .add("uploadId", uploadId)
+                .add("partSize", session.getLong("partSize"))
+                .add("parts", UploadSessions.partCount(session.getLong("length"), session.getLong("partSize")))
+                .build();
+        UriBuilder location = uriInfo.getBaseUriBuilder().path(SnapshotArchiveResource.class).path("uploads").path(uploadId);
+        return Response.created(location.build()).entity(json.toString()).build();
+    }
+
+    @PUT
+    @Path("/uploads/{uploadId}/parts/{part}")
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Sends one part of an upload",
+            description = "Stores part number {part} (from 0) of the upload, replacing it if it was sent before. " +
+                    "Every part but the last must be exactly partSize bytes")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "Part stored, the body has its length and SHA-256",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "Unknown session, part number out of range or wrong part length",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response uploadPart(@Parameter(description = "ID of the upload session") @PathParam("uploadId") String uploadId,
+                               @Parameter(description = "Number of the part, starting at 0") @PathParam("part") int part,
+                               InputStream body) throws IOException {
+        return Response.ok(uploadSessions.writePart(uploadId, part, body).toJson()).build();
+    }
+
+    @GET
+    @Path("/uploads/{uploadId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Retrieves the state of an upload",
+            description = "Lists the parts of the upload received so far and the ones still missing")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "Successully retrieved the session",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "Unknown session",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response getUpload(@Parameter(description = "ID of the upload session") @PathParam("uploadId") String uploadId) {
+        return Response.ok(uploadSessions.status(uploadId).toJson()).build();
+    }
+
+    @POST
+    @Path("/uploads/{uploadId}/commit")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Stores the file from the parts of an upload",
+            description = "Checks every part has arrived and the SHA-256 matches, if one was given, then stores the file and ends the session")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "201",
+                    description = "Success file upload and return the ID of the newly created record in the body as well as setting the Location header",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "Unknown session, missing parts or the SHA-256 doesn't match",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response commitUpload(@Parameter(description = "ID of the upload session") @PathParam("uploadId") String uploadId) throws IOException {
+        return createdResponse(uploadSessions.commit(uploadId));
+    }
+
+    @DELETE
+    @Path("/uploads/{uploadId}")
+    @Operation(summary = "Abandons an upload", description = "Ends the session and drops the parts sent so far")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "Session removed"),
+            @APIResponse(responseCode = "400",
+                    description = "Unknown session or the session is being committed",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response abortUpload(@Parameter(description = "ID of the upload session") @PathParam("uploadId") String uploadId) {
+        uploadSessions.abort(uploadId);
+        return Response.ok().build();
     }
 
     @GET
@@ -167,11 +641,28 @@ public class SnapshotArchiveResource {
                     content = @Content(mediaType = MediaType.APPLICATION_JSON))
     })
     public Response hashExist(@Parameter(description = "SHA-256 hash") @PathParam("hash") String hash) {
-        boolean hashExists = mongoGridFSService.hashExists(hash);
+        boolean hashExists = metadataCache.hashExists(hash);
         JsonObject jsonObject = Json.createObjectBuilder().add("exists", hashExists).build();
         return Response.ok(jsonObject.toString()).build();
     }
 
+    @POST
+    @Path("/exists/hashes")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Checks for the existence of several hashes", description = "Takes a JSON array of SHA-256 hashes and returns the ones already in the system")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "The hashes that exist",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "400",
+                    description = "An error with the format of the request",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    })
+    public Response hashesExist(List<String> hashes) {
+        return Response.ok(Map.of("existing", archiveBatchService.existingHashes(hashes))).build();
+    }
+
     @GET
     @Path("/exists/id/{id}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -185,7 +676,7 @@ public class SnapshotArchiveResource {
                     content = @Content(mediaType = MediaType.APPLICATION_JSON))
     })
     public Response fileIDExists(@Parameter(description = "File ID") @PathParam("id") String id) {
-        boolean hashExists = mongoGridFSService.fileIDExists(id);
+        boolean hashExists = metadataCache.fileIDExists(id);
         JsonObject jsonObject = Json.createObjectBuilder().add("exists", hashExists).build();
         return Response.ok(jsonObject.toString()).build();
     }
@@ -203,7 +694,7 @@ public class SnapshotArchiveResource {
                     content = @Content(mediaType = MediaType.APPLICATION_JSON))
     })
     public Response filenameExists(@Parameter(description = "Filename to look for") @PathParam("filename") String filename) {
-        boolean hashExists = mongoGridFSService.filenameExists(filename);
+        boolean hashExists = metadataCache.filenameExists(filename);
         JsonObject jsonObject = Json.createObjectBuilder().add("exists", hashExists).build();
         return Response.ok(jsonObject.toString()).build();
     }
@@ -211,29 +702,94 @@ public class SnapshotArchiveResource {
     @GET
     @Path("/download/{id}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    @Operation(summary = "Downloads a file", description = "Downloads the specified file from the system")
+    @Operation(summary = "Downloads a file", description = "Downloads the specified file from the system, supports single and multiple byte ranges")
     @APIResponses(value = {
             @APIResponse(responseCode = "200",
                     description = "Downloads the file",
                     content = @Content(mediaType = MediaType.APPLICATION_OCTET_STREAM)),
+            @APIResponse(responseCode = "206",
+                    description = "Downloads the requested byte range(s) of the file",
+                    content = @Content(mediaType = MediaType.APPLICATION_OCTET_STREAM)),
+            @APIResponse(responseCode = "304",
+                    description = "The copy the client already has is current"),
             @APIResponse(responseCode = "400",
                     description = "An error with the format of parameters or record not found",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON)),
+            @APIResponse(responseCode = "416",
+                    description = "None of the requested byte ranges can be satisfied")
+    })
+    public Response downloadFile(@Parameter(description = "ID of the File") @PathParam("id") String id,
+                                 @Parameter(description = "HTTP byte range(s) to download") @HeaderParam("Range") String rangeHeader,
+                                 @Parameter(description = "Encodings the client accepts") @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+                                 @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                                 @HeaderParam(HttpHeaders.IF_MODIFIED_SINCE) String ifModifiedSince,
+                                 @Parameter(description = "Only honour the Range if the file still matches this ETag or date") @HeaderParam("If-Range") String ifRange) {
+        return archiveDownloader.download(id, rangeHeader, acceptEncoding, ifNoneMatch, ifModifiedSince, ifRange);
+    }
+
+    @HEAD
+    @Path("/download/{id}")
+    @Produces(MediaType.APPLICATION_OCTET_STREAM)
+    @Operation(summary = "Checks a file download", description = "Returns the download headers, length and ETag included, without reading the file")
+    public Response headDownload(@Parameter(description = "ID of the File") @PathParam("id") String id,
+                                 @Parameter(description = "Encodings the client accepts") @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+                                 @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                                 @HeaderParam(HttpHeaders.IF_MODIFIED_SINCE) String ifModifiedSince) {
+        return archiveDownloader.head(id, acceptEncoding, ifNoneMatch, ifModifiedSince);
+    }
+
+    @GET
+    @Path("/bundle")
+    @Produces({"application/zip", "application/x-tar"})
+    @Operation(summary = "Downloads several files as one archive",
+            description = "Streams a ZIP or TAR of the files with the given ids, or of every file matching the filters")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200",
+                    description = "Downloads the archive",
+                    content = @Content(mediaType = "application/zip")),
+            @APIResponse(responseCode = "400",
+                    description = "An error with the format of parameters or too many files selected",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON))
     })
-    public Response downloadFile(@Parameter(description = "ID of the File") @PathParam("id") String id) {
+    public Response downloadBundle(@Parameter(description = "IDs of the files, repeat for each file") @QueryParam("id") List<String> ids,
+                                   @Parameter(description = "Help Desk Ticket Number") @QueryParam("ticketNumber") String ticketNumber,
+                                   @Parameter(description = "Start Date (MM-DD-YYYY)") @QueryParam("startDate") String startDate,
+                                   @Parameter(description = "End Date (MM-DD-YYYY)") @QueryParam("endDate") String endDate,
+                                   @Parameter(description = "Name of file") @QueryParam("filename") String filename,
+                                   @Parameter(description = "Archive format: zip (default) or tar") @QueryParam("format") String format) {
+
+        BundleWriter.Format bundleFormat = BundleWriter.Format.of(format);
+        FileQueryFilters filters = new FileQueryFilters()
+                .ticketNumber(ticketNumber)
+                .startDate(startDate)
+                .endDate(endDate)
+                .filename(filename);
+
+        // Select up front so bad parameters are still a 400 and not a broken stream
+        List<Document> files = bundleWriter.select(ids, filters);
+
+        String bundleName = (ticketNumber != null ? ticketNumber : "snapshots") + bundleFormat.getExtension();
+        StreamingOutput stream = bundleWriter.stream(files, bundleFormat);
 
-        // NOT SUPPORTED in RESTEASY REACTIVE!!! UGH!!
-        // Had to create new Writer class
-        // This allows streaming of the byte data directly
-        // to the client without having to store it locally
-        // and growing memory
-        StreamingOutput stream = output -> mongoGridFSService.downloadFile(id, output);
+        return Response.ok(stream, bundleFormat.getMediaType())
+                .header("Content-Disposition", "attachment; filename=" + bundleName)
+                .build();
+    }
 
-        // Get the filename so we can set the filename in the download headers
-        MongoGridFSService.FileInfo info = mongoGridFSService.getFileInfo(id);
-        String fileName = info.getFilename();
+    /**
+     * Builds the 201 response with the Location header and id in the body
+     */
+    private Response createdResponse(ObjectId id) {
 
-        return Response.ok(stream).header("Content-Disposition", "attachment; filename=" + fileName).build();
+        // Build the location header response
+        UriBuilder builder = uriInfo.getBaseUriBuilder().path(SnapshotArchiveResource.class);
+        builder.path(id.toString());
+
+        // Build the response JSON for the body
+        JsonObject json = Json.createObjectBuilder().add("id", id.toString()).build();
+
+        // Add the response to the body and set the location header
+        return Response.created(builder.build()).entity(json.toString()).build();
     }
 
     /**
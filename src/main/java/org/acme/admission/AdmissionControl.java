@@ -0,0 +1,161 @@
+package org.acme.admission;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.json.Json;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Separate concurrency limits for uploads, downloads, listings, deletes and metadata calls
+ * <p>
+ * Every /archive request takes a permit for its {@link Workload} on the event loop,
+ * before it is dispatched to a worker thread, and gives it back when the response
+ * ends, so a download holds its permit until the last byte is written. Requests over
+ * the limit wait, paused, in a bounded queue. A request that finds the queue full, or
+ * waits longer than maxWait, gets a 503 with Retry-After straight away.
+ * <p>
+ * Keeping the limits other than metadata below the size of the worker pool leaves
+ * threads free for the cheap lookups however many large transfers are running.
+ */
+@ApplicationScoped
+public class AdmissionControl {
+
+    private final static Logger LOG = LoggerFactory.getLogger(AdmissionControl.class);
+
+    @ConfigProperty(name = "bulkhead.enabled", defaultValue = "true") boolean enabled;
+    @ConfigProperty(name = "bulkhead.retryAfter", defaultValue = "5") int retryAfter;
+
+    @Inject
+    Config config;
+
+    @Inject
+    MeterRegistry registry;
+
+    private final Map<Workload, Limits> limits = new EnumMap<>(Workload.class);
+
+    /**
+     * The bulkhead of a workload and its settings
+     */
+    private static final class Limits {
+        final Bulkhead bulkhead;
+        final long maxWaitMillis;
+        final Counter queueFull;
+        final Counter timedOut;
+
+        Limits(Bulkhead bulkhead, long maxWaitMillis, Counter queueFull, Counter timedOut) {
+            this.bulkhead = bulkhead;
+            this.maxWaitMillis = maxWaitMillis;
+            this.queueFull = queueFull;
+            this.timedOut = timedOut;
+        }
+    }
+
+    void register(@Observes Router router) {
+        if (!enabled) {
+            return;
+        }
+
+        for (Workload workload : Workload.values()) {
+            String prefix = "bulkhead." + workload.key() + ".";
+            Bulkhead bulkhead = new Bulkhead(
+                    config.getValue(prefix + "maxConcurrent", Integer.class),
+                    config.getValue(prefix + "queue", Integer.class));
+            Duration maxWait = config.getValue(prefix + "maxWait", Duration.class);
+
+            Tags tags = Tags.of("workload", workload.key());
+            registry.gauge("archive.bulkhead.active", tags, bulkhead, Bulkhead::active);
+            registry.gauge("archive.bulkhead.queued", tags, bulkhead, Bulkhead::queued);
+            limits.put(workload, new Limits(bulkhead, maxWait.toMillis(),
+                    registry.counter("archive.bulkhead.rejected", tags.and("reason", "queueFull")),
+                    registry.counter("archive.bulkhead.rejected", tags.and("reason", "timeout"))));
+        }
+
+        // Ahead of every other /archive route, including the reactive download
+        router.route("/archive*").order(-2).handler(this::admit);
+    }
+
+    private void admit(RoutingContext ctx) {
+        Workload workload = Workload.classify(ctx.request().method(), ctx.normalizedPath());
+        Limits workloadLimits = limits.get(workload);
+        Bulkhead bulkhead = workloadLimits.bulkhead;
+
+        // Released exactly once, whether the response completes or the connection drops
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                bulkhead.release();
+            }
+        };
+
+        Context context = Vertx.currentContext();
+        AtomicBoolean waiting = new AtomicBoolean(true);
+        long[] timer = new long[1];
+
+        Runnable onAdmit = () -> context.runOnContext(ignored -> {
+            waiting.set(false);
+            ctx.vertx().cancelTimer(timer[0]);
+            if (ctx.response().closed()) {
+                release.run();
+                return;
+            }
+            ctx.addEndHandler(ended -> release.run());
+            ctx.request().resume();
+            ctx.next();
+        });
+
+        switch (bulkhead.acquire(onAdmit)) {
+            case ADMITTED:
+                ctx.addEndHandler(ended -> release.run());
+                ctx.next();
+                break;
+
+            case QUEUED:
+                // Hold the body until there is a permit for it
+                ctx.request().pause();
+                timer[0] = ctx.vertx().setTimer(workloadLimits.maxWaitMillis, id -> {
+                    if (waiting.get() && bulkhead.cancel(onAdmit)) {
+                        workloadLimits.timedOut.increment();
+                        reject(ctx, workload);
+                    }
+                });
+                break;
+
+            default:
+                workloadLimits.queueFull.increment();
+                reject(ctx, workload);
+        }
+    }
+
+    private void reject(RoutingContext ctx, Workload workload) {
+        LOG.debug("Rejected {} request {}", workload.key(), ctx.normalizedPath());
+
+        // Don't read the rest of a large upload just to throw it away
+        if (!ctx.request().isEnded()) {
+            ctx.response().putHeader(HttpHeaders.CONNECTION, "close");
+        }
+        ctx.response()
+                .setStatusCode(503)
+                .putHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter))
+                .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+                .end(Json.createObjectBuilder()
+                        .add("error", "Too many " + workload.key() + " requests, try again later")
+                        .build().toString());
+    }
+}
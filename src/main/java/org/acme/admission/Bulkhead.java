@@ -0,0 +1,80 @@
+package org.acme.admission;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Concurrency limit with a bounded queue of waiting requests
+ * <p>
+ * Waiting requests are callbacks, not blocked threads, so a full
+ * queue costs nothing but the memory of the paused requests.
+ */
+final class Bulkhead {
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final Deque<Runnable> queue = new ArrayDeque<>();
+    private int active;
+
+    Bulkhead(int maxConcurrent, int maxQueued) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+    }
+
+    enum Admission {
+        ADMITTED,
+        QUEUED,
+        REJECTED
+    }
+
+    /**
+     * Takes a permit if one is free, otherwise queues the callback to run
+     * once one is released to it
+     *
+     * @param onAdmit Run with the permit held when admitted from the queue
+     */
+    synchronized Admission acquire(Runnable onAdmit) {
+        if (active < maxConcurrent) {
+            active++;
+            return Admission.ADMITTED;
+        }
+        if (queue.size() < maxQueued) {
+            queue.addLast(onAdmit);
+            return Admission.QUEUED;
+        }
+        return Admission.REJECTED;
+    }
+
+    /**
+     * Gives the permit to the next waiting request or frees it
+     */
+    void release() {
+        Runnable next;
+        synchronized (this) {
+            next = queue.pollFirst();
+            if (next == null) {
+                active--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    /**
+     * Removes a callback that gave up waiting
+     *
+     * @return false if it had already been admitted
+     */
+    synchronized boolean cancel(Runnable onAdmit) {
+        return queue.remove(onAdmit);
+    }
+
+    synchronized int active() {
+        return active;
+    }
+
+    synchronized int queued() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,189 @@
+package org.acme.admission;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.configuration.MemorySize;
+import io.quarkus.scheduler.Scheduled;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the bytes per second transferred for each ticket number
+ * <p>
+ * One token bucket per ticket and direction, allowed to burst up to the configured
+ * size. A transfer over the rate is slowed down, not failed: blocking streams sleep,
+ * reactive streams are delayed. Files without a ticket number share one bucket.
+ */
+@ApplicationScoped
+public class ByteRateLimiter {
+
+    public enum Direction {
+        UPLOAD,
+        DOWNLOAD
+    }
+
+    private static final String NO_TICKET = "";
+
+    @ConfigProperty(name = "ratelimit.upload.bytesPerSecond", defaultValue = "0") MemorySize uploadRate;
+    @ConfigProperty(name = "ratelimit.download.bytesPerSecond", defaultValue = "0") MemorySize downloadRate;
+    @ConfigProperty(name = "ratelimit.burst", defaultValue = "8M") MemorySize burst;
+
+    @Inject
+    MeterRegistry registry;
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private Timer uploadThrottled;
+    private Timer downloadThrottled;
+
+    @PostConstruct
+    void init() {
+        uploadThrottled = registry.timer("archive.ratelimit.throttled", Tags.of("direction", "upload"));
+        downloadThrottled = registry.timer("archive.ratelimit.throttled", Tags.of("direction", "download"));
+    }
+
+    /**
+     * Whether transfers in this direction are limited at all
+     */
+    public boolean isEnabled(Direction direction) {
+        return rate(direction) > 0;
+    }
+
+    /**
+     * Takes the bytes from the ticket's bucket
+     *
+     * @return How long to wait before transferring them, in nanoseconds
+     */
+    public long reserve(Direction direction, String ticketNumber, long bytes) {
+        long rate = rate(direction);
+        if (rate <= 0) {
+            return 0;
+        }
+        String key = direction + ":" + (ticketNumber != null ? ticketNumber : NO_TICKET);
+        long wait = buckets.computeIfAbsent(key, k -> new TokenBucket(rate, burst.asLongValue())).take(bytes);
+        if (wait > 0) {
+            (direction == Direction.UPLOAD ? uploadThrottled : downloadThrottled).record(wait, TimeUnit.NANOSECONDS);
+        }
+        return wait;
+    }
+
+    /**
+     * Limits the rate the data is read at, which holds back the client sending it
+     */
+    public InputStream limit(InputStream in, String ticketNumber) {
+        if (!isEnabled(Direction.UPLOAD)) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    pause(reserve(Direction.UPLOAD, ticketNumber, 1));
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    pause(reserve(Direction.UPLOAD, ticketNumber, read));
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Limits the rate the data is written at
+     */
+    public OutputStream limit(OutputStream out, String ticketNumber) {
+        if (!isEnabled(Direction.DOWNLOAD)) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                pause(reserve(Direction.DOWNLOAD, ticketNumber, 1));
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                pause(reserve(Direction.DOWNLOAD, ticketNumber, len));
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Drops buckets that have refilled, they are the same as a new one
+     */
+    @Scheduled(every = "1m")
+    void evictIdle() {
+        buckets.values().removeIf(TokenBucket::isFull);
+    }
+
+    private long rate(Direction direction) {
+        return (direction == Direction.UPLOAD ? uploadRate : downloadRate).asLongValue();
+    }
+
+    private static void pause(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rate limited");
+        }
+    }
+
+    /**
+     * Refills at the rate up to the burst size, and may go into debt so a
+     * large write waits for exactly the time it should have taken
+     */
+    static final class TokenBucket {
+        private final double bytesPerNano;
+        private final long capacity;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        TokenBucket(long bytesPerSecond, long capacity) {
+            this.bytesPerNano = bytesPerSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        synchronized long take(long bytes) {
+            refill();
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens / bytesPerNano);
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - last) * bytesPerNano);
+            last = now;
+        }
+    }
+}
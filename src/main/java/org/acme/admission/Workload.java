@@ -0,0 +1,58 @@
+package org.acme.admission;
+
+import io.vertx.core.http.HttpMethod;
+
+/**
+ * The kinds of request that get their own concurrency limits
+ */
+public enum Workload {
+
+    UPLOAD,
+    DOWNLOAD,
+    // Unbounded listings, which read and write every matching record
+    LISTING,
+    // Deletes, a bulk delete works through every file it is given
+    DELETE,
+    METADATA;
+
+    /**
+     * Works out which kind of request this is from the method and path
+     *
+     * @param method HTTP method of the request
+     * @param path   Path of the request, starting with /archive
+     */
+    public static Workload classify(HttpMethod method, String path) {
+        if (path.startsWith("/archive/download/") || path.equals("/archive/bundle")) {
+            return DOWNLOAD;
+        }
+        if (HttpMethod.POST.equals(method)
+                && (path.equals("/archive") || path.equals("/archive/")
+                || path.equals("/archive/batch") || path.equals("/archive/stream"))) {
+            return UPLOAD;
+        }
+
+        // Parts of an upload, and the commit which reads them all back
+        if (path.startsWith("/archive/uploads/")
+                && ((HttpMethod.PUT.equals(method) && path.contains("/parts/"))
+                || (HttpMethod.POST.equals(method) && path.endsWith("/commit")))) {
+            return UPLOAD;
+        }
+
+        if (HttpMethod.GET.equals(method)
+                && (path.equals("/archive") || path.equals("/archive/") || path.equals("/archive/listing"))) {
+            return LISTING;
+        }
+        if ((HttpMethod.POST.equals(method) && path.equals("/archive/delete"))
+                || (HttpMethod.DELETE.equals(method) && !path.startsWith("/archive/uploads/"))) {
+            return DELETE;
+        }
+        return METADATA;
+    }
+
+    /**
+     * Name used in the config keys and metric tags
+     */
+    public String key() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,177 @@
+package org.acme.batch;
+
+import org.acme.cache.ExistenceFilter;
+import org.acme.exceptions.InvalidRequestException;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.storage.ArchiveStore;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.jboss.resteasy.reactive.multipart.FileUpload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * Batch versions of the single file operations
+ * <p>
+ * Uploads and deletes go through the same {@link ArchiveStore} paths as the
+ * single file endpoints, one item failing doesn't stop the rest and every
+ * item gets its own result.
+ */
+@ApplicationScoped
+public class ArchiveBatchService {
+
+    private final static Logger LOG = LoggerFactory.getLogger(ArchiveBatchService.class);
+
+    // Most items a request can list, also how many files of a ticket are fetched at a time
+    static final int MAX_BATCH_SIZE = 1000;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    ArchiveStore archiveStore;
+
+    @Inject
+    ExistenceFilter existenceFilter;
+
+    /**
+     * Finds which of the hashes are already stored, using a single query
+     *
+     * @return The subset of the hashes that exist
+     */
+    public Set<String> existingHashes(Collection<String> hashes) {
+        checkSize(hashes);
+        Set<String> unique = new LinkedHashSet<>(hashes);
+
+        // Only ask the database about the ones that might be there
+        Set<String> candidates = new LinkedHashSet<>();
+        for (String hash : unique) {
+            if (existenceFilter.mightContainHash(hash)) {
+                candidates.add(hash);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return candidates;
+        }
+
+        Set<String> existing = new LinkedHashSet<>();
+        for (Document file : repository.files()
+                .find(in(GridFSRepository.METADATA_HASH, candidates))
+                .projection(include(GridFSRepository.METADATA_HASH))) {
+            existing.add(GridFSRepository.metadataOf(file).getString(GridFSRepository.HASH));
+        }
+
+        // Keep the order the hashes were asked for
+        candidates.retainAll(existing);
+        return candidates;
+    }
+
+    public List<BatchItemResult> upload(List<FileUpload> files, String ticketNumber) {
+        checkSize(files);
+
+        List<BatchItemResult> results = new ArrayList<>(files.size());
+        for (FileUpload file : files) {
+            Map<String, Object> metaData = new HashMap<>();
+            if (ticketNumber != null) {
+                metaData.put("ticketNumber", ticketNumber);
+            }
+
+            try {
+                ObjectId id = archiveStore.store(file.uploadedFile(), file.fileName(), metaData);
+                results.add(BatchItemResult.created(id.toHexString(), file.fileName()));
+            } catch (Exception e) {
+                LOG.error("Batch upload of {} failed", file.fileName(), e);
+                results.add(BatchItemResult.failed(null, file.fileName(), e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    public List<BatchItemResult> delete(BulkDeleteRequest request) {
+        boolean byIds = request.ids != null && !request.ids.isEmpty();
+        boolean byTicket = request.ticketNumber != null && !request.ticketNumber.isBlank();
+        if (byIds == byTicket) {
+            throw new InvalidRequestException("Specify either ids or ticketNumber");
+        }
+
+        if (byIds) {
+            checkSize(request.ids);
+            return deleteAll(request.ids);
+        }
+
+        // A ticket can have more files than fit in one query, they are walked
+        // in _id order a batch at a time so each file is tried once even if it fails
+        List<BatchItemResult> results = new ArrayList<>();
+        ObjectId after = null;
+        List<ObjectId> ids;
+        while (!(ids = idsForTicket(request.ticketNumber, after)).isEmpty()) {
+            results.addAll(deleteAll(ids.stream().map(ObjectId::toHexString).collect(Collectors.toList())));
+            after = ids.get(ids.size() - 1);
+        }
+        return results;
+    }
+
+    private List<BatchItemResult> deleteAll(List<String> ids) {
+        List<BatchItemResult> results = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            try {
+                archiveStore.delete(id);
+                results.add(BatchItemResult.deleted(id));
+            } catch (Exception e) {
+                LOG.error("Batch delete of {} failed", id, e);
+                results.add(BatchItemResult.failed(id, null, e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The next batch of files of the ticket
+     *
+     * @param after Last id of the previous batch, null for the first
+     */
+    private List<ObjectId> idsForTicket(String ticketNumber, ObjectId after) {
+        Bson filter = eq(GridFSRepository.METADATA_TICKET_NUMBER, ticketNumber);
+        if (after != null) {
+            filter = and(filter, gt("_id", after));
+        }
+
+        List<ObjectId> ids = new ArrayList<>();
+        for (Document file : repository.files()
+                .find(filter)
+                .projection(include("_id"))
+                .sort(ascending("_id"))
+                .limit(MAX_BATCH_SIZE)) {
+            ids.add(file.getObjectId("_id"));
+        }
+        return ids;
+    }
+
+    private static void checkSize(Collection<?> items) {
+        if (items == null || items.isEmpty()) {
+            throw new InvalidRequestException("No items in batch");
+        }
+        if (items.size() > MAX_BATCH_SIZE) {
+            throw new InvalidRequestException("Batch is limited to " + MAX_BATCH_SIZE + " items");
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.acme.batch;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Outcome of a single item in a batch request
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchItemResult {
+
+    public enum Status {
+        CREATED,
+        DELETED,
+        FAILED
+    }
+
+    private final String id;
+    private final String filename;
+    private final Status status;
+    private final String error;
+
+    private BatchItemResult(String id, String filename, Status status, String error) {
+        this.id = id;
+        this.filename = filename;
+        this.status = status;
+        this.error = error;
+    }
+
+    public static BatchItemResult created(String id, String filename) {
+        return new BatchItemResult(id, filename, Status.CREATED, null);
+    }
+
+    public static BatchItemResult deleted(String id) {
+        return new BatchItemResult(id, null, Status.DELETED, null);
+    }
+
+    public static BatchItemResult failed(String id, String filename, String error) {
+        return new BatchItemResult(id, filename, Status.FAILED, error);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,13 @@
+package org.acme.batch;
+
+import java.util.List;
+
+/**
+ * Body of a bulk delete, either the ids to delete or a ticket number
+ * whose files should all be deleted
+ */
+public class BulkDeleteRequest {
+
+    public List<String> ids;
+    public String ticketNumber;
+}
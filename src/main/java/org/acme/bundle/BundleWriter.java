@@ -0,0 +1,284 @@
+package org.acme.bundle;
+
+import io.quarkus.runtime.ShutdownEvent;
+import org.acme.admission.ByteRateLimiter;
+import org.acme.cache.MetadataCache;
+import org.acme.exceptions.InvalidRequestException;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.metrics.ArchiveMetrics;
+import org.acme.query.FileQueryFilters;
+import org.acme.storage.ArchiveDownloader;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * Streams a ZIP or TAR archive of many files built on the fly
+ * <p>
+ * Nothing is buffered in full: each entry is copied straight from its
+ * storage stream into the archive. While one entry is streaming, the next
+ * file is opened and its first bytes are read ahead on another thread, so
+ * the Mongo round trips for the next file overlap with sending the current one.
+ * <p>
+ * Bundles count as downloads: the bytes sent show up in the download metrics
+ * and each entry is held to the download rate of its own ticket.
+ */
+@ApplicationScoped
+public class BundleWriter {
+
+    private final static Logger LOG = LoggerFactory.getLogger(BundleWriter.class);
+
+    public enum Format {
+        ZIP("application/zip", ".zip"),
+        TAR("application/x-tar", ".tar");
+
+        private final String mediaType;
+        private final String extension;
+
+        Format(String mediaType, String extension) {
+            this.mediaType = mediaType;
+            this.extension = extension;
+        }
+
+        public String getMediaType() {
+            return mediaType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public static Format of(String name) {
+            if (name == null || name.isBlank() || name.equalsIgnoreCase("zip")) {
+                return ZIP;
+            }
+            if (name.equalsIgnoreCase("tar")) {
+                return TAR;
+            }
+            throw new InvalidRequestException("Unknown bundle format: " + name);
+        }
+    }
+
+    @ConfigProperty(name = "bundle.maxFiles", defaultValue = "1000") int maxFiles;
+    @ConfigProperty(name = "bundle.prefetchBytes", defaultValue = "2097152") int prefetchBytes;
+    @ConfigProperty(name = "bundle.prefetchThreads", defaultValue = "4") int prefetchThreads;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    MetadataCache metadataCache;
+
+    @Inject
+    ArchiveDownloader downloader;
+
+    @Inject
+    ArchiveMetrics metrics;
+
+    @Inject
+    ByteRateLimiter rateLimiter;
+
+    private ExecutorService prefetcher;
+
+    @PostConstruct
+    void init() {
+        prefetcher = Executors.newFixedThreadPool(prefetchThreads, r -> {
+            Thread t = new Thread(r, "bundle-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        prefetcher.shutdownNow();
+    }
+
+    /**
+     * Finds the files to bundle, either the explicit ids or everything matching the filters
+     *
+     * @throws InvalidRequestException if nothing narrows the selection or it is too large
+     */
+    public List<Document> select(List<String> ids, FileQueryFilters filters) {
+        boolean byIds = ids != null && !ids.isEmpty();
+        if (!byIds && filters.names().isEmpty()) {
+            throw new InvalidRequestException("Specify ids, a ticketNumber, a date range or a filename");
+        }
+
+        Bson filter;
+        if (byIds) {
+            List<ObjectId> objectIds = new ArrayList<>();
+            for (String id : ids) {
+                objectIds.add(GridFSRepository.toObjectId(id));
+            }
+            filter = in("_id", objectIds);
+        } else {
+            filter = filters.toBson();
+        }
+
+        List<Document> files = repository.files()
+                .find(filter)
+                .sort(ascending(GridFSRepository.UPLOAD_DATE, "_id"))
+                .limit(maxFiles + 1)
+                .into(new ArrayList<>());
+
+        if (files.size() > maxFiles) {
+            throw new InvalidRequestException("Bundle is limited to " + maxFiles + " files");
+        }
+        return files;
+    }
+
+    /**
+     * The archive of the files as a response body, instrumented like a download
+     */
+    public StreamingOutput stream(List<Document> files, Format format) {
+        long requestStart = System.nanoTime();
+        return metrics.instrumentDownload(output -> write(files, format, output), requestStart);
+    }
+
+    /**
+     * Writes the archive of the files
+     */
+    public void write(List<Document> files, Format format, OutputStream output) throws IOException {
+        Set<String> names = new HashSet<>();
+
+        if (format == Format.ZIP) {
+            ZipOutputStream zip = new ZipOutputStream(output);
+            writeEntries(files, names, (file, name, in) -> {
+                ZipEntry entry = new ZipEntry(name);
+                entry.setTime(file.getDate(GridFSRepository.UPLOAD_DATE).getTime());
+                zip.putNextEntry(entry);
+                in.transferTo(limit(zip, file));
+                zip.closeEntry();
+            });
+            zip.finish();
+        } else {
+            TarOutputStream tar = new TarOutputStream(output);
+            writeEntries(files, names, (file, name, in) -> {
+                tar.putNextEntry(name, GridFSRepository.contentLengthOf(file), file.getDate(GridFSRepository.UPLOAD_DATE).getTime());
+                in.transferTo(limit(tar, file));
+                tar.closeEntry();
+            });
+            tar.finish();
+        }
+    }
+
+    @FunctionalInterface
+    private interface EntryWriter {
+        void write(Document file, String name, InputStream in) throws IOException;
+    }
+
+    private void writeEntries(List<Document> files, Set<String> names, EntryWriter writer) throws IOException {
+        CompletableFuture<InputStream> next = files.isEmpty() ? null : prefetch(files.get(0));
+
+        for (int i = 0; i < files.size(); i++) {
+            Document file = files.get(i);
+            InputStream in = await(next);
+
+            // Start on the next file while this one streams
+            next = i + 1 < files.size() ? prefetch(files.get(i + 1)) : null;
+
+            try (in) {
+                writer.write(file, uniqueName(file, names), in);
+            } catch (IOException | RuntimeException e) {
+                if (next != null) {
+                    next.thenAccept(BundleWriter::closeQuietly);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Opens the file and reads its first bytes in the background
+     */
+    private CompletableFuture<InputStream> prefetch(Document file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                InputStream in = downloader.openContent(metadataCache.findBlob(file));
+                byte[] head = in.readNBytes(prefetchBytes);
+                return new SequenceInputStream(new ByteArrayInputStream(head), in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, prefetcher);
+    }
+
+    /**
+     * Holds the entry to the download rate of its ticket, counted before
+     * compression so a zip entry never goes faster than a plain download
+     */
+    private OutputStream limit(OutputStream entry, Document file) {
+        return rateLimiter.limit(entry, GridFSRepository.metadataOf(file).getString(GridFSRepository.TICKET_NUMBER));
+    }
+
+    private static InputStream await(CompletableFuture<InputStream> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while opening file", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to open file", cause);
+        }
+    }
+
+    /**
+     * Entry name from the filename, made safe for extraction and unique within the bundle
+     */
+    private static String uniqueName(Document file, Set<String> names) {
+        String filename = file.getString(GridFSRepository.FILENAME);
+        String name = filename == null ? "" : filename.replace('\\', '/');
+        name = name.substring(name.lastIndexOf('/') + 1);
+        if (name.isBlank() || name.equals(".") || name.equals("..")) {
+            name = file.getObjectId("_id").toHexString();
+        }
+
+        if (!names.add(name)) {
+            String id = file.getObjectId("_id").toHexString();
+            int dot = name.lastIndexOf('.');
+            name = dot > 0 ? name.substring(0, dot) + "-" + id + name.substring(dot) : name + "-" + id;
+            names.add(name);
+        }
+        return name;
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            LOG.debug("Unable to close prefetched stream", e);
+        }
+    }
+}
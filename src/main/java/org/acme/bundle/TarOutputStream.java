@@ -0,0 +1,163 @@
+package org.acme.bundle;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a ustar archive as a stream
+ * <p>
+ * The size of every entry has to be known before its data is written,
+ * which it always is since it comes from the file metadata. Names that don't
+ * fit the 100 bytes of the header are written in full in a pax extended
+ * header, readers without pax support fall back to the truncated name.
+ * <p>
+ * Link: https://pubs.opengroup.org/onlinepubs/9699919799/utilities/pax.html#tag_20_92_13_06
+ */
+public class TarOutputStream extends FilterOutputStream {
+
+    private static final int BLOCK = 512;
+
+    // Largest size that fits the 11 octal digits of the header
+    private static final long MAX_SIZE = 077777777777L;
+
+    private static final int NAME_LENGTH = 100;
+
+    private long remaining;
+    private long written;
+
+    public TarOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Starts a new regular file entry
+     *
+     * @param name    Name of the entry
+     * @param size    Exact number of bytes that will be written for it
+     * @param modTime Modification time in millis
+     */
+    public void putNextEntry(String name, long size, long modTime) throws IOException {
+        if (remaining != 0) {
+            throw new IOException("Previous entry is incomplete, " + remaining + " bytes missing");
+        }
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IOException("Entry too large for tar: " + size);
+        }
+
+        byte[] truncated = truncate(name, NAME_LENGTH);
+        if (truncated.length != name.getBytes(StandardCharsets.UTF_8).length) {
+            byte[] path = paxRecord("path", name);
+            writeHeader(truncate("PaxHeaders/" + name, NAME_LENGTH), path.length, modTime, 'x');
+            out.write(path);
+            out.write(new byte[padding(path.length)]);
+        }
+
+        writeHeader(truncated, size, modTime, '0');
+        remaining = size;
+        written = size;
+    }
+
+    private void writeHeader(byte[] name, long size, long modTime, char type) throws IOException {
+        byte[] header = new byte[BLOCK];
+        put(header, 0, NAME_LENGTH, name);
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, modTime / 1000);
+        header[156] = (byte) type;
+        put(header, 257, 6, "ustar".getBytes(StandardCharsets.US_ASCII));
+        put(header, 263, 2, "00".getBytes(StandardCharsets.US_ASCII));
+
+        // Checksum is computed with its own field set to spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        header[155] = ' ';
+
+        out.write(header);
+    }
+
+    /**
+     * A pax record, "length key=value\n" where the length counts the whole record
+     */
+    static byte[] paxRecord(String key, String value) {
+        int body = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int length = body + String.valueOf(body).length();
+        // Adding the digits can add another digit
+        if (String.valueOf(length).length() != String.valueOf(body).length()) {
+            length++;
+        }
+        return (length + " " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > remaining) {
+            throw new IOException("Entry larger than its declared size");
+        }
+        out.write(b, off, len);
+        remaining -= len;
+    }
+
+    /**
+     * Pads the entry out to a whole block
+     */
+    public void closeEntry() throws IOException {
+        if (remaining != 0) {
+            throw new IOException("Entry is incomplete, " + remaining + " bytes missing");
+        }
+        out.write(new byte[padding(written)]);
+        written = 0;
+    }
+
+    /**
+     * Writes the two empty blocks that end the archive
+     */
+    public void finish() throws IOException {
+        out.write(new byte[BLOCK * 2]);
+        out.flush();
+    }
+
+    private static int padding(long length) {
+        return (int) ((BLOCK - length % BLOCK) % BLOCK);
+    }
+
+    private static byte[] truncate(String name, int max) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= max) {
+            return bytes;
+        }
+
+        // Keep the extension, it matters more than the middle of the name
+        int dot = name.lastIndexOf('.');
+        String ext = dot > 0 && name.length() - dot <= 16 ? name.substring(dot) : "";
+        String base = name.substring(0, name.length() - ext.length());
+        while ((base + ext).getBytes(StandardCharsets.UTF_8).length > max) {
+            base = base.substring(0, base.length() - 1);
+        }
+        return (base + ext).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void put(byte[] header, int offset, int length, byte[] value) {
+        System.arraycopy(value, 0, header, offset, Math.min(length, value.length));
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        String padded = "0".repeat(Math.max(0, length - 1 - octal.length())) + octal;
+        put(header, offset, length - 1, padded.getBytes(StandardCharsets.US_ASCII));
+        header[offset + length - 1] = 0;
+    }
+}
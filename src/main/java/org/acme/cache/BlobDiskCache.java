@@ -0,0 +1,351 @@
+package org.acme.cache;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.runtime.configuration.MemorySize;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.storage.ArchiveEvent;
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Local disk cache of recently downloaded files
+ * <p>
+ * Entries are keyed by the id and hash of the file owning the chunks and are
+ * evicted least recently used first once the cache grows past its maximum size.
+ * To stop one-off downloads of huge files from flushing everything else out, a
+ * file is only admitted when it fits under the entry size limit and has been
+ * requested a number of times already.
+ * <p>
+ * Evicted files are deleted after a short delay since a zero-copy send of
+ * the file may still be about to open it.
+ */
+@ApplicationScoped
+public class BlobDiskCache {
+
+    private final static Logger LOG = LoggerFactory.getLogger(BlobDiskCache.class);
+
+    // How many recently missed keys are remembered for admission
+    private static final int MAX_TRACKED_MISSES = 10_000;
+
+    @ConfigProperty(name = "cache.disk.enabled", defaultValue = "false") boolean enabled;
+    @ConfigProperty(name = "cache.disk.directory", defaultValue = "${java.io.tmpdir}/snapshot-archive-cache") Path directory;
+    @ConfigProperty(name = "cache.disk.maxSize", defaultValue = "2G") MemorySize maxSize;
+    @ConfigProperty(name = "cache.disk.maxEntrySize", defaultValue = "256M") MemorySize maxEntrySize;
+    @ConfigProperty(name = "cache.disk.admitAfterHits", defaultValue = "2") int admitAfterHits;
+    @ConfigProperty(name = "cache.disk.deleteDelay", defaultValue = "30") int deleteDelaySeconds;
+
+    // Access ordered so iteration starts at the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Integer> misses = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_TRACKED_MISSES;
+        }
+    };
+    private final Set<String> filling = new HashSet<>();
+    private long currentSize;
+
+    private ScheduledExecutorService deleter;
+
+    private static class Entry {
+        final Path path;
+        final long size;
+        final Object blobId;
+
+        Entry(Path path, long size, Object blobId) {
+            this.path = path;
+            this.size = size;
+            this.blobId = blobId;
+        }
+    }
+
+    void onStart(@Observes StartupEvent event) throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        // Nothing survives a restart, the files could have been deleted in the meantime
+        Files.createDirectories(directory);
+        try (Stream<Path> stale = Files.list(directory)) {
+            stale.forEach(BlobDiskCache::deleteQuietly);
+        }
+
+        deleter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "blob-disk-cache-deleter");
+            t.setDaemon(true);
+            return t;
+        });
+        LOG.info("Disk cache enabled at {} with max size {} bytes", directory, maxSize.asLongValue());
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        if (deleter != null) {
+            deleter.shutdownNow();
+        }
+    }
+
+    void onArchiveEvent(@Observes ArchiveEvent event) {
+        if (event.getType() == ArchiveEvent.Type.DELETED) {
+            invalidate(event.getId());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Looks up the cached copy of the file
+     *
+     * @param blob The files document owning the chunks
+     * @return Path to the cached copy or null on a miss
+     */
+    public synchronized Path get(Document blob) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = entries.get(keyOf(blob));
+        return entry != null ? entry.path : null;
+    }
+
+    /**
+     * Starts caching the file if it passes the admission rules
+     * <p>
+     * Every call counts as a miss towards admitting the file.
+     *
+     * @param blob The files document owning the chunks
+     * @return A fill to write the whole file into, or null if the file isn't admitted
+     */
+    public Fill startFill(Document blob) throws IOException {
+        if (!enabled) {
+            return null;
+        }
+
+        String key = keyOf(blob);
+        long length = GridFSRepository.lengthOf(blob);
+
+        synchronized (this) {
+            int count = misses.merge(key, 1, Integer::sum);
+            if (length > maxEntrySize.asLongValue() || length > maxSize.asLongValue()
+                    || count < admitAfterHits || entries.containsKey(key) || !filling.add(key)) {
+                return null;
+            }
+        }
+
+        Path temp = directory.resolve(key + "." + UUID.randomUUID() + ".tmp");
+        try {
+            return new Fill(key, blob.get("_id"), length, temp);
+        } catch (IOException e) {
+            synchronized (this) {
+                filling.remove(key);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Drops anything cached for the file
+     *
+     * @param blobId Id of the files document owning the chunks
+     */
+    public void invalidate(Object blobId) {
+        List<Path> removed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.blobId.equals(blobId)) {
+                    it.remove();
+                    currentSize -= entry.size;
+                    removed.add(entry.path);
+                }
+            }
+        }
+        removed.forEach(this::deleteLater);
+    }
+
+    private void commit(Fill fill) throws IOException {
+        Path target = directory.resolve(fill.key);
+        Files.move(fill.temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        List<Path> evicted = new ArrayList<>();
+        synchronized (this) {
+            filling.remove(fill.key);
+            misses.remove(fill.key);
+            entries.put(fill.key, new Entry(target, fill.length, fill.blobId));
+            currentSize += fill.length;
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (currentSize > maxSize.asLongValue() && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                currentSize -= eldest.size;
+                evicted.add(eldest.path);
+            }
+        }
+        evicted.forEach(this::deleteLater);
+    }
+
+    private void abort(Fill fill) {
+        synchronized (this) {
+            filling.remove(fill.key);
+        }
+        deleteQuietly(fill.temp);
+    }
+
+    private void deleteLater(Path path) {
+        deleter.schedule(() -> deleteQuietly(path), deleteDelaySeconds, TimeUnit.SECONDS);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Unable to delete cached file {}", path, e);
+        }
+    }
+
+    private static String keyOf(Document blob) {
+        return blob.get("_id") + "-" + GridFSRepository.metadataOf(blob).getString(GridFSRepository.HASH);
+    }
+
+    /**
+     * A file being written into the cache while it is sent to the client
+     */
+    public class Fill {
+        private final String key;
+        private final Object blobId;
+        private final long length;
+        private final Path temp;
+        private final OutputStream out;
+
+        Fill(String key, Object blobId, long length, Path temp) throws IOException {
+            this.key = key;
+            this.blobId = blobId;
+            this.length = length;
+            this.temp = temp;
+            this.out = Files.newOutputStream(temp);
+        }
+
+        /**
+         * Wraps the client output so everything written also lands in the cache
+         */
+        public OutputStream tee(OutputStream client) {
+            return new FilterOutputStream(client) {
+                @Override
+                public void write(int b) throws IOException {
+                    client.write(b);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    client.write(b, off, len);
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        /**
+         * Wraps the stored bytes so everything read also lands in the cache,
+         * the fill finishes when the stream is closed
+         */
+        public InputStream tee(InputStream source) {
+            return new FilterInputStream(source) {
+                private boolean finished;
+
+                @Override
+                public int read() throws IOException {
+                    int b = source.read();
+                    if (b != -1) {
+                        out.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = source.read(b, off, len);
+                    if (n > 0) {
+                        out.write(b, off, n);
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    // Skipped bytes still have to reach the cache
+                    byte[] discard = new byte[8192];
+                    long skipped = 0;
+                    while (skipped < n) {
+                        int read = read(discard, 0, (int) Math.min(discard.length, n - skipped));
+                        if (read == -1) {
+                            break;
+                        }
+                        skipped += read;
+                    }
+                    return skipped;
+                }
+
+                /**
+                 * Only kept if everything was read, which the length check in finish sorts out
+                 */
+                @Override
+                public void close() throws IOException {
+                    try {
+                        source.close();
+                    } finally {
+                        if (!finished) {
+                            finished = true;
+                            finish(true);
+                        }
+                    }
+                }
+            };
+        }
+
+        /**
+         * Finishes the fill, the entry is only added when complete
+         *
+         * @param success Whether the whole file was written
+         */
+        public void finish(boolean success) {
+            try {
+                out.close();
+                if (success && Files.size(temp) == length) {
+                    commit(this);
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to cache {}", key, e);
+            }
+            abort(this);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package org.acme.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import org.acme.gridfs.FilesChangeEvent;
+import org.acme.gridfs.FilesChangeStream;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.storage.ArchiveEvent;
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * In-memory Bloom filters of every stored hash and filename
+ * <p>
+ * Most existence checks are for things that aren't stored, the filters
+ * answer those without going to Mongo. A "maybe" still has to be confirmed
+ * against the database, and when the database says no it is counted as a
+ * false positive.
+ * <p>
+ * Bloom filters can't forget values, so deleted files linger until the
+ * filters are rebuilt from the files collection, either on a schedule or
+ * once enough deletes have piled up. A filter must never miss a stored value
+ * so it only answers while it is known to be complete: after the initial load
+ * and while changes from other replicas are visible (or the instance is
+ * configured as the only one).
+ */
+@ApplicationScoped
+public class ExistenceFilter {
+
+    private final static Logger LOG = LoggerFactory.getLogger(ExistenceFilter.class);
+
+    @ConfigProperty(name = "existence.filter.enabled", defaultValue = "true") boolean enabled;
+    @ConfigProperty(name = "existence.filter.falsePositiveRate", defaultValue = "0.01") double falsePositiveRate;
+    @ConfigProperty(name = "existence.filter.minCapacity", defaultValue = "100000") long minCapacity;
+    @ConfigProperty(name = "existence.filter.rebuildAfterDeletes", defaultValue = "10000") long rebuildAfterDeletes;
+    @ConfigProperty(name = "existence.filter.singleInstance", defaultValue = "false") boolean singleInstance;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    FilesChangeStream changeStream;
+
+    @Inject
+    MeterRegistry registry;
+
+    private volatile Filters current;
+    private volatile Filters building;
+    private final AtomicLong deletesSinceRebuild = new AtomicLong();
+
+    private static class Filters {
+        final BloomFilter hashes;
+        final BloomFilter filenames;
+
+        Filters(long capacity, double falsePositiveRate) {
+            hashes = new BloomFilter(capacity, falsePositiveRate);
+            filenames = new BloomFilter(capacity, falsePositiveRate);
+        }
+
+        void add(String hash, String filename) {
+            if (hash != null) {
+                hashes.put(hash);
+            }
+            if (filename != null) {
+                filenames.put(filename);
+            }
+        }
+    }
+
+    private Counter hashNegatives;
+    private Counter hashFalsePositives;
+    private Counter filenameNegatives;
+    private Counter filenameFalsePositives;
+
+    @PostConstruct
+    void init() {
+        hashNegatives = registry.counter("archive.existence.filter", Tags.of("type", "hash", "result", "negative"));
+        hashFalsePositives = registry.counter("archive.existence.filter", Tags.of("type", "hash", "result", "falsePositive"));
+        filenameNegatives = registry.counter("archive.existence.filter", Tags.of("type", "filename", "result", "negative"));
+        filenameFalsePositives = registry.counter("archive.existence.filter", Tags.of("type", "filename", "result", "falsePositive"));
+
+        // Observed FP / (FP + TN)
+        registry.gauge("archive.existence.filter.falsePositiveRate", Tags.of("type", "hash"), this,
+                f -> rate(f.hashFalsePositives, f.hashNegatives));
+        registry.gauge("archive.existence.filter.falsePositiveRate", Tags.of("type", "filename"), this,
+                f -> rate(f.filenameFalsePositives, f.filenameNegatives));
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        if (enabled) {
+            rebuild();
+        }
+    }
+
+    void onArchiveEvent(@Observes ArchiveEvent event) {
+        if (event.getType() == ArchiveEvent.Type.STORED) {
+            add(event.getFile());
+        } else {
+            deleted();
+        }
+    }
+
+    void onFilesChange(@Observes FilesChangeEvent event) {
+        switch (event.getType()) {
+            case INSERTED:
+            case UPDATED:
+                if (event.getFile() != null) {
+                    add(event.getFile());
+                }
+                break;
+            case DELETED:
+                deleted();
+                break;
+            default:
+                // The stream may have missed inserts, stop trusting the filters until reloaded
+                if (current != null) {
+                    current = null;
+                    rebuild();
+                }
+        }
+    }
+
+    /**
+     * @return false if the hash is definitely not stored
+     */
+    public boolean mightContainHash(String hash) {
+        Filters filters = usable();
+        if (filters == null || filters.hashes.mightContain(hash)) {
+            return true;
+        }
+        hashNegatives.increment();
+        return false;
+    }
+
+    /**
+     * @return false if the filename is definitely not stored
+     */
+    public boolean mightContainFilename(String filename) {
+        Filters filters = usable();
+        if (filters == null || filters.filenames.mightContain(filename)) {
+            return true;
+        }
+        filenameNegatives.increment();
+        return false;
+    }
+
+    /**
+     * Records the database answer for a lookup the filter let through
+     */
+    public void hashChecked(boolean exists) {
+        if (!exists && usable() != null) {
+            hashFalsePositives.increment();
+        }
+    }
+
+    /**
+     * Records the database answer for a lookup the filter let through
+     */
+    public void filenameChecked(boolean exists) {
+        if (!exists && usable() != null) {
+            filenameFalsePositives.increment();
+        }
+    }
+
+    /**
+     * Reloads the filters from the files collection, dropping deleted values
+     */
+    @Scheduled(every = "{existence.filter.rebuildEvery}", delayed = "{existence.filter.rebuildEvery}")
+    public synchronized void rebuild() {
+        if (!enabled) {
+            return;
+        }
+
+        long count = repository.files().estimatedDocumentCount();
+        Filters next = new Filters(Math.max(minCapacity, count * 2), falsePositiveRate);
+
+        // Anything stored while loading goes into both
+        building = next;
+        deletesSinceRebuild.set(0);
+        try {
+            long loaded = 0;
+            for (Document file : repository.files()
+                    .find()
+                    .projection(include(GridFSRepository.FILENAME, GridFSRepository.METADATA_HASH))
+                    .batchSize(5000)) {
+                addTo(next, file);
+                loaded++;
+            }
+            current = next;
+            LOG.info("Loaded existence filters with {} files, expected false positive rate {}",
+                    loaded, next.hashes.expectedFalsePositiveRate());
+        } catch (RuntimeException e) {
+            LOG.error("Unable to load existence filters, lookups will go to the database", e);
+        } finally {
+            building = null;
+        }
+    }
+
+    private Filters usable() {
+        if (!enabled || !(singleInstance || changeStream.isActive())) {
+            return null;
+        }
+        return current;
+    }
+
+    private void add(Document file) {
+        Filters filters = current;
+        if (filters != null) {
+            addTo(filters, file);
+        }
+        Filters next = building;
+        if (next != null) {
+            addTo(next, file);
+        }
+    }
+
+    private void deleted() {
+        if (enabled && deletesSinceRebuild.incrementAndGet() == rebuildAfterDeletes) {
+            Thread rebuilder = new Thread(this::rebuild, "existence-filter-rebuild");
+            rebuilder.setDaemon(true);
+            rebuilder.start();
+        }
+    }
+
+    private static void addTo(Filters filters, Document file) {
+        filters.add(GridFSRepository.metadataOf(file).getString(GridFSRepository.HASH), file.getString(GridFSRepository.FILENAME));
+    }
+
+    private static double rate(Counter falsePositives, Counter negatives) {
+        double total = falsePositives.count() + negatives.count();
+        return total == 0 ? 0 : falsePositives.count() / total;
+    }
+}
@@ -0,0 +1,169 @@
+package org.acme.cache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import org.acme.gridfs.FilesChangeEvent;
+import org.acme.gridfs.FilesChangeStream;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.service.MongoGridFSService;
+import org.acme.storage.ArchiveEvent;
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * In-process cache of file records and existence checks in front of the {@link MongoGridFSService}
+ * <p>
+ * Hash and filename checks ask the {@link ExistenceFilter} first, so
+ * definite negatives never reach the cache or the database.
+ * <p>
+ * Entries are dropped straight away when this instance stores or deletes a
+ * file. When running several replicas, changes made by the others are picked
+ * up from the {@link FilesChangeStream}; if the deployment doesn't support
+ * change streams (standalone mongod) the TTL bounds how stale an entry can
+ * get instead.
+ */
+@ApplicationScoped
+public class MetadataCache {
+
+    @ConfigProperty(name = "cache.metadata.enabled", defaultValue = "true") boolean enabled;
+    @ConfigProperty(name = "cache.metadata.maxEntries", defaultValue = "10000") int maxEntries;
+    @ConfigProperty(name = "cache.metadata.ttl", defaultValue = "30S") Duration ttl;
+
+    @Inject
+    MongoGridFSService mongoGridFSService;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    ExistenceFilter existenceFilter;
+
+    @Inject
+    MeterRegistry registry;
+
+    private TtlCache<String, Document> files;
+    private TtlCache<String, Boolean> idExists;
+    private TtlCache<String, Boolean> filenameExists;
+    private TtlCache<String, Boolean> hashExists;
+
+    void onStart(@Observes StartupEvent event) {
+        files = new TtlCache<>("files", maxEntries, ttl, registry);
+        idExists = new TtlCache<>("idExists", maxEntries, ttl, registry);
+        filenameExists = new TtlCache<>("filenameExists", maxEntries, ttl, registry);
+        hashExists = new TtlCache<>("hashExists", maxEntries, ttl, registry);
+    }
+
+    void onArchiveEvent(@Observes ArchiveEvent event) {
+        Document file = event.getFile();
+        if (event.getType() == ArchiveEvent.Type.STORED) {
+            stored(file.get("_id"), file.getString(GridFSRepository.FILENAME),
+                    GridFSRepository.metadataOf(file).getString(GridFSRepository.HASH));
+        } else {
+            deleted(file.get("_id"));
+        }
+    }
+
+    /**
+     * Cached version of {@link GridFSRepository#findFile(String)}
+     */
+    public Document findFile(String id) {
+        return enabled ? files.get(id, repository::findFile) : repository.findFile(id);
+    }
+
+    /**
+     * Cached version of {@link GridFSRepository#findBlob(Document)}
+     */
+    public Document findBlob(Document file) {
+        Object blobId = GridFSRepository.metadataOf(file).get(GridFSRepository.BLOB_ID);
+        return blobId == null ? file : findFile(blobId.toString());
+    }
+
+    public boolean fileIDExists(String id) {
+        return enabled ? idExists.get(id, mongoGridFSService::fileIDExists) : mongoGridFSService.fileIDExists(id);
+    }
+
+    public boolean filenameExists(String filename) {
+        if (!existenceFilter.mightContainFilename(filename)) {
+            return false;
+        }
+        boolean exists = enabled ? filenameExists.get(filename, mongoGridFSService::filenameExists) : mongoGridFSService.filenameExists(filename);
+        existenceFilter.filenameChecked(exists);
+        return exists;
+    }
+
+    public boolean hashExists(String hash) {
+        if (!existenceFilter.mightContainHash(hash)) {
+            return false;
+        }
+        boolean exists = enabled ? hashExists.get(hash, mongoGridFSService::hashExists) : mongoGridFSService.hashExists(hash);
+        existenceFilter.hashChecked(exists);
+        return exists;
+    }
+
+    private void stored(Object id, String filename, String hash) {
+        String key = String.valueOf(id);
+        idExists.invalidate(key);
+        files.invalidate(key);
+        if (filename != null) {
+            filenameExists.invalidate(filename);
+        }
+        if (hash != null) {
+            hashExists.invalidate(hash);
+        }
+    }
+
+    private void deleted(Object id) {
+        String key = String.valueOf(id);
+        idExists.invalidate(key);
+        files.invalidate(key);
+
+        // Records sharing the chunks may have been re-pointed at a new owner
+        files.invalidateIf((k, file) -> Objects.equals(GridFSRepository.metadataOf(file).get(GridFSRepository.BLOB_ID), id));
+
+        // Other records can still have the same name or content
+        // so only cached positives are worth dropping
+        filenameExists.invalidateIf((k, exists) -> exists);
+        hashExists.invalidateIf((k, exists) -> exists);
+    }
+
+    private void invalidateAll() {
+        files.invalidateAll();
+        idExists.invalidateAll();
+        filenameExists.invalidateAll();
+        hashExists.invalidateAll();
+    }
+
+    /**
+     * Changes made by any instance, including this one
+     */
+    void onFilesChange(@Observes FilesChangeEvent event) {
+        if (!enabled) {
+            return;
+        }
+
+        switch (event.getType()) {
+            case INSERTED:
+            case UPDATED:
+                Document file = event.getFile();
+                if (file != null) {
+                    stored(file.get("_id"), file.getString(GridFSRepository.FILENAME),
+                            GridFSRepository.metadataOf(file).getString(GridFSRepository.HASH));
+                } else if (event.getId() != null) {
+                    deleted(event.getId());
+                }
+                break;
+            case DELETED:
+                deleted(event.getId());
+                break;
+            default:
+                // Drops, restarts etc. leave nothing we can trust
+                invalidateAll();
+        }
+    }
+}
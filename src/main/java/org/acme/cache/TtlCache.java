@@ -0,0 +1,108 @@
+package org.acme.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * Small bounded LRU cache where entries also expire after a fixed time
+ * <p>
+ * Loads happen outside the lock, so to avoid caching a value that was
+ * invalidated while it was being loaded, every invalidation bumps a
+ * generation and a load is only kept if no invalidation happened meanwhile.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class TtlCache<K, V> {
+
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private final Counter hits;
+    private final Counter misses;
+    private long generation;
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param name       Name used for the metrics tag
+     * @param maxEntries Most entries to keep before evicting the least recently used
+     * @param ttl        How long an entry is valid for
+     * @param registry   Where to publish the hit/miss counters
+     */
+    public TtlCache(String name, int maxEntries, Duration ttl, MeterRegistry registry) {
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.hits = registry.counter("archive.cache.requests", Tags.of("cache", name, "result", "hit"));
+        this.misses = registry.counter("archive.cache.requests", Tags.of("cache", name, "result", "miss"));
+        registry.gauge("archive.cache.size", Tags.of("cache", name), this, TtlCache::size);
+    }
+
+    /**
+     * Returns the cached value or loads it, null values are not cached
+     */
+    public V get(K key, Function<K, V> loader) {
+        long loadGeneration;
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits.increment();
+                return entry.value;
+            }
+            loadGeneration = generation;
+        }
+
+        misses.increment();
+        V value = loader.apply(key);
+
+        if (value != null) {
+            synchronized (this) {
+                if (loadGeneration == generation) {
+                    entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+                }
+            }
+        }
+        return value;
+    }
+
+    public synchronized void invalidate(K key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    /**
+     * Removes every entry matching the predicate
+     */
+    public synchronized void invalidateIf(BiPredicate<K, V> predicate) {
+        generation++;
+        entries.entrySet().removeIf(e -> predicate.test(e.getKey(), e.getValue().value));
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
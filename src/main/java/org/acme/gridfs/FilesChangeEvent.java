@@ -0,0 +1,48 @@
+package org.acme.gridfs;
+
+import org.bson.Document;
+
+/**
+ * A change to the files collection seen on the change stream, made by this
+ * or any other instance of the service
+ */
+public class FilesChangeEvent {
+
+    public enum Type {
+        INSERTED,
+        UPDATED,
+        DELETED,
+
+        // Anything that can't be tied to a single file, e.g. the collection
+        // was dropped or the stream had to restart and may have missed changes
+        RESET
+    }
+
+    private final Type type;
+    private final Object id;
+    private final Document file;
+
+    public FilesChangeEvent(Type type, Object id, Document file) {
+        this.type = type;
+        this.id = id;
+        this.file = file;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Id of the changed file, null for {@link Type#RESET}
+     */
+    public Object getId() {
+        return id;
+    }
+
+    /**
+     * Current files document for inserts and updates when available, otherwise null
+     */
+    public Document getFile() {
+        return file;
+    }
+}
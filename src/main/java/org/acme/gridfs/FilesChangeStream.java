@@ -0,0 +1,127 @@
+package org.acme.gridfs;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+/**
+ * Follows the change stream of the files collection and fires a
+ * {@link FilesChangeEvent} for every change, so in-memory state can
+ * track uploads and deletes made by other replicas
+ * <p>
+ * Change streams need a replica set; on a standalone server the stream
+ * stops and {@link #isActive()} reports false so callers can fall back.
+ */
+@ApplicationScoped
+public class FilesChangeStream {
+
+    private final static Logger LOG = LoggerFactory.getLogger(FilesChangeStream.class);
+
+    @ConfigProperty(name = "gridfs.changeStream.enabled", defaultValue = "true") boolean enabled;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    Event<FilesChangeEvent> events;
+
+    private volatile boolean running;
+    private volatile boolean active;
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+
+    void onStart(@Observes StartupEvent event) {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        active = true;
+        Thread watcher = new Thread(this::watch, "files-change-stream");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        running = false;
+        MongoChangeStreamCursor<?> current = cursor;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * Whether changes from other instances are being followed
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    private void watch() {
+        BsonDocument resumeToken = null;
+        while (running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> changes = (resumeToken == null
+                    ? repository.files().watch()
+                    : repository.files().watch().resumeAfter(resumeToken))
+                    .fullDocument(FullDocument.UPDATE_LOOKUP)
+                    .cursor()) {
+
+                cursor = changes;
+                while (running && changes.hasNext()) {
+                    ChangeStreamDocument<Document> change = changes.next();
+                    resumeToken = change.getResumeToken();
+                    events.fire(toEvent(change));
+                }
+            } catch (MongoCommandException e) {
+                // Standalone servers don't support change streams
+                LOG.warn("Change streams unavailable, changes from other instances won't be seen: {}", e.getErrorMessage());
+                active = false;
+                return;
+            } catch (RuntimeException e) {
+                if (running) {
+                    LOG.warn("Files change stream failed, restarting", e);
+                    events.fire(new FilesChangeEvent(FilesChangeEvent.Type.RESET, null, null));
+                    sleepQuietly();
+                }
+            }
+        }
+    }
+
+    private static FilesChangeEvent toEvent(ChangeStreamDocument<Document> change) {
+        BsonDocument key = change.getDocumentKey();
+        BsonValue id = key != null ? key.get("_id") : null;
+        Object fileId = id != null && id.isObjectId() ? id.asObjectId().getValue() : null;
+
+        switch (change.getOperationType()) {
+            case INSERT:
+                return new FilesChangeEvent(FilesChangeEvent.Type.INSERTED, fileId, change.getFullDocument());
+            case REPLACE:
+            case UPDATE:
+                return new FilesChangeEvent(FilesChangeEvent.Type.UPDATED, fileId, change.getFullDocument());
+            case DELETE:
+                return new FilesChangeEvent(FilesChangeEvent.Type.DELETED, fileId, null);
+            default:
+                return new FilesChangeEvent(FilesChangeEvent.Type.RESET, null, null);
+        }
+    }
+
+    private static void sleepQuietly() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
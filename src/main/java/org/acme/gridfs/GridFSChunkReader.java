@@ -0,0 +1,307 @@
+package org.acme.gridfs;
+
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoCursor;
+import org.acme.metrics.ArchiveMetrics;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * Reads byte ranges of a GridFS file straight from the chunks collection
+ * <p>
+ * Rather than opening a download stream and skipping the leading bytes,
+ * the first and last chunk numbers are computed from the offset and the
+ * file's chunk size, so only the chunks covering the range are read from Mongo.
+ * The time spent waiting on each chunk is recorded in {@link ArchiveMetrics}.
+ * <p>
+ * With a read-ahead window above one, the next chunks are fetched by (files_id, n)
+ * in parallel while the current one is written, so a download isn't limited to one
+ * chunk per round trip to Mongo. The fetches run on a small shared pool, which caps
+ * how many connections downloads can take from the Mongo pool. Each download holds at
+ * most window chunks: the driver allocates the array for every chunk it decodes, so
+ * the bound comes from the window rather than from reusing buffers.
+ */
+@ApplicationScoped
+public class GridFSChunkReader {
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    ArchiveMetrics metrics;
+
+    @ConfigProperty(name = "gridfs.readAhead.window", defaultValue = "4") int readAheadWindow;
+    @ConfigProperty(name = "gridfs.readAhead.threads", defaultValue = "16") int readAheadThreads;
+
+    private ExecutorService fetchers;
+
+    @PostConstruct
+    void init() {
+        AtomicInteger count = new AtomicInteger();
+        fetchers = Executors.newFixedThreadPool(readAheadThreads, runnable -> {
+            Thread thread = new Thread(runnable, "chunk-fetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        fetchers.shutdownNow();
+    }
+
+    /**
+     * Writes the whole file to the output
+     *
+     * @param file The files document owning the chunks
+     * @param out  Where to write the bytes
+     */
+    public void copyAll(Document file, OutputStream out) throws IOException {
+        long length = GridFSRepository.lengthOf(file);
+        if (length > 0) {
+            copyRange(file, 0, length - 1, out);
+        }
+    }
+
+    /**
+     * Opens a stream over the whole file, pulling chunks from Mongo as it is read
+     *
+     * @param file The files document owning the chunks
+     */
+    public InputStream openStream(Document file) {
+        long length = GridFSRepository.lengthOf(file);
+        int chunkSize = GridFSRepository.chunkSizeOf(file);
+        int chunkCount = (int) ((length + chunkSize - 1) / chunkSize);
+        Object filesId = GridFSRepository.chunksIdOf(file);
+
+        ChunkSource chunks = openChunks(filesId, 0, chunkCount - 1);
+
+        return new InputStream() {
+            private byte[] current = new byte[0];
+            private int pos;
+            private int expected;
+
+            @Override
+            public int read() throws IOException {
+                if (!ensureData()) {
+                    return -1;
+                }
+                return current[pos++] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!ensureData()) {
+                    return -1;
+                }
+                int n = Math.min(len, current.length - pos);
+                System.arraycopy(current, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+                chunks.close();
+            }
+
+            private boolean ensureData() throws IOException {
+                while (pos == current.length) {
+                    if (expected == chunkCount) {
+                        return false;
+                    }
+                    Document chunk = chunks.next();
+                    if (chunk == null || chunk.getInteger(GridFSRepository.CHUNK_NUMBER) != expected) {
+                        throw new MongoGridFSException("Missing chunk " + expected + " for file " + filesId);
+                    }
+                    current = chunk.get(GridFSRepository.CHUNK_DATA, Binary.class).getData();
+                    pos = 0;
+                    expected++;
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Writes the bytes from start to end (inclusive) of the file to the output
+     *
+     * @param file  The files document owning the chunks
+     * @param start First byte offset
+     * @param end   Last byte offset (inclusive)
+     * @param out   Where to write the bytes
+     */
+    public void copyRange(Document file, long start, long end, OutputStream out) throws IOException {
+        long length = GridFSRepository.lengthOf(file);
+        if (start < 0 || end >= length || start > end) {
+            throw new IllegalArgumentException("Invalid range " + start + "-" + end + " for length " + length);
+        }
+
+        int chunkSize = GridFSRepository.chunkSizeOf(file);
+        int firstChunk = (int) (start / chunkSize);
+        int lastChunk = (int) (end / chunkSize);
+
+        Object filesId = GridFSRepository.chunksIdOf(file);
+        int expected = firstChunk;
+
+        try (ChunkSource chunks = openChunks(filesId, firstChunk, lastChunk)) {
+            Document chunk;
+            while ((chunk = chunks.next()) != null) {
+                int n = chunk.getInteger(GridFSRepository.CHUNK_NUMBER);
+                if (n != expected) {
+                    throw new MongoGridFSException("Missing chunk " + expected + " for file " + filesId);
+                }
+
+                byte[] data = chunk.get(GridFSRepository.CHUNK_DATA, Binary.class).getData();
+                long chunkStart = (long) n * chunkSize;
+
+                // Only the first and last chunks need trimming
+                int from = (int) Math.max(0, start - chunkStart);
+                int to = (int) Math.min(data.length, end - chunkStart + 1);
+                out.write(data, from, to - from);
+
+                expected++;
+            }
+        }
+
+        if (expected != lastChunk + 1) {
+            throw new MongoGridFSException("Missing chunk " + expected + " for file " + filesId);
+        }
+    }
+
+    /**
+     * The chunks of a file in order
+     */
+    private interface ChunkSource extends AutoCloseable {
+
+        /**
+         * @return The next chunk, or null when there are no more (or the next one is missing)
+         */
+        Document next() throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Reads the chunks first to last (inclusive), in parallel when read-ahead is on
+     */
+    private ChunkSource openChunks(Object filesId, int firstChunk, int lastChunk) {
+        if (readAheadWindow > 1 && lastChunk > firstChunk) {
+            return new ReadAheadChunks(filesId, firstChunk, lastChunk);
+        }
+
+        MongoCursor<Document> cursor = repository.chunks()
+                .find(and(eq(GridFSRepository.FILES_ID, filesId),
+                        gte(GridFSRepository.CHUNK_NUMBER, firstChunk),
+                        lte(GridFSRepository.CHUNK_NUMBER, lastChunk)))
+                .sort(ascending(GridFSRepository.CHUNK_NUMBER))
+                .batchSize(2)
+                .iterator();
+
+        return new ChunkSource() {
+            @Override
+            public Document next() {
+                // Time how long we wait for each chunk
+                long start = System.nanoTime();
+                Document chunk = cursor.hasNext() ? cursor.next() : null;
+                if (chunk != null) {
+                    metrics.recordChunkRead(System.nanoTime() - start);
+                }
+                return chunk;
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    /**
+     * Keeps up to window chunk fetches in flight, handing the chunks back in order
+     */
+    private class ReadAheadChunks implements ChunkSource {
+
+        private final Object filesId;
+        private final int lastChunk;
+        private final Deque<Future<Document>> inFlight = new ArrayDeque<>();
+        private int nextToFetch;
+
+        ReadAheadChunks(Object filesId, int firstChunk, int lastChunk) {
+            this.filesId = filesId;
+            this.lastChunk = lastChunk;
+            this.nextToFetch = firstChunk;
+            fill();
+        }
+
+        private void fill() {
+            while (inFlight.size() < readAheadWindow && nextToFetch <= lastChunk) {
+                int n = nextToFetch++;
+                inFlight.addLast(fetchers.submit(() -> repository.chunks()
+                        .find(and(eq(GridFSRepository.FILES_ID, filesId), eq(GridFSRepository.CHUNK_NUMBER, n)))
+                        .first()));
+            }
+        }
+
+        @Override
+        public Document next() throws IOException {
+            Future<Document> fetch = inFlight.pollFirst();
+            if (fetch == null) {
+                return null;
+            }
+
+            // Keep the window full while we wait for this one
+            fill();
+
+            long start = System.nanoTime();
+            Document chunk;
+            try {
+                chunk = fetch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading chunks of " + filesId);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException("Failed reading chunks of " + filesId, e.getCause());
+            }
+            metrics.recordChunkRead(System.nanoTime() - start);
+            return chunk;
+        }
+
+        @Override
+        public void close() {
+            // Fetches already running finish and are dropped, interrupting them would cost the connection
+            inFlight.forEach(fetch -> fetch.cancel(false));
+            inFlight.clear();
+        }
+    }
+}
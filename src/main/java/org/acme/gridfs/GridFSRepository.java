@@ -0,0 +1,193 @@
+package org.acme.gridfs;
+
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.acme.exceptions.InvalidRequestException;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * Direct access to the raw GridFS collections backing the {@link org.acme.service.MongoGridFSService}
+ * <p>
+ * The service only exposes whole-file operations, so anything that needs to
+ * work at the chunk level (ranged reads, streaming writes, etc.) goes through here
+ * using the same database/bucket configuration.
+ */
+@ApplicationScoped
+public class GridFSRepository {
+
+    // Field names used by the GridFS spec
+    public static final String FILES_ID = "files_id";
+    public static final String CHUNK_NUMBER = "n";
+    public static final String CHUNK_DATA = "data";
+    public static final String LENGTH = "length";
+    public static final String CHUNK_SIZE = "chunkSize";
+    public static final String FILENAME = "filename";
+    public static final String UPLOAD_DATE = "uploadDate";
+    public static final String METADATA = "metadata";
+
+    // Metadata keys shared with the MongoGridFSService
+    public static final String HASH = "hash";
+    public static final String TICKET_NUMBER = "ticketNumber";
+    public static final String METADATA_HASH = METADATA + "." + HASH;
+
+    // Deduplication: a file either owns its chunks and counts how many
+    // records share them, or points at the file that does
+    public static final String BLOB_ID = "blobId";
+    public static final String REF_COUNT = "refCount";
+    public static final String METADATA_BLOB_ID = METADATA + "." + BLOB_ID;
+    public static final String METADATA_REF_COUNT = METADATA + "." + REF_COUNT;
+
+    // An owner that took over the chunks of another names the files_id they are
+    // stored under, the chunks are never re-keyed so running reads aren't cut off
+    public static final String CHUNKS_ID = "chunksId";
+    public static final String METADATA_CHUNKS_ID = METADATA + "." + CHUNKS_ID;
+
+    // Claim (an ObjectId, so it carries its time) held while a record is being deleted
+    public static final String DELETING = "deleting";
+    public static final String METADATA_DELETING = METADATA + "." + DELETING;
+
+    // Files stored with a codec keep the codec name and the length of the
+    // original bytes, the GridFS length is that of the stored bytes
+    public static final String ENCODING = "encoding";
+    public static final String ORIGINAL_LENGTH = "originalLength";
+    public static final String METADATA_TICKET_NUMBER = METADATA + "." + TICKET_NUMBER;
+
+    // Files whose bytes were moved out of GridFS name the tier holding them
+    // and where in it, files without a tier have their bytes in the chunks
+    public static final String TIER = "tier";
+    public static final String LOCATION = "location";
+    public static final String MIGRATED_AT = "migratedAt";
+    public static final String METADATA_TIER = METADATA + "." + TIER;
+    public static final String METADATA_LOCATION = METADATA + "." + LOCATION;
+    public static final String METADATA_MIGRATED_AT = METADATA + "." + MIGRATED_AT;
+
+    // Set while an instance copies the bytes to another tier
+    public static final String MIGRATION_CLAIM = "migrationClaim";
+    public static final String METADATA_MIGRATION_CLAIM = METADATA + "." + MIGRATION_CLAIM;
+
+    @ConfigProperty(name = "quarkus.mongodb.database") String databaseName;
+    @ConfigProperty(name = "gridfs.bucketName") String bucketName;
+    @ConfigProperty(name = "gridfs.chunkSize") int chunkSize;
+
+    @Inject
+    MongoClient client;
+
+    public MongoDatabase database() {
+        return client.getDatabase(databaseName);
+    }
+
+    public MongoCollection<Document> files() {
+        return database().getCollection(bucketName + ".files");
+    }
+
+    public MongoCollection<Document> chunks() {
+        return database().getCollection(bucketName + ".chunks");
+    }
+
+    public String bucketName() {
+        return bucketName;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Converts the string id into an ObjectId
+     *
+     * @param id Hex string id of the file
+     * @return The ObjectId
+     * @throws InvalidRequestException if the id is not a valid ObjectId
+     */
+    public static ObjectId toObjectId(String id) {
+        if (id == null || !ObjectId.isValid(id)) {
+            throw new InvalidRequestException("Invalid ID: " + id);
+        }
+        return new ObjectId(id);
+    }
+
+    /**
+     * Loads the files document for the specified id
+     *
+     * @param id Hex string id of the file
+     * @return The files document
+     * @throws InvalidRequestException if the id is invalid or no file exists
+     */
+    public Document findFile(String id) {
+        Document file = files().find(eq("_id", toObjectId(id))).first();
+        if (file == null) {
+            throw new InvalidRequestException("File not found: " + id);
+        }
+        return file;
+    }
+
+    /**
+     * Resolves the file that actually holds the chunks for this record
+     * <p>
+     * Deduplicated records point at the file owning the shared chunks,
+     * everything else owns its own.
+     *
+     * @param file The files document of the record
+     * @return The files document owning the chunks
+     */
+    public Document findBlob(Document file) {
+        Object blobId = metadataOf(file).get(BLOB_ID);
+        if (blobId == null) {
+            return file;
+        }
+        Document blob = files().find(eq("_id", blobId)).first();
+        if (blob == null) {
+            throw new MongoGridFSException("Missing blob " + blobId + " for file " + file.get("_id"));
+        }
+        return blob;
+    }
+
+    /**
+     * Metadata of the file, never null
+     */
+    public static Document metadataOf(Document file) {
+        Document metadata = file.get(METADATA, Document.class);
+        return metadata != null ? metadata : new Document();
+    }
+
+    /**
+     * The files_id the chunks of the file are stored under
+     */
+    public static Object chunksIdOf(Document file) {
+        Object chunksId = metadataOf(file).get(CHUNKS_ID);
+        return chunksId != null ? chunksId : file.get("_id");
+    }
+
+    /**
+     * Length of the stored bytes
+     */
+    public static long lengthOf(Document file) {
+        return ((Number) file.get(LENGTH)).longValue();
+    }
+
+    /**
+     * Length of the file's content once decoded, the same as
+     * {@link #lengthOf(Document)} unless it was stored with a codec
+     */
+    public static long contentLengthOf(Document file) {
+        Object original = metadataOf(file).get(ORIGINAL_LENGTH);
+        return original != null ? ((Number) original).longValue() : lengthOf(file);
+    }
+
+    /**
+     * Chunk size the file was written with, which may differ
+     * from the currently configured chunk size
+     */
+    public static int chunkSizeOf(Document file) {
+        return ((Number) file.get(CHUNK_SIZE)).intValue();
+    }
+}
@@ -0,0 +1,194 @@
+package org.acme.gridfs;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import org.acme.metrics.ArchiveMetrics;
+import org.acme.storage.StorageCodec;
+import org.apache.commons.codec.binary.Hex;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Writes an incoming stream straight into GridFS one chunk at a time
+ * <p>
+ * Only a single chunk sized buffer is held per upload, and since every chunk
+ * insert blocks until Mongo acknowledges it, the rate we pull from the request
+ * body is the rate Mongo can write. The SHA-256 is computed in the same pass
+ * and stored under the same metadata key {@link org.acme.service.MongoGridFSService}
+ * uses for its hash lookups. When a codec is used, the hash and length
+ * are still those of the original bytes.
+ * <p>
+ * Deduplication is not handled here, see {@link org.acme.storage.ArchiveStore}.
+ */
+@ApplicationScoped
+public class GridFSStreamingUploader {
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    ArchiveMetrics metrics;
+
+    /**
+     * Streams the input into a new GridFS file
+     *
+     * @param in       The data to store, read until the end of the stream
+     * @param filename Name of the file
+     * @param metaData Extra metadata to store with the file
+     * @param codec    How to encode the bytes in storage
+     * @return The id, hash and length of the newly created file
+     */
+    public Result upload(InputStream in, String filename, Map<String, Object> metaData, StorageCodec codec) throws IOException {
+        GridFSBucket bucket = GridFSBuckets.create(repository.database(), repository.bucketName());
+        // Everything known up front goes in with the files document, so it is
+        // never visible without its count or encoding. This file is the only
+        // reference to its chunks so far
+        Document metadata = new Document(metaData).append(GridFSRepository.REF_COUNT, 1);
+        if (codec != StorageCodec.NONE) {
+            metadata.append(GridFSRepository.ENCODING, codec.getEncoding());
+        }
+        GridFSUploadOptions options = new GridFSUploadOptions()
+                .chunkSizeBytes(repository.chunkSize())
+                .metadata(metadata);
+
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[repository.chunkSize()];
+        long length = 0;
+
+        GridFSUploadStream upload = bucket.openUploadStream(filename, options);
+        try {
+            // The upload stream is closed separately so the id is still available after
+            OutputStream target = codec.encode(new NonClosingOutputStream(upload));
+
+            int filled;
+            while ((filled = readChunk(in, buffer)) > 0) {
+                // Hash the original bytes, not the encoded ones
+                digest.update(buffer, 0, filled);
+                metrics.uploadedBytes(filled);
+
+                // A full chunk is written to Mongo before this returns, this is the
+                // storage side of the upload time as opposed to reading the request
+                long start = System.nanoTime();
+                target.write(buffer, 0, filled);
+                metrics.recordChunkWrite(System.nanoTime() - start);
+                length += filled;
+            }
+            target.close();
+            upload.close();
+        } catch (IOException | RuntimeException e) {
+            // Removes any chunks already written
+            upload.abort();
+            throw e;
+        }
+
+        ObjectId id = upload.getObjectId();
+        String hash = Hex.encodeHexString(digest.digest());
+
+        // Only known once everything is read, and the driver writes the files document
+        // when the stream closes. Until this update the file has no hash, so
+        // ArchiveStore.findOwner doesn't match it and an identical upload in the
+        // meantime is stored in full rather than deduplicated against it.
+        // An encoded file also reports its stored length for that moment
+        List<Bson> updates = new ArrayList<>();
+        updates.add(set(GridFSRepository.METADATA_HASH, hash));
+        if (codec != StorageCodec.NONE) {
+            updates.add(set(GridFSRepository.METADATA + "." + GridFSRepository.ORIGINAL_LENGTH, length));
+        }
+        repository.files().updateOne(eq("_id", id), combine(updates));
+
+        return new Result(id, hash, length);
+    }
+
+    /**
+     * Outcome of an upload
+     */
+    public static class Result {
+        private final ObjectId id;
+        private final String hash;
+        private final long length;
+
+        public Result(ObjectId id, String hash, long length) {
+            this.id = id;
+            this.hash = hash;
+            this.length = length;
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Length of the original data, before any encoding
+         */
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Keeps the encoder from closing the upload stream underneath us
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends, so
+     * every write to GridFS is a whole chunk
+     */
+    public static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            int read = in.read(buffer, filled, buffer.length - filled);
+            if (read == -1) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
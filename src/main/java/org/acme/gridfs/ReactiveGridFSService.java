@@ -0,0 +1,144 @@
+package org.acme.gridfs;
+
+import com.mongodb.MongoGridFSException;
+import io.netty.buffer.Unpooled;
+import io.quarkus.mongodb.FindOptions;
+import io.quarkus.mongodb.reactive.ReactiveMongoClient;
+import io.quarkus.mongodb.reactive.ReactiveMongoCollection;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.core.buffer.Buffer;
+import org.acme.exceptions.InvalidRequestException;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * Non-blocking access to the GridFS collections on the reactive streams driver
+ * <p>
+ * The read side of {@link GridFSRepository} and {@link GridFSChunkReader}, returning
+ * Uni/Multi instead of blocking. Chunks are only fetched from Mongo as the
+ * subscriber requests them, so a slow client holds back the cursor rather
+ * than a thread or a growing buffer.
+ */
+@ApplicationScoped
+public class ReactiveGridFSService {
+
+    // Chunks fetched from Mongo per round trip
+    private static final int CHUNK_BATCH_SIZE = 2;
+
+    @ConfigProperty(name = "quarkus.mongodb.database") String databaseName;
+    @ConfigProperty(name = "gridfs.bucketName") String bucketName;
+
+    @Inject
+    ReactiveMongoClient client;
+
+    public ReactiveMongoCollection<Document> files() {
+        return client.getDatabase(databaseName).getCollection(bucketName + ".files");
+    }
+
+    public ReactiveMongoCollection<Document> chunks() {
+        return client.getDatabase(databaseName).getCollection(bucketName + ".chunks");
+    }
+
+    /**
+     * Loads the files document for the specified id
+     *
+     * @param id Hex string id of the file
+     * @return The files document, fails with InvalidRequestException if the id is invalid or no file exists
+     */
+    public Uni<Document> findFile(String id) {
+        ObjectId objectId;
+        try {
+            objectId = GridFSRepository.toObjectId(id);
+        } catch (InvalidRequestException e) {
+            return Uni.createFrom().failure(e);
+        }
+        return files().find(eq("_id", objectId), new FindOptions().limit(1)).toUni()
+                .onItem().ifNull().failWith(() -> new InvalidRequestException("File not found: " + id));
+    }
+
+    /**
+     * Resolves the file that actually holds the chunks for this record
+     *
+     * @see GridFSRepository#findBlob(Document)
+     */
+    public Uni<Document> findBlob(Document file) {
+        Object blobId = GridFSRepository.metadataOf(file).get(GridFSRepository.BLOB_ID);
+        if (blobId == null) {
+            return Uni.createFrom().item(file);
+        }
+        return files().find(eq("_id", blobId), new FindOptions().limit(1)).toUni()
+                .onItem().ifNull().failWith(() -> new MongoGridFSException("Missing blob " + blobId + " for file " + file.get("_id")));
+    }
+
+    /**
+     * Streams the stored bytes of the whole file
+     *
+     * @param file The files document owning the chunks
+     */
+    public Multi<Buffer> read(Document file) {
+        long length = GridFSRepository.lengthOf(file);
+        return length == 0 ? Multi.createFrom().empty() : read(file, 0, length - 1);
+    }
+
+    /**
+     * Streams the bytes from start to end (inclusive) of the file, one buffer per chunk
+     * <p>
+     * The buffers wrap the chunk data returned by the driver, nothing is copied.
+     *
+     * @param file  The files document owning the chunks
+     * @param start First byte offset
+     * @param end   Last byte offset (inclusive)
+     */
+    public Multi<Buffer> read(Document file, long start, long end) {
+        long length = GridFSRepository.lengthOf(file);
+        if (start < 0 || end >= length || start > end) {
+            return Multi.createFrom().failure(new IllegalArgumentException("Invalid range " + start + "-" + end + " for length " + length));
+        }
+
+        int chunkSize = GridFSRepository.chunkSizeOf(file);
+        int firstChunk = (int) (start / chunkSize);
+        int lastChunk = (int) (end / chunkSize);
+        Object filesId = GridFSRepository.chunksIdOf(file);
+
+        // Read per subscription so the stream can be subscribed to again
+        return Multi.createFrom().deferred(() -> {
+            AtomicInteger expected = new AtomicInteger(firstChunk);
+
+            return chunks().find(and(eq(GridFSRepository.FILES_ID, filesId),
+                                    gte(GridFSRepository.CHUNK_NUMBER, firstChunk),
+                                    lte(GridFSRepository.CHUNK_NUMBER, lastChunk)),
+                            new FindOptions().sort(ascending(GridFSRepository.CHUNK_NUMBER)).batchSize(CHUNK_BATCH_SIZE))
+                    .onItem().transform(chunk -> {
+                        int n = chunk.getInteger(GridFSRepository.CHUNK_NUMBER);
+                        if (n != expected.get()) {
+                            throw new MongoGridFSException("Missing chunk " + expected.get() + " for file " + filesId);
+                        }
+                        expected.incrementAndGet();
+
+                        byte[] data = chunk.get(GridFSRepository.CHUNK_DATA, Binary.class).getData();
+                        long chunkStart = (long) n * chunkSize;
+
+                        // Only the first and last chunks need trimming
+                        int from = (int) Math.max(0, start - chunkStart);
+                        int to = (int) Math.min(data.length, end - chunkStart + 1);
+                        return Buffer.newInstance(io.vertx.core.buffer.Buffer.buffer(Unpooled.wrappedBuffer(data, from, to - from)));
+                    })
+                    .onCompletion().switchTo(() -> expected.get() == lastChunk + 1
+                            ? Multi.createFrom().empty()
+                            : Multi.createFrom().failure(new MongoGridFSException("Missing chunk " + expected.get() + " for file " + filesId)));
+        });
+    }
+}
@@ -0,0 +1,170 @@
+package org.acme.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.smallrye.mutiny.Multi;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Application metrics for the transfer and query paths
+ * <p>
+ * Everything on the streaming path is recorded once per write or chunk, which
+ * are chunk sized, so the cost is a few adds per megabyte. The per-endpoint
+ * latency comes from the built in http.server.requests timer, see
+ * {@link MetricsConfiguration} for the histogram settings.
+ */
+@ApplicationScoped
+public class ArchiveMetrics {
+
+    @Inject
+    MeterRegistry registry;
+
+    private Counter uploadCounter;
+    private Counter downloadCounter;
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private Timer chunkReads;
+    private Timer chunkWrites;
+    private Timer timeToFirstByte;
+    private Timer uploadStore;
+
+    @PostConstruct
+    void init() {
+        uploadCounter = registry.counter("archive.transfer.bytes", Tags.of("direction", "upload"));
+        downloadCounter = registry.counter("archive.transfer.bytes", Tags.of("direction", "download"));
+        registry.gauge("archive.transfers.active", Tags.of("direction", "upload"), activeUploads);
+        registry.gauge("archive.transfers.active", Tags.of("direction", "download"), activeDownloads);
+        chunkReads = registry.timer("archive.gridfs.chunk", Tags.of("operation", "read"));
+        chunkWrites = registry.timer("archive.gridfs.chunk", Tags.of("operation", "write"));
+        timeToFirstByte = registry.timer("archive.download.ttfb");
+        uploadStore = registry.timer("archive.upload.store");
+    }
+
+    public void recordChunkRead(long nanos) {
+        chunkReads.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordChunkWrite(long nanos) {
+        chunkWrites.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void uploadedBytes(long bytes) {
+        uploadCounter.increment(bytes);
+    }
+
+    /**
+     * Bytes sent without passing through an instrumented stream, e.g. zero-copy
+     */
+    public void downloadedBytes(long bytes) {
+        downloadCounter.increment(bytes);
+    }
+
+    /**
+     * Times storing an upload, which separates the storage time
+     * from the time spent receiving and parsing the request
+     */
+    public <T, E extends Exception> T timeUpload(UploadCall<T, E> upload) throws E {
+        activeUploads.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return upload.call();
+        } finally {
+            uploadStore.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            activeUploads.decrementAndGet();
+        }
+    }
+
+    @FunctionalInterface
+    public interface UploadCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    /**
+     * Wraps a download body to count the bytes sent, track it as in flight and
+     * record the time from the start of the request until the first byte is written
+     *
+     * @param body         The body to send
+     * @param requestStart When the request started, from System.nanoTime()
+     */
+    public StreamingOutput instrumentDownload(StreamingOutput body, long requestStart) {
+        return output -> {
+            activeDownloads.incrementAndGet();
+            try {
+                body.write(new FilterOutputStream(output) {
+                    private boolean first = true;
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        firstByte();
+                        out.write(b);
+                        downloadCounter.increment();
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        firstByte();
+                        out.write(b, off, len);
+                        downloadCounter.increment(len);
+                    }
+
+                    private void firstByte() {
+                        if (first) {
+                            first = false;
+                            timeToFirstByte.record(System.nanoTime() - requestStart, TimeUnit.NANOSECONDS);
+                        }
+                    }
+                });
+            } finally {
+                activeDownloads.decrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * The same as {@link #instrumentDownload(StreamingOutput, long)} for a reactive download
+     *
+     * @param body         The items to send
+     * @param size         Number of bytes in an item
+     * @param requestStart When the request started, from System.nanoTime()
+     */
+    public <T> Multi<T> instrumentDownload(Multi<T> body, ToIntFunction<T> size, long requestStart) {
+        AtomicBoolean first = new AtomicBoolean(true);
+        return body
+                .onSubscription().invoke(activeDownloads::incrementAndGet)
+                .onItem().invoke(item -> {
+                    if (first.compareAndSet(true, false)) {
+                        timeToFirstByte.record(System.nanoTime() - requestStart, TimeUnit.NANOSECONDS);
+                    }
+                    downloadCounter.increment(size.applyAsInt(item));
+                })
+                .onTermination().invoke(activeDownloads::decrementAndGet);
+    }
+
+    /**
+     * Times a listing query, tagged with the filters it used
+     *
+     * @param source  Which listing ran the query
+     * @param filters Names of the filters in use
+     */
+    public <T> T timeQuery(String source, List<String> filters, Supplier<T> query) {
+        Timer timer = registry.timer("archive.query", Tags.of(
+                "source", source,
+                "filters", filters.isEmpty() ? "none" : String.join(",", filters)));
+        return timer.record(query);
+    }
+}
@@ -0,0 +1,34 @@
+package org.acme.metrics;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+
+import javax.inject.Singleton;
+import javax.enterprise.inject.Produces;
+
+/**
+ * Publishes histogram buckets and percentiles for the endpoint latencies
+ * and the application timers so p50/p99 can be computed in Prometheus
+ */
+public class MetricsConfiguration {
+
+    @Produces
+    @Singleton
+    MeterFilter latencyHistograms() {
+        return new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                if (id.getType() == Meter.Type.TIMER
+                        && (id.getName().startsWith("http.server.requests") || id.getName().startsWith("archive."))) {
+                    return DistributionStatisticConfig.builder()
+                            .percentilesHistogram(true)
+                            .percentiles(0.5, 0.95, 0.99)
+                            .build()
+                            .merge(config);
+                }
+                return config;
+            }
+        };
+    }
+}
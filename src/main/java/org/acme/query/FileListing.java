@@ -0,0 +1,223 @@
+package org.acme.query;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import org.acme.exceptions.InvalidRequestException;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.metrics.ArchiveMetrics;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+
+/**
+ * Lists files ordered by (uploadDate, _id) using keyset pagination
+ * <p>
+ * Each page continues from the position of the last file of the previous
+ * page rather than skipping over everything before it, so deep pages cost
+ * the same as the first one. Results can also be streamed straight from the
+ * Mongo cursor as newline delimited JSON without holding them all in memory.
+ */
+@ApplicationScoped
+public class FileListing {
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    // Largest page size allowed for the paged listing
+    static final int MAX_PAGE_SIZE = 1000;
+    static final int DEFAULT_PAGE_SIZE = 100;
+
+    // How many documents to pull from Mongo at a time when streaming
+    private static final int STREAM_BATCH_SIZE = 500;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    ArchiveMetrics metrics;
+
+    /**
+     * One page of results
+     */
+    public static class Page {
+        private final List<Map<String, Object>> files;
+        private final String nextCursor;
+
+        Page(List<Map<String, Object>> files, String nextCursor) {
+            this.files = files;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<Map<String, Object>> getFiles() {
+            return files;
+        }
+
+        /**
+         * Token for the next page, null when this is the last page
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    /**
+     * Fetches a page of files
+     *
+     * @param filters  Filters to apply
+     * @param sortDir  ASC or DESC (default) by upload date
+     * @param cursor   Token from the previous page, null for the first page
+     * @param pageSize Number of files per page, null for the default
+     */
+    public Page page(FileQueryFilters filters, String sortDir, String cursor, Integer pageSize) {
+        int size = pageSize == null ? DEFAULT_PAGE_SIZE : pageSize;
+        if (size < 1 || size > MAX_PAGE_SIZE) {
+            throw new InvalidRequestException("pageSize must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        boolean ascending = isAscending(sortDir, cursor);
+
+        // Ask for one extra to know whether there is another page
+        List<Document> docs = metrics.timeQuery("page", filters.names(),
+                () -> query(filters, ascending, cursor).limit(size + 1).into(new ArrayList<>()));
+
+        String next = null;
+        if (docs.size() > size) {
+            docs = docs.subList(0, size);
+            next = KeysetCursor.after(docs.get(size - 1), ascending).encode();
+        }
+
+        List<Map<String, Object>> files = new ArrayList<>(docs.size());
+        for (Document doc : docs) {
+            files.add(toJson(doc));
+        }
+        return new Page(files, next);
+    }
+
+    /**
+     * Lists every matching file in one go, with the sort, skip and limit
+     * parameters of the original listing
+     *
+     * @param sortFields Comma separated fields to sort on, may be null
+     * @param sortDir    ASC (default) or DESC
+     * @param limit      Maximum number of files, may be null
+     * @param skip       Number of files to skip, may be null
+     */
+    public List<Map<String, Object>> listAll(FileQueryFilters filters, String sortFields, String sortDir, String limit, String skip) {
+        FindIterable<Document> query = repository.files().find(filters.toBson());
+        Bson sort = QueryGuard.sortOf(sortFields, sortDir);
+        if (sort != null) {
+            query.sort(sort);
+        }
+        if (limit != null && !limit.isBlank()) {
+            query.limit(parseCount("limit", limit));
+        }
+        if (skip != null && !skip.isBlank()) {
+            query.skip(parseCount("skip", skip));
+        }
+
+        List<Map<String, Object>> files = new ArrayList<>();
+        for (Document doc : query) {
+            files.add(toJson(doc));
+        }
+        return files;
+    }
+
+    private static int parseCount(String name, String value) {
+        try {
+            int count = Integer.parseInt(value.trim());
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new InvalidRequestException(name + " must be a number of at least 0: " + value);
+    }
+
+    /**
+     * The query for a streamed listing, the parameters are checked and the
+     * cursor decoded here so mistakes are reported before anything is written
+     *
+     * @param limit Maximum number of files, null for all of them
+     */
+    public FindIterable<Document> streamQuery(FileQueryFilters filters, String sortDir, String cursor, Integer limit) {
+        if (limit != null && limit < 1) {
+            throw new InvalidRequestException("limit must be greater than 0");
+        }
+
+        FindIterable<Document> query = query(filters, isAscending(sortDir, cursor), cursor).batchSize(STREAM_BATCH_SIZE);
+        if (limit != null) {
+            query.limit(limit);
+        }
+        return query;
+    }
+
+    /**
+     * Writes the files of a query from {@link #streamQuery} as newline delimited JSON, one file per line
+     */
+    public void stream(FindIterable<Document> query, OutputStream out) throws IOException {
+        ObjectWriter writer = objectMapper.writer();
+        try (MongoCursor<Document> docs = query.iterator()) {
+            while (docs.hasNext()) {
+                out.write(writer.writeValueAsBytes(toJson(docs.next())));
+                out.write('\n');
+            }
+        }
+    }
+
+    private FindIterable<Document> query(FileQueryFilters filters, boolean ascending, String cursor) {
+        Bson filter = filters.toBson();
+        if (cursor != null) {
+            filter = and(filter, KeysetCursor.decode(cursor).toFilter());
+        }
+
+        Bson sort = ascending
+                ? ascending(GridFSRepository.UPLOAD_DATE, "_id")
+                : descending(GridFSRepository.UPLOAD_DATE, "_id");
+
+        return repository.files().find(filter).sort(sort);
+    }
+
+    /**
+     * The cursor carries the direction it was created with, so it
+     * always wins over the sort parameter on later pages
+     */
+    private static boolean isAscending(String sortDir, String cursor) {
+        if (cursor != null) {
+            return KeysetCursor.decode(cursor).isAscending();
+        }
+        return "ASC".equalsIgnoreCase(sortDir);
+    }
+
+    /**
+     * JSON view of a files document, leaving out the internal bookkeeping
+     */
+    public static Map<String, Object> toJson(Document file) {
+        Document metadata = GridFSRepository.metadataOf(file);
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", file.getObjectId("_id").toHexString());
+        json.put("filename", file.getString(GridFSRepository.FILENAME));
+        json.put("length", GridFSRepository.contentLengthOf(file));
+        json.put("uploadDate", file.getDate(GridFSRepository.UPLOAD_DATE).toInstant().toString());
+        json.put("ticketNumber", metadata.getString(GridFSRepository.TICKET_NUMBER));
+        json.put("hash", metadata.getString(GridFSRepository.HASH));
+        return json;
+    }
+}
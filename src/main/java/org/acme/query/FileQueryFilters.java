@@ -0,0 +1,126 @@
+package org.acme.query;
+
+import org.acme.exceptions.InvalidRequestException;
+import org.acme.gridfs.GridFSRepository;
+import org.bson.conversions.Bson;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.empty;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+
+/**
+ * Builds the files collection filter for the same query parameters
+ * the {@link org.acme.service.MongoGridFSService#listAllFiles} listing accepts
+ */
+public final class FileQueryFilters {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("MM-dd-yyyy");
+
+    private String ticketNumber;
+    private String startDate;
+    private String endDate;
+    private String filename;
+
+    public FileQueryFilters ticketNumber(String ticketNumber) {
+        this.ticketNumber = ticketNumber;
+        return this;
+    }
+
+    /**
+     * @param startDate First day to include (MM-DD-YYYY)
+     */
+    public FileQueryFilters startDate(String startDate) {
+        this.startDate = startDate;
+        return this;
+    }
+
+    /**
+     * @param endDate Last day to include (MM-DD-YYYY)
+     */
+    public FileQueryFilters endDate(String endDate) {
+        this.endDate = endDate;
+        return this;
+    }
+
+    public FileQueryFilters filename(String filename) {
+        this.filename = filename;
+        return this;
+    }
+
+    /**
+     * Names of the filters in use, in a fixed order
+     */
+    public List<String> names() {
+        List<String> names = new ArrayList<>();
+        if (isSet(ticketNumber)) {
+            names.add("ticketNumber");
+        }
+        if (isSet(startDate)) {
+            names.add("startDate");
+        }
+        if (isSet(endDate)) {
+            names.add("endDate");
+        }
+        if (isSet(filename)) {
+            names.add("filename");
+        }
+        return names;
+    }
+
+    /**
+     * @return The filter, or an empty filter when nothing is set
+     * @throws InvalidRequestException if one of the dates can't be parsed
+     */
+    public Bson toBson() {
+        List<Bson> filters = new ArrayList<>();
+        if (isSet(ticketNumber)) {
+            filters.add(eq(GridFSRepository.METADATA_TICKET_NUMBER, ticketNumber));
+        }
+        if (isSet(startDate)) {
+            filters.add(gte(GridFSRepository.UPLOAD_DATE, startOfDay(parseDate(startDate))));
+        }
+        if (isSet(endDate)) {
+            // End date is inclusive so everything before the next day
+            filters.add(lt(GridFSRepository.UPLOAD_DATE, startOfDay(parseDate(endDate).plusDays(1))));
+        }
+        if (isSet(filename)) {
+            filters.add(eq(GridFSRepository.FILENAME, filename));
+        }
+
+        if (filters.isEmpty()) {
+            return empty();
+        }
+        return filters.size() == 1 ? filters.get(0) : and(filters);
+    }
+
+    /**
+     * Parses a date in the format the query parameters use
+     *
+     * @throws InvalidRequestException if the date can't be parsed
+     */
+    public static LocalDate parseDate(String date) {
+        try {
+            return LocalDate.parse(date, DATE_FORMAT);
+        } catch (DateTimeParseException e) {
+            throw new InvalidRequestException("Invalid date, expected MM-DD-YYYY: " + date);
+        }
+    }
+
+    private static Date startOfDay(LocalDate date) {
+        return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    private static boolean isSet(String value) {
+        return value != null && !value.isBlank();
+    }
+}
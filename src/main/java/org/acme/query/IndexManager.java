@@ -0,0 +1,163 @@
+package org.acme.query;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import io.quarkus.runtime.StartupEvent;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.tier.ChunkStore;
+import org.acme.tier.ContentDefinedBlobBackend;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Makes sure the indexes the queries rely on exist
+ * <p>
+ * Created on startup, in the background so a build on a large collection doesn't
+ * hold up the service. Creating an index that already exists is a no-op.
+ * The compound indexes put the equality filters first, then uploadDate and _id,
+ * which is the order the keyset listing sorts by.
+ */
+@ApplicationScoped
+public class IndexManager {
+
+    private final static Logger LOG = LoggerFactory.getLogger(IndexManager.class);
+
+    /**
+     * Indexes on the files collection, in the order the query guard prefers them
+     */
+    static final List<Document> FILES_INDEXES = List.of(
+            new Document(GridFSRepository.METADATA_TICKET_NUMBER, 1).append(GridFSRepository.UPLOAD_DATE, -1).append("_id", -1),
+            new Document(GridFSRepository.FILENAME, 1).append(GridFSRepository.UPLOAD_DATE, -1).append("_id", -1),
+            new Document(GridFSRepository.UPLOAD_DATE, -1).append("_id", -1),
+            new Document(GridFSRepository.METADATA_HASH, 1),
+            new Document(GridFSRepository.METADATA_BLOB_ID, 1),
+            new Document(GridFSRepository.METADATA_MIGRATED_AT, 1),
+            new Document(GridFSRepository.METADATA_LOCATION, 1));
+
+    @ConfigProperty(name = "archive.indexes.manage", defaultValue = "true") boolean manage;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    ChunkStore chunkStore;
+
+    @Inject
+    ContentDefinedBlobBackend contentDefined;
+
+    void onStart(@Observes StartupEvent event) {
+        if (!manage) {
+            return;
+        }
+        Thread thread = new Thread(this::ensureIndexes, "index-manager");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Creates any of the indexes that are missing
+     */
+    public void ensureIndexes() {
+        try {
+            List<IndexModel> files = new ArrayList<>();
+            for (Document keys : FILES_INDEXES) {
+                // Only records referencing another file have a blobId, only files
+                // moved to another tier a location, and only those of them still
+                // holding chunks a migratedAt
+                boolean sparse = keys.containsKey(GridFSRepository.METADATA_BLOB_ID)
+                        || keys.containsKey(GridFSRepository.METADATA_MIGRATED_AT)
+                        || keys.containsKey(GridFSRepository.METADATA_LOCATION);
+                files.add(new IndexModel(keys, new IndexOptions().sparse(sparse)));
+            }
+            create(repository.files(), files);
+
+            // Normally made by the driver on the first upload
+            create(repository.chunks(), List.of(new IndexModel(
+                    new Document(GridFSRepository.FILES_ID, 1).append(GridFSRepository.CHUNK_NUMBER, 1),
+                    new IndexOptions().unique(true))));
+
+            // Collections of the cdc tier, empty unless it is used
+            create(chunkStore.collection(), ChunkStore.INDEXES);
+            create(contentDefined.manifests(), ContentDefinedBlobBackend.MANIFEST_INDEXES);
+        } catch (RuntimeException e) {
+            LOG.error("Failed to create indexes", e);
+        }
+    }
+
+    /**
+     * Every index on the files collection, as Mongo reports them
+     */
+    public List<Document> listFilesIndexes() {
+        return repository.files().listIndexes().into(new ArrayList<>());
+    }
+
+    /**
+     * What Mongo's planner picks for a query on the files collection
+     *
+     * @param sort The sort, may be null
+     * @return The indexes the winning plan uses (empty for a collection scan) under
+     * "indexes", and whether it scans the collection or sorts in memory
+     */
+    public Document explain(Bson filter, Bson sort) {
+        FindIterable<Document> query = repository.files().find(filter);
+        if (sort != null) {
+            query.sort(sort);
+        }
+        Document planner = query.explain().get("queryPlanner", Document.class);
+
+        // Newer servers nest the plan one level deeper under queryPlan
+        Document plan = planner != null ? planner.get("winningPlan", Document.class) : null;
+        if (plan != null && plan.containsKey("queryPlan")) {
+            plan = plan.get("queryPlan", Document.class);
+        }
+
+        Set<String> stages = new LinkedHashSet<>();
+        Set<String> indexes = new LinkedHashSet<>();
+        if (plan != null) {
+            collect(plan, stages, indexes);
+        }
+        return new Document("indexes", new ArrayList<>(indexes))
+                .append("collectionScan", stages.contains("COLLSCAN"))
+                .append("inMemorySort", stages.contains("SORT"))
+                .append("stages", new ArrayList<>(stages));
+    }
+
+    private static void collect(Document stage, Set<String> stages, Set<String> indexes) {
+        if (stage.getString("stage") != null) {
+            stages.add(stage.getString("stage"));
+        }
+        if (stage.getString("indexName") != null) {
+            indexes.add(stage.getString("indexName"));
+        }
+        for (Object value : stage.values()) {
+            if (value instanceof Document) {
+                collect((Document) value, stages, indexes);
+            } else if (value instanceof List) {
+                // inputStages of an OR or intersection
+                for (Object child : (List<?>) value) {
+                    if (child instanceof Document) {
+                        collect((Document) child, stages, indexes);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void create(MongoCollection<Document> collection, List<IndexModel> indexes) {
+        List<String> names = collection.createIndexes(indexes);
+        LOG.info("Indexes on {}: {}", collection.getNamespace().getCollectionName(), names);
+    }
+}
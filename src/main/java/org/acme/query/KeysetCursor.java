@@ -0,0 +1,80 @@
+package org.acme.query;
+
+import org.acme.exceptions.InvalidRequestException;
+import org.acme.gridfs.GridFSRepository;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+
+/**
+ * Continuation token for paging through files ordered by (uploadDate, _id)
+ * <p>
+ * The token is opaque to clients, it just records the position of the
+ * last file returned and which way the listing was sorted.
+ */
+public final class KeysetCursor {
+
+    private final Date uploadDate;
+    private final ObjectId id;
+    private final boolean ascending;
+
+    public KeysetCursor(Date uploadDate, ObjectId id, boolean ascending) {
+        this.uploadDate = uploadDate;
+        this.id = id;
+        this.ascending = ascending;
+    }
+
+    /**
+     * Cursor positioned after the given file
+     */
+    public static KeysetCursor after(Document file, boolean ascending) {
+        return new KeysetCursor(file.getDate(GridFSRepository.UPLOAD_DATE), file.getObjectId("_id"), ascending);
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /**
+     * Filter matching only the files after this position
+     */
+    public Bson toFilter() {
+        if (ascending) {
+            return or(gt(GridFSRepository.UPLOAD_DATE, uploadDate),
+                    and(eq(GridFSRepository.UPLOAD_DATE, uploadDate), gt("_id", id)));
+        }
+        return or(lt(GridFSRepository.UPLOAD_DATE, uploadDate),
+                and(eq(GridFSRepository.UPLOAD_DATE, uploadDate), lt("_id", id)));
+    }
+
+    public String encode() {
+        String raw = (ascending ? "A" : "D") + ":" + uploadDate.getTime() + ":" + id.toHexString();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @throws InvalidRequestException if the token wasn't produced by {@link #encode()}
+     */
+    public static KeysetCursor decode(String token) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.US_ASCII);
+            String[] parts = raw.split(":");
+            if (parts.length != 3 || !(parts[0].equals("A") || parts[0].equals("D")) || !ObjectId.isValid(parts[2])) {
+                throw new InvalidRequestException("Invalid cursor");
+            }
+            return new KeysetCursor(new Date(Long.parseLong(parts[1])), new ObjectId(parts[2]), parts[0].equals("A"));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException("Invalid cursor");
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.acme.query;
+
+import com.mongodb.client.model.Sorts;
+import org.acme.exceptions.InvalidRequestException;
+import org.acme.gridfs.GridFSRepository;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Spots listing queries that no managed index can serve
+ * <p>
+ * A query can use an index without scanning the collection or sorting in memory
+ * when the index starts with some of its equality filters (or the upload date it
+ * ranges over) and the sort fields follow those equality keys in order, all in the
+ * same direction.
+ * Depending on archive.query.guard such queries are let through (off), logged (warn)
+ * or rejected with a 400 (reject).
+ */
+@ApplicationScoped
+public class QueryGuard {
+
+    private final static Logger LOG = LoggerFactory.getLogger(QueryGuard.class);
+
+    public enum Mode {
+        OFF,
+        WARN,
+        REJECT
+    }
+
+    @ConfigProperty(name = "archive.query.guard", defaultValue = "warn") String mode;
+
+    /**
+     * Checks the query against the guard mode
+     *
+     * @param filters    Filters of the query
+     * @param sortFields Comma separated fields the query sorts on, may be null
+     * @throws InvalidRequestException if the query can't use an index and the mode is reject
+     */
+    public void check(FileQueryFilters filters, String sortFields) {
+        Mode guard = Mode.valueOf(mode.toUpperCase());
+        if (guard == Mode.OFF) {
+            return;
+        }
+
+        String problem = problem(filters, sortFields);
+        if (problem == null) {
+            return;
+        }
+        if (guard == Mode.REJECT) {
+            throw new InvalidRequestException(problem);
+        }
+        LOG.warn("Unindexed query: {}", problem);
+    }
+
+    /**
+     * Why the query can't be served from an index
+     *
+     * @return The reason, or null if an index serves it
+     */
+    public static String problem(FileQueryFilters filters, String sortFields) {
+        Set<String> equality = new LinkedHashSet<>();
+        boolean range = false;
+        for (String name : filters.names()) {
+            switch (name) {
+                case "ticketNumber":
+                    equality.add(GridFSRepository.METADATA_TICKET_NUMBER);
+                    break;
+                case "filename":
+                    equality.add(GridFSRepository.FILENAME);
+                    break;
+                default:
+                    range = true;
+            }
+        }
+
+        List<String> sort = new ArrayList<>();
+        for (String field : sortFieldsOf(sortFields)) {
+            // Sorting on a field with an equality filter is free
+            if (!equality.contains(field)) {
+                sort.add(field);
+            }
+        }
+
+        // Listing everything in natural order is a scan by definition, but a paged one
+        if (equality.isEmpty() && sort.isEmpty() && !range) {
+            return null;
+        }
+
+        for (Document index : IndexManager.FILES_INDEXES) {
+            if (serves(index, equality, sort, range)) {
+                return null;
+            }
+        }
+        return "No index serves filters " + filters.names() + " sorted by " + sortFieldsOf(sortFields)
+                + ", it needs a collection scan or an in-memory sort";
+    }
+
+    private static boolean serves(Document index, Set<String> equality, List<String> sort, boolean range) {
+        List<String> keys = new ArrayList<>(index.keySet());
+
+        // Leading keys fixed by the equality filters, the rest are checked on the fetched documents
+        int prefix = 0;
+        while (prefix < keys.size() && equality.contains(keys.get(prefix))) {
+            prefix++;
+        }
+        List<String> rest = keys.subList(prefix, keys.size());
+
+        // Something has to bound the scan, unless there are no filters to bound it with
+        boolean bounded = prefix > 0 || (range && !rest.isEmpty() && rest.get(0).equals(GridFSRepository.UPLOAD_DATE));
+        if (!bounded && (range || !equality.isEmpty())) {
+            return false;
+        }
+
+        // The sort has to come straight after the equality keys, and since every
+        // field is sorted the same way those keys must all share a direction
+        if (rest.size() < sort.size() || !rest.subList(0, sort.size()).equals(sort)) {
+            return false;
+        }
+        Set<Object> directions = new HashSet<>();
+        for (String field : sort) {
+            directions.add(index.get(field));
+        }
+        return directions.size() <= 1;
+    }
+
+    /**
+     * The sortyBy parameter as field names in the files collection
+     */
+    public static List<String> sortFieldsOf(String sortFields) {
+        List<String> fields = new ArrayList<>();
+        if (sortFields == null || sortFields.isBlank()) {
+            return fields;
+        }
+        for (String field : sortFields.split(",")) {
+            field = field.trim();
+            if (field.isEmpty()) {
+                continue;
+            }
+            if (field.equals(GridFSRepository.TICKET_NUMBER) || field.equals(GridFSRepository.HASH)) {
+                field = GridFSRepository.METADATA + "." + field;
+            }
+            fields.add(field);
+        }
+        return fields;
+    }
+
+    /**
+     * The sort the library applies for these parameters
+     */
+    public static Bson sortOf(String sortFields, String sortDir) {
+        List<String> fields = sortFieldsOf(sortFields);
+        if (fields.isEmpty()) {
+            return null;
+        }
+        return "DESC".equalsIgnoreCase(sortDir) ? Sorts.descending(fields) : Sorts.ascending(fields);
+    }
+}
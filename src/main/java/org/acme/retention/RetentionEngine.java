@@ -0,0 +1,289 @@
+package org.acme.retention;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.scheduler.Scheduled;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.storage.ArchiveStore;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.pushEach;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Deletes files once their {@link RetentionRule} says they have expired
+ * <p>
+ * Each run works through the rules, oldest files first, in batches handed to
+ * {@link ArchiveStore#deleteBatch} so the files and chunks are removed with bulk
+ * deletes rather than one file at a time. Batches are paced to filesPerSecond so
+ * a large purge doesn't compete with uploads and downloads.
+ * <p>
+ * The batch being deleted is written to the retention collection first, with the
+ * claim its records are marked with and, before their records go, the owners whose
+ * bytes are dropped. It is cleared once done, so after a crash the next run takes
+ * the batch back under the same claim and removes any bytes left behind before
+ * moving on. A lease in
+ * the same collection keeps more than one instance from purging at the same time.
+ */
+@ApplicationScoped
+public class RetentionEngine {
+
+    private final static Logger LOG = LoggerFactory.getLogger(RetentionEngine.class);
+
+    static final String LEASE_ID = "lease";
+    static final String BATCH_ID = "batch";
+
+    // Files listed per rule in the dry run report
+    private static final int REPORT_SAMPLE = 10;
+
+    @ConfigProperty(name = "retention.enabled", defaultValue = "false") boolean enabled;
+    @ConfigProperty(name = "retention.rules") Optional<List<String>> rules;
+    @ConfigProperty(name = "retention.dryRun", defaultValue = "false") boolean dryRun;
+    @ConfigProperty(name = "retention.batchSize", defaultValue = "500") int batchSize;
+    @ConfigProperty(name = "retention.filesPerSecond", defaultValue = "200") int filesPerSecond;
+    @ConfigProperty(name = "retention.lease", defaultValue = "10M") Duration lease;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    ArchiveStore archiveStore;
+
+    @Inject
+    MeterRegistry registry;
+
+    private final String instanceId = UUID.randomUUID().toString();
+
+    // Expired files found at the start of the last run and not deleted yet
+    private final AtomicLong pending = new AtomicLong();
+
+    @PostConstruct
+    void init() {
+        registry.gauge("archive.retention.pending", pending);
+        // Fails fast on malformed rules rather than at the first run
+        rules();
+    }
+
+    public MongoCollection<Document> collection() {
+        return repository.database().getCollection(repository.bucketName() + ".retention");
+    }
+
+    List<RetentionRule> rules() {
+        return RetentionRule.parseAll(rules.orElse(List.of()));
+    }
+
+    /**
+     * Deletes everything that has expired
+     *
+     * @return Number of records deleted
+     */
+    @Scheduled(every = "{retention.every}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public synchronized long purge() {
+        List<RetentionRule> active = rules();
+        if (!enabled || active.isEmpty()) {
+            return 0;
+        }
+
+        if (dryRun) {
+            for (Document rule : report().getList("rules", Document.class)) {
+                LOG.info("Retention dry run: {} would delete {} files ({} bytes)",
+                        rule.getString("rule"), rule.get("files"), rule.get("bytes"));
+            }
+            return 0;
+        }
+
+        if (!acquireLease()) {
+            LOG.debug("Retention is running on another instance");
+            return 0;
+        }
+
+        long deleted = 0;
+        try {
+            Document unfinished = collection().find(eq("_id", BATCH_ID)).first();
+            if (unfinished != null) {
+                LOG.info("Finishing retention batch interrupted by a restart");
+                archiveStore.dropBytesOf(unfinished.getList("dropping", Document.class, List.of()));
+                deleted += deleteBatch(unfinished.getString("rule"), unfinished.getList("files", Document.class),
+                        Optional.ofNullable(unfinished.getObjectId("claim")).orElseGet(ObjectId::new));
+            }
+
+            Instant now = Instant.now();
+            long expired = 0;
+            for (RetentionRule rule : active) {
+                expired += repository.files().countDocuments(rule.expired(active, now));
+            }
+            pending.set(expired);
+
+            long started = System.nanoTime();
+            for (RetentionRule rule : active) {
+                Bson filter = rule.expired(active, now);
+                List<Document> batch;
+                while (!(batch = nextBatch(filter)).isEmpty()) {
+                    // Written before touching anything so a crash can be picked up again
+                    ObjectId claim = new ObjectId();
+                    collection().replaceOne(eq("_id", BATCH_ID),
+                            new Document("_id", BATCH_ID).append("rule", rule.toString()).append("files", batch).append("claim", claim),
+                            new ReplaceOptions().upsert(true));
+
+                    long count = deleteBatch(rule.toString(), batch, claim);
+                    deleted += count;
+                    if (count == 0) {
+                        // Nothing could be deleted, trying again would loop forever
+                        LOG.warn("Retention made no progress on {}", rule);
+                        break;
+                    }
+
+                    if (!throttle(deleted, started) || !acquireLease()) {
+                        return deleted;
+                    }
+                }
+            }
+        } finally {
+            releaseLease();
+            if (deleted > 0) {
+                LOG.info("Retention deleted {} files", deleted);
+            }
+        }
+        return deleted;
+    }
+
+    private List<Document> nextBatch(Bson filter) {
+        return repository.files().find(filter)
+                .sort(ascending(GridFSRepository.UPLOAD_DATE))
+                .limit(batchSize)
+                .into(new ArrayList<>());
+    }
+
+    private long deleteBatch(String rule, List<Document> batch, ObjectId claim) {
+        List<Document> deleted = archiveStore.deleteBatch(batch, claim,
+                dropping -> collection().updateOne(eq("_id", BATCH_ID), pushEach("dropping", dropping)));
+        // Only once the bytes are gone too
+        collection().deleteOne(eq("_id", BATCH_ID));
+
+        long bytes = 0;
+        for (Document file : deleted) {
+            bytes += GridFSRepository.contentLengthOf(file);
+        }
+        registry.counter("archive.retention.deleted.files", "rule", rule).increment(deleted.size());
+        registry.counter("archive.retention.deleted.bytes", "rule", rule).increment(bytes);
+        pending.updateAndGet(left -> Math.max(0, left - deleted.size()));
+        return deleted.size();
+    }
+
+    /**
+     * What a run would delete right now, without deleting anything
+     *
+     * @return The files and bytes per rule, with the oldest few files of each
+     */
+    public Document report() {
+        List<RetentionRule> active = rules();
+        Instant now = Instant.now();
+
+        Document contentLength = new Document("$ifNull", Arrays.asList(
+                "$" + GridFSRepository.METADATA + "." + GridFSRepository.ORIGINAL_LENGTH,
+                "$" + GridFSRepository.LENGTH));
+
+        List<Document> report = new ArrayList<>();
+        for (RetentionRule rule : active) {
+            Bson filter = rule.expired(active, now);
+            Document totals = repository.files().aggregate(List.of(
+                            new Document("$match", filter),
+                            new Document("$group", new Document("_id", null)
+                                    .append("files", new Document("$sum", 1L))
+                                    .append("bytes", new Document("$sum", contentLength)))))
+                    .first();
+
+            List<Document> oldest = new ArrayList<>();
+            repository.files().find(filter)
+                    .sort(ascending(GridFSRepository.UPLOAD_DATE))
+                    .limit(REPORT_SAMPLE)
+                    .forEach(file -> oldest.add(new Document("id", file.getObjectId("_id").toHexString())
+                            .append("filename", file.getString(GridFSRepository.FILENAME))
+                            .append("ticketNumber", GridFSRepository.metadataOf(file).getString(GridFSRepository.TICKET_NUMBER))
+                            .append("uploadDate", file.getDate(GridFSRepository.UPLOAD_DATE).toInstant().toString())));
+
+            report.add(new Document("rule", rule.toString())
+                    .append("uploadedBefore", rule.cutoff(now).toInstant().toString())
+                    .append("files", totals != null ? totals.get("files", Number.class).longValue() : 0L)
+                    .append("bytes", totals != null ? totals.get("bytes", Number.class).longValue() : 0L)
+                    .append("oldest", oldest));
+        }
+
+        return new Document("enabled", enabled)
+                .append("dryRun", dryRun)
+                .append("rules", report);
+    }
+
+    /**
+     * Takes or extends the lease, the insert fails on the _id if another instance holds it
+     */
+    private boolean acquireLease() {
+        Date now = new Date();
+        try {
+            collection().findOneAndUpdate(
+                    and(eq("_id", LEASE_ID), or(lt("until", now), eq("holder", instanceId))),
+                    combine(set("holder", instanceId), set("until", new Date(now.getTime() + lease.toMillis()))),
+                    new FindOneAndUpdateOptions().upsert(true));
+            return true;
+        } catch (MongoException e) {
+            if (ErrorCategory.fromErrorCode(e.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void releaseLease() {
+        collection().updateOne(and(eq("_id", LEASE_ID), eq("holder", instanceId)), set("until", new Date(0)));
+    }
+
+    /**
+     * Sleeps until the files deleted so far are within the rate
+     *
+     * @return False if interrupted and the run should stop
+     */
+    private boolean throttle(long deleted, long started) {
+        if (filesPerSecond <= 0) {
+            return true;
+        }
+
+        long due = (long) (deleted * 1_000_000_000d / filesPerSecond) - (System.nanoTime() - started);
+        if (due > 0) {
+            try {
+                Thread.sleep(due / 1_000_000, (int) (due % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,163 @@
+package org.acme.retention;
+
+import org.acme.gridfs.GridFSRepository;
+import org.bson.conversions.Bson;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.nin;
+import static com.mongodb.client.model.Filters.not;
+import static com.mongodb.client.model.Filters.regex;
+
+/**
+ * How long files of some ticket numbers are kept
+ * <p>
+ * Written as ticket=days, where ticket is a ticket number, a prefix ending in *
+ * or just * for every ticket (and files without one). A file follows the most
+ * specific rule matching its ticket: an exact ticket number, then the longest prefix,
+ * then *. Files not matched by any rule are kept forever.
+ */
+public final class RetentionRule {
+
+    private static final String ANY = "*";
+
+    // Orders the most specific rules first
+    static final Comparator<RetentionRule> SPECIFIC_FIRST = Comparator
+            .comparing((RetentionRule rule) -> !rule.isExact())
+            .thenComparing(rule -> -rule.prefix().length());
+
+    private final String ticket;
+    private final int days;
+
+    RetentionRule(String ticket, int days) {
+        this.ticket = ticket;
+        this.days = days;
+    }
+
+    /**
+     * Parses one rule
+     *
+     * @throws IllegalArgumentException if the rule is malformed
+     */
+    public static RetentionRule parse(String rule) {
+        int separator = rule.lastIndexOf('=');
+        if (separator < 1) {
+            throw new IllegalArgumentException("Retention rule " + rule + " must be ticket=days");
+        }
+
+        String ticket = rule.substring(0, separator).trim();
+        int days;
+        try {
+            days = Integer.parseInt(rule.substring(separator + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Retention rule " + rule + " must be ticket=days");
+        }
+        if (days < 1) {
+            throw new IllegalArgumentException("Retention rule " + rule + " must keep files at least a day");
+        }
+        if (ticket.indexOf('*') >= 0 && ticket.indexOf('*') != ticket.length() - 1) {
+            throw new IllegalArgumentException("Retention rule " + rule + " can only have a * at the end");
+        }
+        return new RetentionRule(ticket, days);
+    }
+
+    /**
+     * Parses the rules and orders them most specific first
+     */
+    public static List<RetentionRule> parseAll(List<String> rules) {
+        List<RetentionRule> parsed = new ArrayList<>();
+        for (String rule : rules) {
+            if (!rule.isBlank()) {
+                parsed.add(parse(rule));
+            }
+        }
+        parsed.sort(SPECIFIC_FIRST);
+        return parsed;
+    }
+
+    public String getTicket() {
+        return ticket;
+    }
+
+    public int getDays() {
+        return days;
+    }
+
+    /**
+     * Files uploaded before this are expired
+     */
+    public Date cutoff(Instant now) {
+        return Date.from(now.minus(Duration.ofDays(days)));
+    }
+
+    /**
+     * The expired files this rule applies to, leaving out the ones a more specific rule applies to
+     *
+     * @param rules Every rule in force, including this one
+     */
+    public Bson expired(List<RetentionRule> rules, Instant now) {
+        List<Bson> filters = new ArrayList<>();
+        filters.add(lt(GridFSRepository.UPLOAD_DATE, cutoff(now)));
+
+        if (isExact()) {
+            filters.add(eq(GridFSRepository.METADATA_TICKET_NUMBER, ticket));
+            return and(filters);
+        }
+
+        if (!prefix().isEmpty()) {
+            filters.add(regex(GridFSRepository.METADATA_TICKET_NUMBER, startsWith(prefix())));
+        }
+
+        List<String> exact = new ArrayList<>();
+        for (RetentionRule other : rules) {
+            if (other == this || !other.ticket.startsWith(prefix())) {
+                continue;
+            }
+            if (other.isExact()) {
+                exact.add(other.ticket);
+            } else if (other.prefix().length() > prefix().length()) {
+                filters.add(not(regex(GridFSRepository.METADATA_TICKET_NUMBER, startsWith(other.prefix()))));
+            }
+        }
+        if (!exact.isEmpty()) {
+            filters.add(nin(GridFSRepository.METADATA_TICKET_NUMBER, exact));
+        }
+        return and(filters);
+    }
+
+    private boolean isExact() {
+        return !ticket.endsWith(ANY);
+    }
+
+    private String prefix() {
+        return isExact() ? ticket : ticket.substring(0, ticket.length() - 1);
+    }
+
+    /**
+     * Anchored prefix regex, which Mongo can answer from an index
+     */
+    private static Pattern startsWith(String prefix) {
+        StringBuilder regex = new StringBuilder("^");
+        for (char c : prefix.toCharArray()) {
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                regex.append('\\');
+            }
+            regex.append(c);
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    @Override
+    public String toString() {
+        return ticket + "=" + days;
+    }
+}
@@ -0,0 +1,305 @@
+package org.acme.stats;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.storage.ArchiveEvent;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Counters for the archive kept up to date as files are stored and deleted
+ * <p>
+ * The counters live in the stats collection next to the GridFS bucket: one document
+ * for the totals, one per ticket number and one per upload day. Each store or delete
+ * applies $inc upserts to the three documents it affects, so reading them is a few
+ * lookups however big the archive gets. Every replica updates the same documents.
+ * <p>
+ * Anything missed (a crash between the delete and the update, files changed outside
+ * this service) is fixed by the reconciliation job, which recomputes the counters
+ * from the files collection and overwrites the ones that drifted.
+ */
+@ApplicationScoped
+public class ArchiveStats {
+
+    private final static Logger LOG = LoggerFactory.getLogger(ArchiveStats.class);
+
+    static final String TOTALS_ID = "totals";
+    static final String TYPE = "type";
+    static final String TYPE_TICKET = "ticket";
+    static final String TYPE_DAY = "day";
+    static final String TICKET_NUMBER = "ticketNumber";
+    static final String DAY = "day";
+    static final String FILES = "files";
+    static final String BYTES = "bytes";
+    static final String RECONCILED_AT = "reconciledAt";
+
+    // Upload days are bucketed in the same zone the date filters use
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    @ConfigProperty(name = "stats.enabled", defaultValue = "true") boolean enabled;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    MeterRegistry registry;
+
+    private Counter drift;
+
+    @PostConstruct
+    void init() {
+        drift = registry.counter("archive.stats.drift");
+    }
+
+    public MongoCollection<Document> collection() {
+        return repository.database().getCollection(repository.bucketName() + ".stats");
+    }
+
+    /**
+     * The counters for the whole archive
+     *
+     * @return Files and bytes, or null if they haven't been computed yet
+     */
+    public Document totals() {
+        return collection().find(eq("_id", TOTALS_ID)).first();
+    }
+
+    /**
+     * Total number of files, or null if the totals haven't been computed yet
+     */
+    public Long totalFiles() {
+        Document totals = totals();
+        return isReconciled(totals) ? number(totals, FILES) : null;
+    }
+
+    /**
+     * Counters only count from a reconciliation onwards, before that
+     * they hold just the changes seen since the first start
+     */
+    private static boolean isReconciled(Document totals) {
+        return totals != null && totals.containsKey(RECONCILED_AT);
+    }
+
+    /**
+     * Counters per ticket number
+     *
+     * @param ticketNumber Only this ticket, null for every ticket
+     */
+    public List<Document> tickets(String ticketNumber) {
+        Bson filter = and(eq(TYPE, TYPE_TICKET), Filters.gt(FILES, 0));
+        if (ticketNumber != null) {
+            filter = and(filter, eq(TICKET_NUMBER, ticketNumber));
+        }
+        return collection().find(filter).sort(Sorts.ascending(TICKET_NUMBER)).into(new ArrayList<>());
+    }
+
+    /**
+     * Counters per upload day
+     *
+     * @param from First day to include, null for no lower bound
+     * @param to   Last day to include, null for no upper bound
+     */
+    public List<Document> days(LocalDate from, LocalDate to) {
+        List<Bson> filters = new ArrayList<>(Arrays.asList(eq(TYPE, TYPE_DAY), Filters.gt(FILES, 0)));
+        if (from != null) {
+            filters.add(gte(DAY, from.toString()));
+        }
+        if (to != null) {
+            filters.add(lte(DAY, to.toString()));
+        }
+        return collection().find(and(filters)).sort(Sorts.ascending(DAY)).into(new ArrayList<>());
+    }
+
+    void onArchiveEvent(@Observes ArchiveEvent event) {
+        if (!enabled) {
+            return;
+        }
+
+        int direction = event.getType() == ArchiveEvent.Type.STORED ? 1 : -1;
+        Document file = event.getFile();
+        long bytes = GridFSRepository.contentLengthOf(file);
+        Bson update = combine(inc(FILES, direction), inc(BYTES, direction * bytes));
+
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+        writes.add(new UpdateOneModel<>(eq("_id", TOTALS_ID), update, upsert));
+
+        String ticketNumber = GridFSRepository.metadataOf(file).getString(GridFSRepository.TICKET_NUMBER);
+        if (ticketNumber != null) {
+            writes.add(new UpdateOneModel<>(eq("_id", TYPE_TICKET + ":" + ticketNumber),
+                    combine(update, set(TYPE, TYPE_TICKET), set(TICKET_NUMBER, ticketNumber)), upsert));
+        }
+
+        Date uploadDate = file.getDate(GridFSRepository.UPLOAD_DATE);
+        if (uploadDate != null) {
+            String day = dayOf(uploadDate);
+            writes.add(new UpdateOneModel<>(eq("_id", TYPE_DAY + ":" + day),
+                    combine(update, set(TYPE, TYPE_DAY), set(DAY, day)), upsert));
+        }
+
+        try {
+            collection().bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        } catch (RuntimeException e) {
+            // The next reconciliation puts it right
+            LOG.warn("Failed to update stats for {}", event.getId(), e);
+        }
+    }
+
+    /**
+     * Computes the counters on first start, before that the totals are missing
+     */
+    void onStart(@Observes StartupEvent event) {
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                if (!isReconciled(totals())) {
+                    reconcile();
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Initial stats computation failed", e);
+            }
+        }, "stats-init");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Recomputes every counter from the files collection and fixes the ones that drifted
+     * <p>
+     * Files stored or deleted while this runs can be counted twice or not at all,
+     * which the next run corrects.
+     *
+     * @return Number of counters that were wrong
+     */
+    @Scheduled(every = "{stats.reconcileEvery}", delayed = "{stats.reconcileEvery}",
+            concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public synchronized int reconcile() {
+        if (!enabled) {
+            return 0;
+        }
+
+        Document contentLength = new Document("$ifNull", Arrays.asList(
+                "$" + GridFSRepository.METADATA + "." + GridFSRepository.ORIGINAL_LENGTH,
+                "$" + GridFSRepository.LENGTH));
+        Document day = new Document("$dateToString", new Document("format", "%Y-%m-%d")
+                .append("date", "$" + GridFSRepository.UPLOAD_DATE)
+                .append("timezone", ZONE.getId()));
+
+        Map<String, Document> expected = new HashMap<>();
+        for (Document group : aggregate(null, contentLength)) {
+            expected.put(TOTALS_ID, counters(group));
+        }
+        expected.putIfAbsent(TOTALS_ID, new Document(FILES, 0L).append(BYTES, 0L));
+
+        for (Document group : aggregate("$" + GridFSRepository.METADATA_TICKET_NUMBER, contentLength)) {
+            if (group.get("_id") != null) {
+                String ticketNumber = group.get("_id").toString();
+                expected.put(TYPE_TICKET + ":" + ticketNumber, counters(group).append(TYPE, TYPE_TICKET).append(TICKET_NUMBER, ticketNumber));
+            }
+        }
+        for (Document group : aggregate(day, contentLength)) {
+            if (group.get("_id") != null) {
+                String bucket = group.getString("_id");
+                expected.put(TYPE_DAY + ":" + bucket, counters(group).append(TYPE, TYPE_DAY).append(DAY, bucket));
+            }
+        }
+
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        int drifted = 0;
+
+        for (Document actual : collection().find()) {
+            Object id = actual.get("_id");
+            Document counters = expected.remove(id);
+            if (counters == null) {
+                // Nothing left for this ticket or day
+                writes.add(new DeleteOneModel<>(eq("_id", id)));
+                if (number(actual, FILES) != 0 || number(actual, BYTES) != 0) {
+                    drifted++;
+                }
+            } else if (number(actual, FILES) != number(counters, FILES) || number(actual, BYTES) != number(counters, BYTES)) {
+                writes.add(new UpdateOneModel<>(eq("_id", id), setAll(counters)));
+                drifted++;
+            }
+        }
+
+        // Counters that don't exist at all
+        for (Map.Entry<String, Document> missing : expected.entrySet()) {
+            writes.add(new UpdateOneModel<>(eq("_id", missing.getKey()), setAll(missing.getValue()), new UpdateOptions().upsert(true)));
+            drifted++;
+        }
+
+        writes.add(new UpdateOneModel<>(eq("_id", TOTALS_ID), set(RECONCILED_AT, new Date())));
+        collection().bulkWrite(writes, new BulkWriteOptions().ordered(false));
+
+        if (drifted > 0) {
+            drift.increment(drifted);
+            LOG.info("Reconciled stats, {} counters had drifted", drifted);
+        }
+        return drifted;
+    }
+
+    private List<Document> aggregate(Object groupBy, Document contentLength) {
+        return repository.files().aggregate(List.of(new Document("$group", new Document("_id", groupBy)
+                        .append(FILES, new Document("$sum", 1L))
+                        .append(BYTES, new Document("$sum", contentLength)))))
+                .allowDiskUse(true)
+                .into(new ArrayList<>());
+    }
+
+    private static Document counters(Document group) {
+        return new Document(FILES, number(group, FILES)).append(BYTES, number(group, BYTES));
+    }
+
+    private static Bson setAll(Document values) {
+        List<Bson> updates = new ArrayList<>();
+        values.forEach((key, value) -> updates.add(set(key, value)));
+        return combine(updates);
+    }
+
+    private static long number(Document document, String key) {
+        Object value = document.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    static String dayOf(Date date) {
+        return DateTimeFormatter.ISO_LOCAL_DATE.format(date.toInstant().atZone(ZONE));
+    }
+}
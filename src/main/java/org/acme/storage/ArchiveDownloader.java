@@ -0,0 +1,448 @@
+package org.acme.storage;
+
+import org.acme.admission.ByteRateLimiter;
+import org.acme.cache.BlobDiskCache;
+import org.acme.cache.MetadataCache;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.metrics.ArchiveMetrics;
+import org.acme.tier.BlobBackend;
+import org.acme.tier.BlobBackends;
+import org.acme.util.ByteRange;
+import org.acme.util.HttpValidators;
+import org.acme.util.MultipartByteRanges;
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.PathPart;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Builds download responses for archived files
+ * <p>
+ * Handles byte ranges and decides where the bytes come from: files in the
+ * local disk cache or in a tier on the local filesystem are sent zero-copy,
+ * everything else is read from the tier holding the bytes, normally the GridFS
+ * chunks (filling the cache on the way when the file is admitted).
+ * <p>
+ * Files stored with a codec are sent as stored with a Content-Encoding when
+ * the client accepts it, otherwise they are decoded while streaming.
+ * <p>
+ * The bytes behind an id never change, so responses carry a strong ETag made
+ * from the content hash and long lived Cache-Control. Conditional requests are
+ * answered from the file record without opening the bytes.
+ */
+@ApplicationScoped
+public class ArchiveDownloader {
+
+    @ConfigProperty(name = "archive.http.cacheControl") String cacheControl;
+    @ConfigProperty(name = "archive.http.fileInfoCacheControl") String fileInfoCacheControl;
+
+    @Inject
+    MetadataCache metadataCache;
+
+    @Inject
+    BlobBackends backends;
+
+    @Inject
+    BlobDiskCache diskCache;
+
+    @Inject
+    ArchiveMetrics metrics;
+
+    @Inject
+    ByteRateLimiter rateLimiter;
+
+    /**
+     * Where the bytes of a download come from
+     */
+    private interface ByteSource {
+
+        long length();
+
+        /**
+         * Writes the bytes from start to end (inclusive)
+         */
+        void copy(long start, long end, OutputStream out) throws IOException;
+
+        void copyAll(OutputStream out) throws IOException;
+
+        /**
+         * Opens all the bytes as a stream
+         */
+        InputStream open() throws IOException;
+
+        /**
+         * Entity that sends the bytes without copying them through
+         * the heap, or null if this source can't do that
+         */
+        default Object zeroCopy(long start, long length) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the response for downloading the file
+     *
+     * @param id             Hex string id of the file
+     * @param rangeHeader    Value of the Range header, may be null
+     * @param acceptEncoding  Value of the Accept-Encoding header, may be null
+     * @param ifNoneMatch     Value of the If-None-Match header, may be null
+     * @param ifModifiedSince Value of the If-Modified-Since header, may be null
+     * @param ifRange         Value of the If-Range header, may be null
+     */
+    public Response download(String id, String rangeHeader, String acceptEncoding,
+                             String ifNoneMatch, String ifModifiedSince, String ifRange) {
+        long requestStart = System.nanoTime();
+
+        // Load the file record once, it gives us the filename for the
+        // download headers and the length/chunk size needed for ranges.
+        // Deduplicated records read the chunks of the file that owns them
+        Document record = metadataCache.findFile(id);
+        String fileName = record.getString(GridFSRepository.FILENAME);
+        Document blob = metadataCache.findBlob(record);
+        String ticketNumber = GridFSRepository.metadataOf(record).getString(GridFSRepository.TICKET_NUMBER);
+
+        StorageCodec codec = StorageCodec.of(blob);
+        boolean passthrough = codec != StorageCodec.NONE && codec.acceptedBy(acceptEncoding);
+
+        HttpValidators validators = validatorsOf(record, blob, passthrough ? codec : StorageCodec.NONE);
+        if (validators.notModified(ifNoneMatch, ifModifiedSince)) {
+            return cacheHeaders(Response.notModified(), validators, codec).build();
+        }
+        if (!validators.rangeApplies(ifRange)) {
+            // The client's partial copy is of something else, start over
+            rangeHeader = null;
+        }
+
+        // Zero-copy sends can't be slowed down, so they are skipped when rate limited
+        ByteSource source = storedSource(blob, !rateLimiter.isEnabled(ByteRateLimiter.Direction.DOWNLOAD));
+        if (codec != StorageCodec.NONE && !passthrough) {
+            source = decodedSource(source, codec, GridFSRepository.contentLengthOf(blob));
+        }
+        long length = source.length();
+
+        List<ByteRange> ranges = ByteRange.parse(rangeHeader, length);
+        Response.ResponseBuilder builder;
+
+        if (ranges != null && ranges.isEmpty()) {
+            builder = Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header("Content-Range", "bytes */" + length);
+
+        } else if (ranges == null) {
+
+            // No (usable) Range header so send the whole thing
+            ByteSource full = source;
+            Object entity = source.zeroCopy(0, length);
+            builder = Response.ok(entity != null ? zeroCopied(entity, length) : send(full::copyAll, ticketNumber, requestStart))
+                    .header(HttpHeaders.CONTENT_LENGTH, length);
+
+        } else if (ranges.size() == 1) {
+
+            // Single range, only the chunks covering it are read
+            ByteRange range = ranges.get(0);
+            ByteSource ranged = source;
+            Object entity = source.zeroCopy(range.getStart(), range.getLength());
+            builder = Response.status(Response.Status.PARTIAL_CONTENT)
+                    .entity(entity != null
+                            ? zeroCopied(entity, range.getLength())
+                            : send(output -> ranged.copy(range.getStart(), range.getEnd(), output), ticketNumber, requestStart))
+                    .header("Content-Range", range.toContentRange(length))
+                    .header(HttpHeaders.CONTENT_LENGTH, range.getLength());
+
+        } else {
+
+            // Multiple ranges get sent back as multipart/byteranges
+            ByteSource ranged = source;
+            MultipartByteRanges multipart = new MultipartByteRanges(ranges, length, MediaType.APPLICATION_OCTET_STREAM);
+            StreamingOutput stream = output -> multipart.write(output, (range, out) -> ranged.copy(range.getStart(), range.getEnd(), out));
+            builder = Response.status(Response.Status.PARTIAL_CONTENT)
+                    .entity(send(stream, ticketNumber, requestStart))
+                    .type(multipart.getContentType())
+                    .header(HttpHeaders.CONTENT_LENGTH, multipart.getContentLength());
+        }
+
+        return representationHeaders(builder, fileName, codec, passthrough, validators).build();
+    }
+
+    /**
+     * Builds the response for a HEAD of the file, from the file record alone
+     *
+     * @param id              Hex string id of the file
+     * @param acceptEncoding  Value of the Accept-Encoding header, may be null
+     * @param ifNoneMatch     Value of the If-None-Match header, may be null
+     * @param ifModifiedSince Value of the If-Modified-Since header, may be null
+     */
+    public Response head(String id, String acceptEncoding, String ifNoneMatch, String ifModifiedSince) {
+        Document record = metadataCache.findFile(id);
+        Document blob = metadataCache.findBlob(record);
+
+        StorageCodec codec = StorageCodec.of(blob);
+        boolean passthrough = codec != StorageCodec.NONE && codec.acceptedBy(acceptEncoding);
+
+        HttpValidators validators = validatorsOf(record, blob, passthrough ? codec : StorageCodec.NONE);
+        if (validators.notModified(ifNoneMatch, ifModifiedSince)) {
+            return cacheHeaders(Response.notModified(), validators, codec).build();
+        }
+
+        // Same length the GET would send for the whole file
+        long length = codec == StorageCodec.NONE || passthrough
+                ? GridFSRepository.lengthOf(blob)
+                : GridFSRepository.contentLengthOf(blob);
+
+        Response.ResponseBuilder builder = Response.ok()
+                .type(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_LENGTH, length);
+        return representationHeaders(builder, record.getString(GridFSRepository.FILENAME), codec, passthrough, validators).build();
+    }
+
+    /**
+     * Validators for a download of the file
+     * <p>
+     * Every record with the same content hash has the same bytes, so the hash is
+     * the ETag. Sending the stored encoding is a different representation and
+     * gets its own tag.
+     *
+     * @param record The files document that was asked for
+     * @param blob   The files document owning the chunks
+     * @param sentAs Codec of the bytes sent, NONE when they are sent decoded
+     */
+    public static HttpValidators validatorsOf(Document record, Document blob, StorageCodec sentAs) {
+        String hash = GridFSRepository.metadataOf(record).getString(GridFSRepository.HASH);
+        if (hash == null) {
+            hash = GridFSRepository.metadataOf(blob).getString(GridFSRepository.HASH);
+        }
+        String etag = hash == null || sentAs == StorageCodec.NONE ? hash : hash + "-" + sentAs.getEncoding();
+        return new HttpValidators(HttpValidators.strong(etag), record.getDate(GridFSRepository.UPLOAD_DATE));
+    }
+
+    /**
+     * Cache-Control sent with downloads
+     */
+    public String cacheControl() {
+        return cacheControl;
+    }
+
+    /**
+     * Cache-Control sent with file info, which can change after it is stored
+     */
+    public String fileInfoCacheControl() {
+        return fileInfoCacheControl;
+    }
+
+    /**
+     * Headers a 304 has to repeat so caches can refresh what they hold
+     */
+    private Response.ResponseBuilder cacheHeaders(Response.ResponseBuilder builder, HttpValidators validators, StorageCodec codec) {
+        if (codec != StorageCodec.NONE) {
+            builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        return builder
+                .header(HttpHeaders.ETAG, validators.getETag())
+                .header(HttpHeaders.LAST_MODIFIED, validators.getLastModified())
+                .header(HttpHeaders.CACHE_CONTROL, cacheControl);
+    }
+
+    private Response.ResponseBuilder representationHeaders(Response.ResponseBuilder builder, String fileName, StorageCodec codec,
+                                                           boolean passthrough, HttpValidators validators) {
+        if (passthrough) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, codec.getEncoding());
+        }
+        return cacheHeaders(builder, validators, codec)
+                .header("Content-Disposition", "attachment; filename=" + fileName)
+                .header("Accept-Ranges", "bytes");
+    }
+
+    /**
+     * Rate limits and instruments a streamed body
+     */
+    private StreamingOutput send(StreamingOutput body, String ticketNumber, long requestStart) {
+        return metrics.instrumentDownload(output -> body.write(rateLimiter.limit(output, ticketNumber)), requestStart);
+    }
+
+    /**
+     * Zero-copy bodies never pass through our streams so their
+     * bytes are counted up front and there is no time to first byte
+     */
+    private Object zeroCopied(Object entity, long length) {
+        metrics.downloadedBytes(length);
+        return entity;
+    }
+
+    /**
+     * Opens the original content of the file as a stream, decoding it if needed
+     *
+     * @param blob The files document owning the chunks
+     */
+    public InputStream openContent(Document blob) throws IOException {
+        StorageCodec codec = StorageCodec.of(blob);
+        InputStream stored = storedSource(blob, false).open();
+        return codec == StorageCodec.NONE ? stored : codec.decode(stored);
+    }
+
+    /**
+     * The bytes as they are stored, from the disk cache when present, otherwise from the tier holding them
+     * <p>
+     * StreamingOutput needs the {@link org.acme.util.StreamingOutputMessageBodyWriter}
+     * under RESTEasy Reactive
+     *
+     * @param allowZeroCopy Whether cached files may be sent zero-copy
+     */
+    private ByteSource storedSource(Document blob, boolean allowZeroCopy) {
+        long length = GridFSRepository.lengthOf(blob);
+        BlobBackend backend = backends.of(blob);
+
+        // Bytes already on local disk are read from there, the cache is for the rest
+        Path local = backend.localFile(blob);
+        Path cached = local != null ? local : diskCache.get(blob);
+
+        if (cached != null) {
+            return new ByteSource() {
+                @Override
+                public long length() {
+                    return length;
+                }
+
+                @Override
+                public void copy(long start, long end, OutputStream out) throws IOException {
+                    transfer(cached, start, end - start + 1, out);
+                }
+
+                @Override
+                public void copyAll(OutputStream out) throws IOException {
+                    transfer(cached, 0, length, out);
+                }
+
+                @Override
+                public InputStream open() throws IOException {
+                    return Files.newInputStream(cached);
+                }
+
+                @Override
+                public Object zeroCopy(long start, long count) {
+                    return allowZeroCopy ? new PathPart(cached, start, count) : null;
+                }
+            };
+        }
+
+        return new ByteSource() {
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public void copy(long start, long end, OutputStream out) throws IOException {
+                backend.copyRange(blob, start, end, out);
+            }
+
+            /**
+             * Copies the whole file into the disk cache at the same time if it is admitted
+             */
+            @Override
+            public void copyAll(OutputStream out) throws IOException {
+                BlobDiskCache.Fill fill = diskCache.startFill(blob);
+                if (fill == null) {
+                    backend.copyAll(blob, out);
+                    return;
+                }
+
+                boolean success = false;
+                try {
+                    backend.copyAll(blob, fill.tee(out));
+                    success = true;
+                } finally {
+                    fill.finish(success);
+                }
+            }
+
+            /**
+             * Reads the whole file through the cache fill, if admitted, so
+             * decoded downloads warm the cache too
+             */
+            @Override
+            public InputStream open() throws IOException {
+                InputStream in = backend.openStream(blob);
+                BlobDiskCache.Fill fill = diskCache.startFill(blob);
+                return fill != null ? fill.tee(in) : in;
+            }
+        };
+    }
+
+    /**
+     * The original bytes of a file stored with a codec, decoded on the fly
+     * <p>
+     * Ranges can't seek in the encoded bytes, so everything before
+     * the start of a range is decoded and thrown away.
+     */
+    private ByteSource decodedSource(ByteSource stored, StorageCodec codec, long length) {
+        return new ByteSource() {
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public void copy(long start, long end, OutputStream out) throws IOException {
+                try (InputStream in = codec.decode(stored.open())) {
+                    in.skipNBytes(start);
+                    byte[] buffer = new byte[64 * 1024];
+                    long remaining = end - start + 1;
+                    while (remaining > 0) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read == -1) {
+                            throw new IOException("Decoded file shorter than expected");
+                        }
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                }
+            }
+
+            @Override
+            public void copyAll(OutputStream out) throws IOException {
+                try (InputStream in = codec.decode(stored.open())) {
+                    in.transferTo(out);
+                }
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                return codec.decode(stored.open());
+            }
+        };
+    }
+
+    /**
+     * Sends part of a cached file using transferTo so the bytes don't
+     * need to be copied through the heap
+     */
+    private static void transfer(Path cached, long position, long count, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        try (FileChannel channel = FileChannel.open(cached, StandardOpenOption.READ)) {
+            long remaining = count;
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, target);
+                if (sent == 0 && position >= channel.size()) {
+                    throw new IOException("Cached file " + cached + " is shorter than expected");
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.acme.storage;
+
+import org.bson.Document;
+
+/**
+ * Fired by the {@link ArchiveStore} whenever a record is stored or deleted
+ * so anything caching or summarising the archive can keep up
+ */
+public class ArchiveEvent {
+
+    public enum Type {
+        STORED,
+        DELETED
+    }
+
+    private final Type type;
+    private final Document file;
+
+    public ArchiveEvent(Type type, Document file) {
+        this.type = type;
+        this.file = file;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * The files document of the record as it was when stored, or just before it was deleted
+     */
+    public Document getFile() {
+        return file;
+    }
+
+    public Object getId() {
+        return file.get("_id");
+    }
+}
@@ -0,0 +1,638 @@
+package org.acme.storage;
+
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import org.acme.admission.ByteRateLimiter;
+import org.acme.cache.ExistenceFilter;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.gridfs.GridFSStreamingUploader;
+import org.acme.metrics.ArchiveMetrics;
+import org.acme.tier.BlobBackends;
+import org.acme.tier.ContentDefinedBlobBackend;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
+
+/**
+ * Content addressed storage of the archived files
+ * <p>
+ * The first upload of some content owns the chunks and keeps a count of how
+ * many records reference them. Any later upload with the same SHA-256 only
+ * gets its own files record (filename, ticketNumber, etc.) pointing at the
+ * owner, no chunks are written. Deleting a record only removes the chunks
+ * once the last reference to them is gone.
+ * <p>
+ * An owner is only removed together with its bytes by an atomic delete that checks
+ * the count is down to one. Otherwise it is claimed, which stops new references,
+ * and the bytes are handed to one of the records referencing them. Records whose
+ * reference was counted but never written (a crash) leave the count too high, so
+ * the hand-over waits at most ALIAS_WAIT for references it can't see; counts only
+ * ever err on the high side.
+ * <p>
+ * New content is stored with the codec picked by the {@link CompressionPolicy}.
+ * When archive.chunking.mode is cdc, streamed uploads go to the
+ * {@link ContentDefinedBlobBackend} instead, which shares chunks between files
+ * that are only mostly the same. Those are stored without a codec.
+ */
+@ApplicationScoped
+public class ArchiveStore {
+
+    private final static Logger LOG = LoggerFactory.getLogger(ArchiveStore.class);
+
+    // How long a hand-over waits for references counted but not written yet
+    static final Duration ALIAS_WAIT = Duration.ofSeconds(2);
+
+    // Claims older than this are left over from a crash and can be taken over
+    static final Duration CLAIM_TIMEOUT = Duration.ofMinutes(10);
+
+    @ConfigProperty(name = "archive.chunking.mode", defaultValue = "fixed") String chunkingMode;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    GridFSStreamingUploader uploader;
+
+    @Inject
+    ExistenceFilter existenceFilter;
+
+    @Inject
+    CompressionPolicy compressionPolicy;
+
+    @Inject
+    ArchiveMetrics metrics;
+
+    @Inject
+    ByteRateLimiter rateLimiter;
+
+    @Inject
+    BlobBackends backends;
+
+    @Inject
+    ContentDefinedBlobBackend contentDefined;
+
+    @Inject
+    Event<ArchiveEvent> events;
+
+    /**
+     * Stores a file that has already been received, e.g. a spooled multipart upload
+     * <p>
+     * Since the whole file is available, the hash is computed first and
+     * nothing is written if the content is already stored.
+     */
+    public ObjectId store(Path file, String filename, Map<String, Object> metaData) throws IOException {
+        return metrics.timeUpload(() -> storeFile(file, filename, metaData));
+    }
+
+    private ObjectId storeFile(Path file, String filename, Map<String, Object> metaData) throws IOException {
+        String hash;
+        try (InputStream in = Files.newInputStream(file)) {
+            hash = DigestUtils.sha256Hex(in);
+        }
+
+        Document owner = findOwner(hash);
+        if (owner != null) {
+            ObjectId aliasId = createAlias(owner, filename, metaData);
+            if (aliasId != null) {
+                // Nothing goes through the uploader, so count the received bytes here
+                metrics.uploadedBytes(Files.size(file));
+                return stored(aliasId);
+            }
+        }
+
+        StorageCodec codec = compressionPolicy.choose(filename, Files.size(file));
+        try (InputStream in = Files.newInputStream(file)) {
+            return store(in, filename, metaData, codec);
+        }
+    }
+
+    /**
+     * Stores a stream of data
+     * <p>
+     * The hash is only known once the data has been read, so if the content
+     * turns out to be stored already the new chunks are dropped and the record
+     * points at the existing copy instead.
+     */
+    public ObjectId store(InputStream in, String filename, Map<String, Object> metaData) throws IOException {
+        // Reading slower holds back the client, which is what the rate limit is for
+        InputStream limited = rateLimiter.limit(in, (String) metaData.get(GridFSRepository.TICKET_NUMBER));
+        return metrics.timeUpload(() -> store(limited, filename, metaData, compressionPolicy.choose(filename, -1)));
+    }
+
+    private ObjectId store(InputStream in, String filename, Map<String, Object> metaData, StorageCodec codec) throws IOException {
+        GridFSStreamingUploader.Result result = ContentDefinedBlobBackend.TIER.equalsIgnoreCase(chunkingMode)
+                ? contentDefined.upload(in, filename, metaData)
+                : uploader.upload(in, filename, metaData, codec);
+
+        // The oldest copy always wins so two identical uploads racing
+        // each other can't both drop their chunks
+        Document owner = findOwner(result.getHash());
+        if (owner == null || owner.getObjectId("_id").equals(result.getId())) {
+            return stored(result.getId());
+        }
+
+        ObjectId aliasId = createAlias(owner, filename, metaData);
+        if (aliasId == null) {
+            return stored(result.getId());
+        }
+
+        discard(result.getId());
+        return stored(aliasId);
+    }
+
+    /**
+     * Stores a file whose chunks have already been written under the given id
+     * <p>
+     * Used for uploads sent in parts, see {@link org.acme.upload.UploadSessions}.
+     * The bytes are stored as is. If the content turns out to be stored already the
+     * chunks are dropped and the record points at the existing copy instead.
+     *
+     * @param id     The files_id of the chunks, becomes the id of the file
+     * @param length    Number of bytes in the chunks
+     * @param chunkSize Size of every chunk but the last
+     * @param hash      SHA-256 of the bytes
+     */
+    public ObjectId storeChunks(ObjectId id, String filename, Map<String, Object> metaData, long length, int chunkSize, String hash) {
+        Document owner = findOwner(hash);
+        if (owner != null) {
+            ObjectId aliasId = createAlias(owner, filename, metaData);
+            if (aliasId != null) {
+                repository.chunks().deleteMany(eq(GridFSRepository.FILES_ID, id));
+                return stored(aliasId);
+            }
+        }
+
+        Document metadata = new Document(metaData)
+                .append(GridFSRepository.HASH, hash)
+                .append(GridFSRepository.REF_COUNT, 1);
+        repository.files().insertOne(new Document("_id", id)
+                .append(GridFSRepository.LENGTH, length)
+                .append(GridFSRepository.CHUNK_SIZE, chunkSize)
+                .append(GridFSRepository.UPLOAD_DATE, new Date())
+                .append(GridFSRepository.FILENAME, filename)
+                .append(GridFSRepository.METADATA, metadata));
+
+        // Same race as a streamed upload, the oldest copy wins
+        owner = findOwner(hash);
+        if (owner == null || owner.getObjectId("_id").equals(id)) {
+            return stored(id);
+        }
+        ObjectId aliasId = createAlias(owner, filename, metaData);
+        if (aliasId == null) {
+            return stored(id);
+        }
+        discard(id);
+        return stored(aliasId);
+    }
+
+    /**
+     * Deletes the record, removing the chunks once nothing else references them
+     * <p>
+     * Does nothing if another call is deleting the record already.
+     *
+     * @param id Hex string id of the file
+     */
+    public void delete(String id) {
+        Document file = repository.findFile(id);
+
+        // Just a reference, drop the record and release the chunks
+        if (GridFSRepository.metadataOf(file).get(GridFSRepository.BLOB_ID) != null) {
+            Document removed = repository.files().findOneAndDelete(and(
+                    eq("_id", file.get("_id")), exists(GridFSRepository.METADATA_BLOB_ID, true), unclaimed()));
+            if (removed != null) {
+                repository.files().updateOne(eq("_id", GridFSRepository.metadataOf(removed).get(GridFSRepository.BLOB_ID)), inc(GridFSRepository.METADATA_REF_COUNT, -1));
+                events.fire(new ArchiveEvent(ArchiveEvent.Type.DELETED, removed));
+                return;
+            }
+
+            // Handed the chunks in the meantime, otherwise someone else is deleting it
+            file = repository.files().find(and(eq("_id", file.get("_id")), exists(GridFSRepository.METADATA_BLOB_ID, false))).first();
+            if (file == null) {
+                return;
+            }
+        }
+
+        deleteOwner(file, true);
+    }
+
+    /**
+     * Deletes a record owning its bytes, handing them over if anything still references them
+     *
+     * @param notify Whether to fire the event, not for duplicates that were never announced
+     */
+    private void deleteOwner(Document file, boolean notify) {
+        Object ownerId = file.get("_id");
+
+        // The count is checked by the delete itself, so no reference can be added in between
+        Document removed = repository.files().findOneAndDelete(and(eq("_id", ownerId),
+                exists(GridFSRepository.METADATA_BLOB_ID, false), unclaimed(), unreferenced()));
+        if (removed != null) {
+            dropBytes(removed);
+            if (notify) {
+                events.fire(new ArchiveEvent(ArchiveEvent.Type.DELETED, removed));
+            }
+            return;
+        }
+
+        // Still referenced, stop new references before handing the bytes over
+        ObjectId claim = new ObjectId();
+        Document claimed = repository.files().findOneAndUpdate(
+                and(eq("_id", ownerId), exists(GridFSRepository.METADATA_BLOB_ID, false), unclaimed()),
+                set(GridFSRepository.METADATA_DELETING, claim),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        if (claimed == null) {
+            // Deleted or being deleted by another call
+            return;
+        }
+
+        handOver(claimed, claim);
+        if (notify) {
+            events.fire(new ArchiveEvent(ArchiveEvent.Type.DELETED, claimed));
+        }
+    }
+
+    /**
+     * Passes the bytes of a claimed owner to one of its references and removes it,
+     * or removes it with its bytes if no reference turns up
+     */
+    private void handOver(Document owner, ObjectId claim) {
+        Object ownerId = owner.get("_id");
+        for (;;) {
+            Document alias = awaitAlias(ownerId);
+            if (alias == null) {
+                Document removed = repository.files().findOneAndDelete(and(eq("_id", ownerId), eq(GridFSRepository.METADATA_DELETING, claim)));
+                if (removed != null) {
+                    dropBytes(removed);
+                }
+                return;
+            }
+            if (promote(ownerId, alias, claim)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The oldest record referencing the owner, once every counted reference is
+     * visible or ALIAS_WAIT has passed
+     */
+    private Document awaitAlias(Object ownerId) {
+        long deadline = System.nanoTime() + ALIAS_WAIT.toNanos();
+        Bson references = and(eq(GridFSRepository.METADATA_BLOB_ID, ownerId), unclaimed());
+        while (System.nanoTime() < deadline) {
+            Document owner = repository.files().find(eq("_id", ownerId)).first();
+            if (owner == null || repository.files().countDocuments(references) >= refCountOf(owner) - 1) {
+                break;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return repository.files().find(references).sort(Sorts.ascending("_id")).first();
+    }
+
+    /**
+     * Deletes many records at once, using bulk deletes of the files and chunks
+     * <p>
+     * The records are claimed first, so no other delete releases them too and no
+     * new references are made to the owners. References are dropped together and
+     * release their share of the chunks. Owners nothing else references are dropped
+     * together with their chunks, owners still referenced hand their chunks over one
+     * by one.
+     * <p>
+     * Running it again with the same records and claim, e.g. after a crash part way
+     * through, takes back the records the crashed run claimed and finishes the job.
+     * Records already gone are skipped, the owners passed to dropping before a crash
+     * are cleaned up with {@link #dropBytesOf}.
+     *
+     * @param files    The files documents of the records to delete
+     * @param claim    Claim to mark the records with
+     * @param dropping Told about the owners whose bytes go with them before their records are deleted
+     * @return The records deleted by this call
+     */
+    public List<Document> deleteBatch(List<Document> files, ObjectId claim, Consumer<List<Document>> dropping) {
+        List<Object> ids = files.stream().map(file -> file.get("_id")).collect(Collectors.toList());
+        repository.files().updateMany(and(in("_id", ids), or(unclaimed(), eq(GridFSRepository.METADATA_DELETING, claim))),
+                set(GridFSRepository.METADATA_DELETING, claim));
+
+        List<Document> aliases = new ArrayList<>();
+        Map<Object, Document> owners = new LinkedHashMap<>();
+        for (Document file : repository.files().find(and(in("_id", ids), eq(GridFSRepository.METADATA_DELETING, claim)))) {
+            if (GridFSRepository.metadataOf(file).get(GridFSRepository.BLOB_ID) != null) {
+                aliases.add(file);
+            } else {
+                owners.put(file.get("_id"), file);
+            }
+        }
+
+        List<Document> deleted = new ArrayList<>();
+        if (!aliases.isEmpty()) {
+            repository.files().deleteMany(and(
+                    in("_id", aliases.stream().map(alias -> alias.get("_id")).collect(Collectors.toList())),
+                    eq(GridFSRepository.METADATA_DELETING, claim)));
+
+            Map<Object, Integer> released = new HashMap<>();
+            for (Document alias : aliases) {
+                released.merge(GridFSRepository.metadataOf(alias).get(GridFSRepository.BLOB_ID), 1, Integer::sum);
+            }
+            List<WriteModel<Document>> updates = new ArrayList<>();
+            released.forEach((ownerId, count) -> updates.add(new UpdateOneModel<>(eq("_id", ownerId), inc(GridFSRepository.METADATA_REF_COUNT, -count))));
+            repository.files().bulkWrite(updates, new BulkWriteOptions().ordered(false));
+            deleted.addAll(aliases);
+        }
+
+        List<Document> handedOver = new ArrayList<>();
+        if (!owners.isEmpty()) {
+            // Claimed, so nothing can start referencing them now
+            List<Document> gone = repository.files().find(and(in("_id", owners.keySet()), eq(GridFSRepository.METADATA_DELETING, claim), unreferenced()))
+                    .into(new ArrayList<>());
+            Set<Object> goneIds = gone.stream().map(owner -> owner.get("_id")).collect(Collectors.toSet());
+            if (!gone.isEmpty()) {
+                // Their chunks id and tier location are lost with the records
+                dropping.accept(gone);
+                repository.files().deleteMany(and(in("_id", goneIds), eq(GridFSRepository.METADATA_DELETING, claim)));
+                dropChunksOf(gone);
+                deleted.addAll(gone);
+            }
+
+            for (Document owner : owners.values()) {
+                if (!goneIds.contains(owner.get("_id"))) {
+                    handedOver.add(owner);
+                }
+            }
+            for (Document owner : handedOver) {
+                handOver(owner, claim);
+            }
+        }
+
+        deleted.addAll(handedOver);
+        for (Document file : deleted) {
+            events.fire(new ArchiveEvent(ArchiveEvent.Type.DELETED, file));
+        }
+        return deleted;
+    }
+
+    /**
+     * Removes the bytes of owners a crashed {@link #deleteBatch} passed to dropping,
+     * owners whose records are still there are left alone
+     */
+    public void dropBytesOf(List<Document> owners) {
+        if (owners.isEmpty()) {
+            return;
+        }
+        Set<Object> present = new HashSet<>();
+        repository.files().find(in("_id", owners.stream().map(owner -> owner.get("_id")).collect(Collectors.toList())))
+                .projection(new Document("_id", 1))
+                .forEach(file -> present.add(file.get("_id")));
+        dropChunksOf(owners.stream().filter(owner -> !present.contains(owner.get("_id"))).collect(Collectors.toList()));
+    }
+
+    /**
+     * Removes the bytes of owners that have just been deleted
+     */
+    private void dropChunksOf(List<Document> owners) {
+        if (owners.isEmpty()) {
+            return;
+        }
+        repository.chunks().deleteMany(in(GridFSRepository.FILES_ID,
+                owners.stream().map(GridFSRepository::chunksIdOf).collect(Collectors.toList())));
+        for (Document owner : owners) {
+            deleteFromTier(owner);
+        }
+    }
+
+    /**
+     * Removes a freshly stored duplicate, handing its bytes over if a
+     * concurrent upload started referencing it
+     */
+    private void discard(ObjectId id) {
+        Document duplicate = repository.files().find(eq("_id", id)).first();
+        if (duplicate != null) {
+            deleteOwner(duplicate, false);
+        }
+    }
+
+    /**
+     * Removes the bytes of an owner that has just been deleted
+     */
+    private void dropBytes(Document owner) {
+        repository.chunks().deleteMany(eq(GridFSRepository.FILES_ID, GridFSRepository.chunksIdOf(owner)));
+        deleteFromTier(owner);
+    }
+
+    /**
+     * Removes bytes moved out of GridFS, the chunks went with the record
+     */
+    private void deleteFromTier(Document file) {
+        if (BlobBackends.inGridFS(file)) {
+            return;
+        }
+
+        // A record handed the bytes before a crash owns them now
+        String location = GridFSRepository.metadataOf(file).getString(GridFSRepository.LOCATION);
+        if (location != null && repository.files().find(eq(GridFSRepository.METADATA_LOCATION, location)).first() != null) {
+            return;
+        }
+        try {
+            backends.of(file).delete(file);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to remove the bytes of {} from the {} tier", file.get("_id"),
+                    GridFSRepository.metadataOf(file).getString(GridFSRepository.TIER), e);
+        }
+    }
+
+    /**
+     * Lets observers know about the new record
+     */
+    private ObjectId stored(ObjectId id) {
+        Document file = repository.files().find(eq("_id", id)).first();
+        if (file != null) {
+            events.fire(new ArchiveEvent(ArchiveEvent.Type.STORED, file));
+        }
+        return id;
+    }
+
+    /**
+     * Finds the file owning the chunks for the given content
+     *
+     * @return The owning files document or null if the content isn't stored
+     */
+    public Document findOwner(String hash) {
+        if (!existenceFilter.mightContainHash(hash)) {
+            return null;
+        }
+        return repository.files()
+                .find(and(eq(GridFSRepository.METADATA_HASH, hash), exists(GridFSRepository.METADATA_BLOB_ID, false), unclaimed()))
+                .sort(Sorts.ascending("_id"))
+                .first();
+    }
+
+    /**
+     * Writes a record pointing at the chunks of the owner
+     *
+     * @return The id of the new record or null if the owner is gone or being deleted
+     */
+    ObjectId createAlias(Document owner, String filename, Map<String, Object> metaData) {
+        Object ownerId = owner.get("_id");
+        Document ownerMetadata = GridFSRepository.metadataOf(owner);
+        Bson available = and(eq("_id", ownerId), exists(GridFSRepository.METADATA_BLOB_ID, false), unclaimed());
+
+        // Files stored before deduplication have no count and are a single reference
+        repository.files().updateOne(and(available, exists(GridFSRepository.METADATA_REF_COUNT, false)),
+                set(GridFSRepository.METADATA_REF_COUNT, 1));
+
+        // Count the reference first, a delete of the owner then sees it and hands the
+        // bytes over instead of removing them
+        UpdateResult counted = repository.files().updateOne(available, inc(GridFSRepository.METADATA_REF_COUNT, 1));
+        if (counted.getMatchedCount() == 0) {
+            return null;
+        }
+
+        Document metadata = new Document(metaData)
+                .append(GridFSRepository.HASH, ownerMetadata.get(GridFSRepository.HASH))
+                .append(GridFSRepository.BLOB_ID, ownerId);
+
+        // Describes the shared bytes the same way the owner does
+        if (ownerMetadata.containsKey(GridFSRepository.ENCODING)) {
+            metadata.append(GridFSRepository.ENCODING, ownerMetadata.get(GridFSRepository.ENCODING))
+                    .append(GridFSRepository.ORIGINAL_LENGTH, ownerMetadata.get(GridFSRepository.ORIGINAL_LENGTH));
+        }
+
+        ObjectId id = new ObjectId();
+        Document alias = new Document("_id", id)
+                .append(GridFSRepository.FILENAME, filename)
+                .append(GridFSRepository.LENGTH, owner.get(GridFSRepository.LENGTH))
+                .append(GridFSRepository.CHUNK_SIZE, owner.get(GridFSRepository.CHUNK_SIZE))
+                .append(GridFSRepository.UPLOAD_DATE, new Date())
+                .append(GridFSRepository.METADATA, metadata);
+
+        try {
+            repository.files().insertOne(alias);
+        } catch (RuntimeException e) {
+            repository.files().updateOne(eq("_id", ownerId), inc(GridFSRepository.METADATA_REF_COUNT, -1));
+            throw e;
+        }
+
+        // A delete that claimed the owner before the record was visible may hand
+        // the bytes over without it, back out and let the caller store the bytes.
+        // Unless the hand-over already picked it up, then it is a valid record.
+        if (repository.files().find(available).first() == null
+                && repository.files().deleteOne(and(eq("_id", id), eq(GridFSRepository.METADATA_BLOB_ID, ownerId))).getDeletedCount() > 0) {
+            repository.files().updateOne(eq("_id", ownerId), inc(GridFSRepository.METADATA_REF_COUNT, -1));
+            return null;
+        }
+
+        LOG.debug("Stored {} as a reference to {}", id, ownerId);
+        return id;
+    }
+
+    /**
+     * Makes one of the records referencing a claimed owner the new owner and removes the old one
+     * <p>
+     * The chunks stay under the files_id they were written with, the new owner
+     * names it, so reads that already resolved the old owner carry on. Bytes in
+     * another tier stay where they are, the new owner takes over the tier and
+     * location. The count moves over with an $inc so references counted on the
+     * new owner meanwhile are kept; releases that still reach the old owner are
+     * lost, which leaves the count too high rather than too low.
+     *
+     * @return False if the record went away before it could take over
+     */
+    private boolean promote(Object ownerId, Document alias, ObjectId claim) {
+        Object aliasId = alias.get("_id");
+        Document owner = repository.files().find(and(eq("_id", ownerId), eq(GridFSRepository.METADATA_DELETING, claim))).first();
+        if (owner == null) {
+            return true;
+        }
+        Document ownerMetadata = GridFSRepository.metadataOf(owner);
+
+        List<Bson> updates = new ArrayList<>();
+        updates.add(unset(GridFSRepository.METADATA_BLOB_ID));
+        updates.add(inc(GridFSRepository.METADATA_REF_COUNT, Math.max(1, refCountOf(owner) - 1)));
+        updates.add(set(GridFSRepository.METADATA_CHUNKS_ID, GridFSRepository.chunksIdOf(owner)));
+        for (String key : List.of(GridFSRepository.TIER, GridFSRepository.LOCATION, GridFSRepository.MIGRATED_AT)) {
+            if (ownerMetadata.containsKey(key)) {
+                updates.add(set(GridFSRepository.METADATA + "." + key, ownerMetadata.get(key)));
+            }
+        }
+
+        UpdateResult promoted = repository.files().updateOne(
+                and(eq("_id", aliasId), eq(GridFSRepository.METADATA_BLOB_ID, ownerId), unclaimed()), combine(updates));
+        if (promoted.getModifiedCount() == 0) {
+            return false;
+        }
+
+        repository.files().updateMany(
+                and(eq(GridFSRepository.METADATA_BLOB_ID, ownerId), ne("_id", aliasId)),
+                set(GridFSRepository.METADATA_BLOB_ID, aliasId));
+        repository.files().deleteOne(and(eq("_id", ownerId), eq(GridFSRepository.METADATA_DELETING, claim)));
+
+        LOG.debug("Handed the bytes of {} to {}", ownerId, aliasId);
+        return true;
+    }
+
+    private static int refCountOf(Document owner) {
+        Object count = GridFSRepository.metadataOf(owner).get(GridFSRepository.REF_COUNT);
+        return count instanceof Number ? ((Number) count).intValue() : 1;
+    }
+
+    /**
+     * Owners nothing else references, files stored before deduplication have no count
+     */
+    private static Bson unreferenced() {
+        return or(exists(GridFSRepository.METADATA_REF_COUNT, false), lte(GridFSRepository.METADATA_REF_COUNT, 1));
+    }
+
+    /**
+     * Records no delete is working on, claims older than CLAIM_TIMEOUT are abandoned
+     */
+    public static Bson unclaimed() {
+        ObjectId abandoned = new ObjectId(Date.from(Instant.now().minus(CLAIM_TIMEOUT)));
+        return or(exists(GridFSRepository.METADATA_DELETING, false), lt(GridFSRepository.METADATA_DELETING, abandoned));
+    }
+}
@@ -0,0 +1,56 @@
+package org.acme.storage;
+
+import io.quarkus.runtime.configuration.MemorySize;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Decides which codec a new upload is stored with
+ * <p>
+ * Files that are already compressed, going by their extension, and files
+ * too small to be worth it are stored as is.
+ */
+@ApplicationScoped
+public class CompressionPolicy {
+
+    @ConfigProperty(name = "archive.compression.codec", defaultValue = "none") String codecName;
+    @ConfigProperty(name = "archive.compression.minSize", defaultValue = "4K") MemorySize minSize;
+    @ConfigProperty(name = "archive.compression.skipExtensions", defaultValue = "gz,tgz,zip,7z,bz2,xz,zst,lz4,jpg,jpeg,png,gif,mp4")
+    List<String> skipExtensions;
+
+    private StorageCodec codec;
+    private Set<String> skipped;
+
+    @PostConstruct
+    void init() {
+        codec = StorageCodec.fromName(codecName);
+        skipped = skipExtensions.stream()
+                .map(e -> e.trim().toLowerCase(Locale.ROOT))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * @param filename Name of the file being stored
+     * @param length   Size of the file if known up front, otherwise -1
+     */
+    public StorageCodec choose(String filename, long length) {
+        if (codec == StorageCodec.NONE) {
+            return StorageCodec.NONE;
+        }
+        if (length >= 0 && length < minSize.asLongValue()) {
+            return StorageCodec.NONE;
+        }
+
+        int dot = filename != null ? filename.lastIndexOf('.') : -1;
+        if (dot >= 0 && skipped.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return StorageCodec.NONE;
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,220 @@
+package org.acme.storage;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.tuples.Tuple2;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.mutiny.core.buffer.Buffer;
+import org.acme.admission.ByteRateLimiter;
+import org.acme.exceptions.InvalidRequestException;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.gridfs.ReactiveGridFSService;
+import org.acme.metrics.ArchiveMetrics;
+import org.acme.tier.BlobBackends;
+import org.acme.util.ByteRange;
+import org.acme.util.HttpValidators;
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.json.Json;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Serves downloads without holding a worker thread when archive.storage.mode is reactive
+ * <p>
+ * The route sits in front of the JAX-RS download endpoint and streams the chunks
+ * from the reactive client straight into the Vert.x response. The next chunk is
+ * only requested once the response can take more, so thousands of slow clients
+ * cost open cursors rather than worker threads.
+ * <p>
+ * Requests this can't answer without blocking, multiple byte ranges and files that
+ * need decoding for the client, are passed on to the blocking endpoint. The disk
+ * cache is only filled by the blocking endpoint, so it isn't used here.
+ */
+@ApplicationScoped
+public class ReactiveDownloadRoute {
+
+    private final static Logger LOG = LoggerFactory.getLogger(ReactiveDownloadRoute.class);
+
+    public static final String MODE_REACTIVE = "reactive";
+
+    @ConfigProperty(name = "archive.storage.mode") String storageMode;
+
+    @Inject
+    ReactiveGridFSService gridFS;
+
+    @Inject
+    ArchiveMetrics metrics;
+
+    @Inject
+    ByteRateLimiter rateLimiter;
+
+    @Inject
+    ArchiveDownloader archiveDownloader;
+
+    void register(@Observes Router router) {
+        if (!MODE_REACTIVE.equalsIgnoreCase(storageMode)) {
+            return;
+        }
+
+        // Ahead of the JAX-RS routes so the blocking endpoint only sees what we pass on
+        router.get("/archive/download/:id").order(-1).handler(this::download);
+        LOG.info("Serving downloads reactively");
+    }
+
+    private void download(RoutingContext ctx) {
+        long requestStart = System.nanoTime();
+
+        // Mongo completes on its own threads, everything touching
+        // the request has to go back to the event loop
+        Context context = Vertx.currentContext();
+        Executor onContext = command -> context.runOnContext(ignored -> command.run());
+
+        String rangeHeader = ctx.request().getHeader("Range");
+        String acceptEncoding = ctx.request().getHeader(HttpHeaders.ACCEPT_ENCODING);
+        String ifNoneMatch = ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH);
+        String ifModifiedSince = ctx.request().getHeader(HttpHeaders.IF_MODIFIED_SINCE);
+        String ifRange = ctx.request().getHeader("If-Range");
+
+        // Hold the request so it is still intact if it gets passed on
+        ctx.request().pause();
+
+        gridFS.findFile(ctx.pathParam("id"))
+                .chain(record -> gridFS.findBlob(record).map(blob -> Tuple2.of(record, blob)))
+                .emitOn(onContext)
+                .subscribe().with(
+                        files -> {
+                            ctx.request().resume();
+                            respond(ctx, files.getItem1(), files.getItem2(), rangeHeader, acceptEncoding,
+                                    ifNoneMatch, ifModifiedSince, ifRange, requestStart, onContext);
+                        },
+                        failure -> {
+                            ctx.request().resume();
+                            error(ctx, failure);
+                        });
+    }
+
+    private void respond(RoutingContext ctx, Document record, Document blob, String rangeHeader, String acceptEncoding,
+                         String ifNoneMatch, String ifModifiedSince, String ifRange, long requestStart, Executor onContext) {
+
+        StorageCodec codec = StorageCodec.of(blob);
+        boolean passthrough = codec != StorageCodec.NONE && codec.acceptedBy(acceptEncoding);
+
+        // Answered here whatever the file needs, nothing has to be read for a 304
+        HttpValidators validators = ArchiveDownloader.validatorsOf(record, blob, passthrough ? codec : StorageCodec.NONE);
+        if (validators.notModified(ifNoneMatch, ifModifiedSince)) {
+            cacheHeaders(ctx.response(), validators, codec).setStatusCode(304).end();
+            return;
+        }
+        if (!validators.rangeApplies(ifRange)) {
+            rangeHeader = null;
+        }
+
+        long length = GridFSRepository.lengthOf(blob);
+        List<ByteRange> ranges = passthrough || codec == StorageCodec.NONE ? ByteRange.parse(rangeHeader, length) : null;
+
+        // Decoding and multipart/byteranges are stream based and other tiers
+        // aren't read reactively, leave them to the blocking endpoint
+        if ((codec != StorageCodec.NONE && !passthrough) || (ranges != null && ranges.size() > 1) || !BlobBackends.inGridFS(blob)) {
+            ctx.next();
+            return;
+        }
+
+        HttpServerResponse response = cacheHeaders(ctx.response(), validators, codec)
+                .putHeader("Content-Disposition", "attachment; filename=" + record.getString(GridFSRepository.FILENAME))
+                .putHeader("Accept-Ranges", "bytes");
+        if (passthrough) {
+            response.putHeader(HttpHeaders.CONTENT_ENCODING, codec.getEncoding());
+        }
+
+        Multi<Buffer> body;
+        long contentLength;
+        if (ranges != null && ranges.isEmpty()) {
+            response.setStatusCode(416)
+                    .putHeader("Content-Range", "bytes */" + length)
+                    .end();
+            return;
+        } else if (ranges == null) {
+            body = gridFS.read(blob);
+            contentLength = length;
+        } else {
+            ByteRange range = ranges.get(0);
+            response.setStatusCode(206).putHeader("Content-Range", range.toContentRange(length));
+            body = gridFS.read(blob, range.getStart(), range.getEnd());
+            contentLength = range.getLength();
+        }
+
+        if (rateLimiter.isEnabled(ByteRateLimiter.Direction.DOWNLOAD)) {
+            String ticketNumber = GridFSRepository.metadataOf(record).getString(GridFSRepository.TICKET_NUMBER);
+            body = body.onItem().call(buffer -> {
+                long wait = rateLimiter.reserve(ByteRateLimiter.Direction.DOWNLOAD, ticketNumber, buffer.length());
+                return wait > 0
+                        ? Uni.createFrom().voidItem().onItem().delayIt().by(Duration.ofNanos(wait))
+                        : Uni.createFrom().voidItem();
+            });
+        }
+
+        response.putHeader(HttpHeaders.CONTENT_TYPE, "application/octet-stream")
+                .putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(contentLength));
+
+        io.vertx.mutiny.core.http.HttpServerResponse.newInstance(response)
+                .send(metrics.instrumentDownload(body.emitOn(onContext), Buffer::length, requestStart))
+                .subscribe().with(
+                        ignored -> {
+                        },
+                        failure -> error(ctx, failure));
+    }
+
+    /**
+     * Same validator and cache headers as the blocking endpoint
+     */
+    private HttpServerResponse cacheHeaders(HttpServerResponse response, HttpValidators validators, StorageCodec codec) {
+        if (codec != StorageCodec.NONE) {
+            response.putHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (validators.getETag() != null) {
+            response.putHeader(HttpHeaders.ETAG, validators.getETag());
+        }
+        if (validators.getLastModified() != null) {
+            response.putHeader(HttpHeaders.LAST_MODIFIED, validators.getLastModified());
+        }
+        return response.putHeader(HttpHeaders.CACHE_CONTROL, archiveDownloader.cacheControl());
+    }
+
+    /**
+     * Sends the same error bodies as the exception handlers, or drops
+     * the connection if the response has already started
+     */
+    private void error(RoutingContext ctx, Throwable failure) {
+        HttpServerResponse response = ctx.response();
+        if (response.headWritten()) {
+            LOG.error("Download failed part way through", failure);
+            response.reset();
+            return;
+        }
+
+        int status;
+        if (failure instanceof InvalidRequestException) {
+            LOG.error("Invalid Request Exception", failure);
+            status = 400;
+        } else {
+            LOG.error("General Exception", failure);
+            status = 500;
+        }
+        response.setStatusCode(status)
+                .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+                .end(Json.createObjectBuilder().add("error", String.valueOf(failure.getMessage())).build().toString());
+    }
+}
@@ -0,0 +1,123 @@
+package org.acme.storage;
+
+import org.acme.gridfs.GridFSRepository;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How the bytes of a file are encoded in storage
+ * <p>
+ * The name of the codec is recorded in the file metadata and is also the
+ * HTTP Content-Encoding used when the stored bytes are sent as is.
+ */
+public enum StorageCodec {
+
+    NONE(null) {
+        @Override
+        public OutputStream encode(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    },
+
+    GZIP("gzip") {
+        @Override
+        public OutputStream encode(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String encoding;
+
+    StorageCodec(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Content-Encoding / metadata name, null for {@link #NONE}
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Wraps the output so everything written to it is encoded,
+     * the returned stream must be closed to flush the encoder
+     */
+    public abstract OutputStream encode(OutputStream out) throws IOException;
+
+    public abstract InputStream decode(InputStream in) throws IOException;
+
+    /**
+     * Codec the file was stored with
+     */
+    public static StorageCodec of(Document file) {
+        return fromName(GridFSRepository.metadataOf(file).getString(GridFSRepository.ENCODING));
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown codec
+     */
+    public static StorageCodec fromName(String name) {
+        if (name == null || name.isBlank() || name.equalsIgnoreCase("none") || name.equalsIgnoreCase("identity")) {
+            return NONE;
+        }
+        for (StorageCodec codec : values()) {
+            if (name.equalsIgnoreCase(codec.encoding)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec: " + name);
+    }
+
+    /**
+     * Whether the client's Accept-Encoding allows the stored bytes to be sent as is
+     */
+    public boolean acceptedBy(String acceptEncoding) {
+        if (this == NONE) {
+            return true;
+        }
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (coding.equals(encoding) || coding.equals("*")) {
+                return !isZeroQuality(parts);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isZeroQuality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2)) == 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
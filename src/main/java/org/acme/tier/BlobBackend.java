@@ -0,0 +1,69 @@
+package org.acme.tier;
+
+import org.bson.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * A place the stored bytes of a file can live
+ * <p>
+ * The files record always stays in Mongo, only the bytes move between tiers.
+ * Every method is given the files document owning the bytes, which names the
+ * tier and the location of the bytes in it. The bytes are kept as stored, so
+ * files stored with a codec are still encoded.
+ */
+public interface BlobBackend {
+
+    /**
+     * Name of the tier, as stored in the metadata of the files it holds
+     */
+    String tier();
+
+    /**
+     * Writes the bytes from start to end (inclusive) to the output
+     */
+    void copyRange(Document blob, long start, long end, OutputStream out) throws IOException;
+
+    /**
+     * Writes all the bytes to the output
+     */
+    void copyAll(Document blob, OutputStream out) throws IOException;
+
+    /**
+     * Opens all the bytes as a stream
+     */
+    InputStream openStream(Document blob) throws IOException;
+
+    /**
+     * Whether files can be moved into this tier with {@link #write}
+     */
+    default boolean isWritable() {
+        return false;
+    }
+
+    /**
+     * Stores the bytes of the file in this tier, only supported if it is writable
+     *
+     * @param in The stored bytes, read until the end of the stream
+     * @return Where the bytes ended up, kept as the location in the metadata
+     */
+    default String write(Document blob, InputStream in) throws IOException {
+        throw new UnsupportedOperationException("Files can't be moved to the " + tier() + " tier");
+    }
+
+    /**
+     * Removes the bytes from this tier, doing nothing if they are already gone
+     */
+    void delete(Document blob) throws IOException;
+
+    /**
+     * Local file holding the bytes, which can be sent zero-copy,
+     * or null if the bytes aren't on the local filesystem
+     */
+    default Path localFile(Document blob) {
+        return null;
+    }
+}
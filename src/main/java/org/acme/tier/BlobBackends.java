@@ -0,0 +1,65 @@
+package org.acme.tier;
+
+import org.acme.gridfs.GridFSRepository;
+import org.bson.Document;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the backend holding the bytes of a file
+ */
+@ApplicationScoped
+public class BlobBackends {
+
+    @Inject
+    Instance<BlobBackend> backends;
+
+    @Inject
+    GridFSBlobBackend gridFS;
+
+    private volatile Map<String, BlobBackend> byTier;
+
+    /**
+     * The backend for the tier the file is in, GridFS when it names none
+     *
+     * @param blob The files document owning the bytes
+     */
+    public BlobBackend of(Document blob) {
+        String tier = GridFSRepository.metadataOf(blob).getString(GridFSRepository.TIER);
+        return tier == null ? gridFS : named(tier);
+    }
+
+    /**
+     * The backend for the tier
+     *
+     * @throws IllegalStateException if no backend has that name
+     */
+    public BlobBackend named(String tier) {
+        Map<String, BlobBackend> tiers = byTier;
+        if (tiers == null) {
+            tiers = new HashMap<>();
+            for (BlobBackend backend : backends) {
+                tiers.put(backend.tier(), backend);
+            }
+            byTier = tiers;
+        }
+
+        BlobBackend backend = tiers.get(tier);
+        if (backend == null) {
+            throw new IllegalStateException("Unknown storage tier " + tier);
+        }
+        return backend;
+    }
+
+    /**
+     * Whether the bytes are in the GridFS chunks
+     */
+    public static boolean inGridFS(Document blob) {
+        String tier = GridFSRepository.metadataOf(blob).getString(GridFSRepository.TIER);
+        return tier == null || GridFSBlobBackend.TIER.equals(tier);
+    }
+}
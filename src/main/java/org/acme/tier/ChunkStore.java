@@ -0,0 +1,199 @@
+package org.acme.tier;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.scheduler.Scheduled;
+import org.acme.gridfs.GridFSRepository;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.setOnInsert;
+import static com.mongodb.client.model.Updates.unset;
+
+/**
+ * Chunks of the {@link ContentDefinedBlobBackend}, each stored once under its SHA-256
+ * <p>
+ * Every chunk counts the manifest entries referencing it. Counts drop as files
+ * are deleted and the collector removes chunks that have had no references for
+ * gcGrace. Adding a reference always upserts, so a chunk collected just before
+ * comes back rather than the reference pointing at nothing: it is marked missing
+ * until its bytes are written again, which the writer that recreated it does
+ * straight away and any later upload of the same chunk also does.
+ * <p>
+ * A crash between counting references and writing the manifest leaves counts too
+ * high, which keeps those chunks around but never loses any.
+ */
+@ApplicationScoped
+public class ChunkStore {
+
+    private final static Logger LOG = LoggerFactory.getLogger(ChunkStore.class);
+
+    static final String DATA = "data";
+    static final String LENGTH = "length";
+    static final String REFS = "refs";
+    static final String TOUCHED_AT = "touchedAt";
+    static final String MISSING = "missing";
+
+    /**
+     * Made at startup by the {@link org.acme.query.IndexManager}, the collector finds unreferenced chunks with it
+     */
+    public static final List<IndexModel> INDEXES = List.of(
+            new IndexModel(Indexes.ascending(REFS, TOUCHED_AT), new IndexOptions().name("refs_touchedAt")));
+
+    @ConfigProperty(name = "tier.cdc.gcGrace", defaultValue = "1H") Duration gcGrace;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    MeterRegistry registry;
+
+    private Counter writtenChunks;
+    private Counter writtenBytes;
+    private Counter reusedBytes;
+    private Counter collectedChunks;
+
+    @PostConstruct
+    void init() {
+        writtenChunks = registry.counter("archive.cdc.chunks.written");
+        writtenBytes = registry.counter("archive.cdc.bytes.written");
+        reusedBytes = registry.counter("archive.cdc.bytes.reused");
+        collectedChunks = registry.counter("archive.cdc.chunks.collected");
+    }
+
+    public MongoCollection<Document> collection() {
+        return repository.database().getCollection(repository.bucketName() + ".cdc.chunks");
+    }
+
+    /**
+     * Adds a reference to each chunk, writing the bytes of the ones not stored yet
+     *
+     * @param hashes SHA-256 of each chunk, in the same order
+     */
+    public void add(List<byte[]> chunks, List<String> hashes) {
+        // Only the chunks not stored yet send their bytes
+        Set<String> stored = new HashSet<>();
+        collection().find(and(in("_id", new HashSet<>(hashes)), exists(MISSING, false)))
+                .projection(new Document("_id", 1))
+                .forEach(chunk -> stored.add(chunk.getString("_id")));
+
+        Date now = new Date();
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+        List<WriteModel<Document>> writes = new ArrayList<>(chunks.size());
+        Set<Integer> counted = new HashSet<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            String hash = hashes.get(i);
+            byte[] chunk = chunks.get(i);
+            if (stored.contains(hash)) {
+                counted.add(i);
+                writes.add(new UpdateOneModel<>(eq("_id", hash), combine(
+                        inc(REFS, 1L), set(TOUCHED_AT, now), setOnInsert(MISSING, true), setOnInsert(LENGTH, chunk.length)), upsert));
+                reusedBytes.increment(chunk.length);
+            } else {
+                // Same chunk twice in one batch, the second only counts
+                stored.add(hash);
+                writes.add(new UpdateOneModel<>(eq("_id", hash), combine(
+                        inc(REFS, 1L), set(TOUCHED_AT, now), set(DATA, new Binary(chunk)), set(LENGTH, chunk.length), unset(MISSING)), upsert));
+                writtenChunks.increment();
+                writtenBytes.increment(chunk.length);
+            }
+        }
+
+        // Ordered, so a chunk repeated in the batch is written before it is counted again
+        BulkWriteResult result = collection().bulkWrite(writes, new BulkWriteOptions().ordered(true));
+
+        // Collected between the lookup and the write, put the bytes back
+        for (BulkWriteUpsert upserted : result.getUpserts()) {
+            if (!counted.contains(upserted.getIndex())) {
+                continue;
+            }
+            byte[] chunk = chunks.get(upserted.getIndex());
+            String hash = hashes.get(upserted.getIndex());
+            collection().updateOne(and(eq("_id", hash), exists(MISSING, true)),
+                    combine(set(DATA, new Binary(chunk)), unset(MISSING)));
+        }
+    }
+
+    /**
+     * Drops references, the chunks are removed by the collector
+     *
+     * @param counts Number of references to drop per chunk hash
+     */
+    public void release(Map<String, Integer> counts) {
+        if (counts.isEmpty()) {
+            return;
+        }
+        Date now = new Date();
+        List<WriteModel<Document>> writes = new ArrayList<>(counts.size());
+        counts.forEach((hash, count) -> writes.add(new UpdateOneModel<>(eq("_id", hash),
+                combine(inc(REFS, -count.longValue()), set(TOUCHED_AT, now)))));
+        collection().bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    }
+
+    /**
+     * Reads the bytes of the chunks
+     *
+     * @return Bytes by hash, chunks that are gone or missing their bytes are left out
+     */
+    public Map<String, byte[]> read(Collection<String> hashes) {
+        Map<String, byte[]> chunks = new HashMap<>();
+        collection().find(and(in("_id", hashes), exists(MISSING, false)))
+                .projection(new Document(DATA, 1))
+                .forEach(chunk -> chunks.put(chunk.getString("_id"), chunk.get(DATA, Binary.class).getData()));
+        return chunks;
+    }
+
+    /**
+     * Removes the chunks nothing has referenced for gcGrace
+     *
+     * @return Number of chunks removed
+     */
+    @Scheduled(every = "{tier.cdc.gcEvery}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public long collect() {
+        // A reference added since the count dropped touches the chunk, so it no longer matches
+        Date cutoff = Date.from(Instant.now().minus(gcGrace));
+        DeleteResult deleted = collection().deleteMany(and(lte(REFS, 0L), lt(TOUCHED_AT, cutoff)));
+        if (deleted.getDeletedCount() > 0) {
+            collectedChunks.increment(deleted.getDeletedCount());
+            LOG.info("Removed {} unreferenced chunks", deleted.getDeletedCount());
+        }
+        return deleted.getDeletedCount();
+    }
+}
@@ -0,0 +1,487 @@
+package org.acme.tier;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import io.quarkus.runtime.configuration.MemorySize;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.gridfs.GridFSStreamingUploader;
+import org.acme.metrics.ArchiveMetrics;
+import org.acme.util.FastCdc;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+
+/**
+ * Tier storing the bytes as content-defined chunks shared between all files
+ * <p>
+ * The bytes are split with {@link FastCdc}, so files that differ by a few bytes
+ * (consecutive snapshots of the same device) come out as mostly the same chunks.
+ * Each chunk is stored once in the {@link ChunkStore} and a file is a manifest
+ * listing its chunks in order. The manifest is split into pages of up to
+ * PAGE_SIZE chunks, keyed by the location and the offset of their first byte,
+ * so ranges only read the pages and chunks covering them.
+ * <p>
+ * Used for new uploads when archive.chunking.mode is cdc, and as a migration
+ * target for files already in GridFS.
+ */
+@ApplicationScoped
+public class ContentDefinedBlobBackend implements BlobBackend {
+
+    public static final String TIER = "cdc";
+
+    static final String LOCATION = "location";
+    static final String OFFSET = "offset";
+    static final String LENGTH = "length";
+    static final String HASHES = "hashes";
+    static final String LENGTHS = "lengths";
+
+    // Chunks per manifest page, keeps pages far below the document size limit
+    static final int PAGE_SIZE = 1000;
+
+    // Chunks written or read with one round trip
+    static final int BATCH_SIZE = 32;
+
+    /**
+     * Made at startup by the {@link org.acme.query.IndexManager}, reads find the pages of a range with it
+     */
+    public static final List<IndexModel> MANIFEST_INDEXES = List.of(
+            new IndexModel(Indexes.ascending(LOCATION, OFFSET), new IndexOptions().unique(true).name("location_offset")));
+
+    @ConfigProperty(name = "tier.cdc.minSize", defaultValue = "16K") MemorySize minSize;
+    @ConfigProperty(name = "tier.cdc.avgSize", defaultValue = "64K") MemorySize avgSize;
+    @ConfigProperty(name = "tier.cdc.maxSize", defaultValue = "256K") MemorySize maxSize;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    ChunkStore chunks;
+
+    @Inject
+    ArchiveMetrics metrics;
+
+    private FastCdc chunker;
+
+    @PostConstruct
+    void init() {
+        chunker = new FastCdc((int) minSize.asLongValue(), (int) avgSize.asLongValue(), (int) maxSize.asLongValue());
+    }
+
+    public MongoCollection<Document> manifests() {
+        return repository.database().getCollection(repository.bucketName() + ".cdc.manifests");
+    }
+
+    @Override
+    public String tier() {
+        return TIER;
+    }
+
+    /**
+     * Stores a new file with its bytes in this tier, nothing goes to the GridFS chunks
+     * <p>
+     * The bytes are stored as is, a codec would stop edited files from sharing chunks.
+     * Deduplication of whole files is not handled here, see {@link org.acme.storage.ArchiveStore}.
+     *
+     * @param in       The data to store, read until the end of the stream
+     * @param filename Name of the file
+     * @param metaData Extra metadata to store with the file
+     * @return The id, hash and length of the newly created file
+     */
+    public GridFSStreamingUploader.Result upload(InputStream in, String filename, Map<String, Object> metaData) throws IOException {
+        ObjectId id = new ObjectId();
+        String location = id.toHexString();
+        MessageDigest digest = GridFSStreamingUploader.sha256();
+
+        long length = writeManifest(location, new DigestInputStream(in, digest));
+        metrics.uploadedBytes(length);
+        String hash = Hex.encodeHexString(digest.digest());
+
+        // This file is the only reference to its manifest so far
+        Document metadata = new Document(metaData)
+                .append(GridFSRepository.HASH, hash)
+                .append(GridFSRepository.REF_COUNT, 1)
+                .append(GridFSRepository.TIER, TIER)
+                .append(GridFSRepository.LOCATION, location);
+        try {
+            repository.files().insertOne(new Document("_id", id)
+                    .append(GridFSRepository.LENGTH, length)
+                    .append(GridFSRepository.CHUNK_SIZE, repository.chunkSize())
+                    .append(GridFSRepository.UPLOAD_DATE, new Date())
+                    .append(GridFSRepository.FILENAME, filename)
+                    .append(GridFSRepository.METADATA, metadata));
+        } catch (RuntimeException e) {
+            deleteManifest(location);
+            throw e;
+        }
+
+        return new GridFSStreamingUploader.Result(id, hash, length);
+    }
+
+    @Override
+    public void copyRange(Document blob, long start, long end, OutputStream out) throws IOException {
+        try (ManifestReader reader = new ManifestReader(locationOf(blob), start, end)) {
+            byte[] chunk;
+            while ((chunk = reader.next()) != null) {
+                out.write(chunk);
+            }
+        }
+    }
+
+    @Override
+    public void copyAll(Document blob, OutputStream out) throws IOException {
+        long length = GridFSRepository.lengthOf(blob);
+        if (length > 0) {
+            copyRange(blob, 0, length - 1, out);
+        }
+    }
+
+    @Override
+    public InputStream openStream(Document blob) {
+        long length = GridFSRepository.lengthOf(blob);
+        if (length == 0) {
+            return InputStream.nullInputStream();
+        }
+
+        ManifestReader reader = new ManifestReader(locationOf(blob), 0, length - 1);
+        return new InputStream() {
+            private byte[] chunk = new byte[0];
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (position == chunk.length) {
+                    chunk = reader.next();
+                    position = 0;
+                    if (chunk == null) {
+                        chunk = new byte[0];
+                        return -1;
+                    }
+                }
+                int read = Math.min(len, chunk.length - position);
+                System.arraycopy(chunk, position, b, off, read);
+                position += read;
+                return read;
+            }
+
+            @Override
+            public void close() {
+                reader.close();
+            }
+        };
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    /**
+     * Every write gets a manifest of its own, so attempts copying the same
+     * file never write to or clean up each other's pages
+     */
+    @Override
+    public String write(Document blob, InputStream in) throws IOException {
+        String location = new ObjectId().toHexString();
+        writeManifest(location, in);
+        return location;
+    }
+
+    /**
+     * Drops the manifest and releases its chunks
+     */
+    @Override
+    public void delete(Document blob) {
+        deleteManifest(locationOf(blob));
+    }
+
+    /**
+     * Splits the stream into chunks, stores the new ones and writes the manifest
+     *
+     * @return Number of bytes read
+     */
+    private long writeManifest(String location, InputStream in) throws IOException {
+        FastCdc.Splitter splitter = chunker.split(in);
+        ManifestWriter writer = new ManifestWriter(location);
+        List<byte[]> batch = new ArrayList<>(BATCH_SIZE);
+
+        try {
+            byte[] chunk;
+            while ((chunk = splitter.next()) != null) {
+                batch.add(chunk);
+                if (batch.size() == BATCH_SIZE) {
+                    writer.add(batch);
+                    batch.clear();
+                }
+            }
+            writer.add(batch);
+            return writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the pages one at a time, releasing the chunks of each once it is gone
+     * <p>
+     * A crash part way through leaves the chunks of one page counted, it never
+     * releases a page twice.
+     */
+    private void deleteManifest(String location) {
+        Document removed;
+        while ((removed = manifests().findOneAndDelete(eq(LOCATION, location))) != null) {
+            chunks.release(Page.of(removed).counts());
+        }
+    }
+
+    private static String locationOf(Document blob) {
+        String location = GridFSRepository.metadataOf(blob).getString(GridFSRepository.LOCATION);
+        if (location == null) {
+            throw new IllegalStateException("File " + blob.get("_id") + " has no location in the " + TIER + " tier");
+        }
+        return location;
+    }
+
+    /**
+     * A run of consecutive chunks of a manifest
+     */
+    private static class Page {
+        private final String location;
+        private final long offset;
+        private final List<String> hashes;
+        private final List<Integer> lengths;
+        private long length;
+
+        Page(String location, long offset) {
+            this(location, offset, new ArrayList<>(), new ArrayList<>());
+        }
+
+        private Page(String location, long offset, List<String> hashes, List<Integer> lengths) {
+            this.location = location;
+            this.offset = offset;
+            this.hashes = hashes;
+            this.lengths = lengths;
+        }
+
+        static Page of(Document document) {
+            Page page = new Page(document.getString(LOCATION), document.getLong(OFFSET),
+                    document.getList(HASHES, String.class), document.getList(LENGTHS, Integer.class));
+            page.length = document.getLong(LENGTH);
+            return page;
+        }
+
+        Document toDocument() {
+            return new Document(LOCATION, location)
+                    .append(OFFSET, offset)
+                    .append(LENGTH, length)
+                    .append(HASHES, hashes)
+                    .append(LENGTHS, lengths);
+        }
+
+        /**
+         * References per chunk, a chunk can appear more than once
+         */
+        Map<String, Integer> counts() {
+            Map<String, Integer> counts = new HashMap<>();
+            for (String hash : hashes) {
+                counts.merge(hash, 1, Integer::sum);
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Writes the pages of a manifest as they fill up
+     */
+    private class ManifestWriter {
+        private final String location;
+        private Page page;
+
+        ManifestWriter(String location) {
+            this.location = location;
+            this.page = new Page(location, 0);
+        }
+
+        /**
+         * Stores a batch of chunks and adds them to the manifest
+         */
+        void add(List<byte[]> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<String> hashes = new ArrayList<>(batch.size());
+            for (byte[] chunk : batch) {
+                hashes.add(DigestUtils.sha256Hex(chunk));
+            }
+            chunks.add(batch, hashes);
+
+            for (int i = 0; i < batch.size(); i++) {
+                if (page.hashes.size() == PAGE_SIZE) {
+                    Page full = page;
+                    page = new Page(location, full.offset + full.length);
+                    manifests().insertOne(full.toDocument());
+                }
+                page.hashes.add(hashes.get(i));
+                page.lengths.add(batch.get(i).length);
+                page.length += batch.get(i).length;
+            }
+        }
+
+        /**
+         * Writes the last page
+         *
+         * @return Length of the file
+         */
+        long finish() {
+            if (!page.hashes.isEmpty()) {
+                manifests().insertOne(page.toDocument());
+            }
+            return page.offset + page.length;
+        }
+
+        /**
+         * Releases everything counted so far, chunks counted but not in a page yet
+         * when a write failed stay counted
+         */
+        void abort() {
+            chunks.release(page.counts());
+            deleteManifest(location);
+        }
+    }
+
+    /**
+     * Reads the chunks covering a range in order, a batch at a time
+     */
+    private class ManifestReader implements Closeable {
+        private final String location;
+        private final long start;
+        private final long end;
+        private final MongoCursor<Document> pages;
+        private final Deque<byte[]> ready = new ArrayDeque<>();
+        private Page page;
+        private int index;
+        private long position;
+
+        ManifestReader(String location, long start, long end) {
+            this.location = location;
+            this.start = start;
+            this.end = end;
+
+            // The last page starting at or before the range, the pages before it are skipped
+            Document first = manifests().find(and(eq(LOCATION, location), lte(OFFSET, start)))
+                    .sort(descending(OFFSET))
+                    .projection(new Document(OFFSET, 1))
+                    .first();
+            this.position = first == null ? 0 : first.getLong(OFFSET);
+            this.pages = manifests().find(and(eq(LOCATION, location), gte(OFFSET, position), lte(OFFSET, end)))
+                    .sort(ascending(OFFSET))
+                    .iterator();
+        }
+
+        /**
+         * The next part of the range, or null once it has all been read
+         */
+        byte[] next() throws IOException {
+            if (ready.isEmpty()) {
+                fill();
+            }
+            return ready.poll();
+        }
+
+        private void fill() throws IOException {
+            List<String> hashes = new ArrayList<>(BATCH_SIZE);
+            List<int[]> slices = new ArrayList<>(BATCH_SIZE);
+
+            while (hashes.size() < BATCH_SIZE && position <= end) {
+                if (page == null || index == page.hashes.size()) {
+                    if (!pages.hasNext()) {
+                        break;
+                    }
+                    Page next = Page.of(pages.next());
+                    if (next.offset != position) {
+                        throw new IOException("Manifest " + location + " has a gap at " + position);
+                    }
+                    page = next;
+                    index = 0;
+                    position = page.offset;
+                    continue;
+                }
+
+                int length = page.lengths.get(index);
+                String hash = page.hashes.get(index);
+                long chunkStart = position;
+                index++;
+                position += length;
+
+                // Before the range
+                if (position <= start) {
+                    continue;
+                }
+                hashes.add(hash);
+                slices.add(new int[]{(int) Math.max(0, start - chunkStart), (int) Math.min(length, end - chunkStart + 1), length});
+            }
+
+            if (hashes.isEmpty()) {
+                if (position <= end) {
+                    throw new IOException("Manifest " + location + " is shorter than expected");
+                }
+                return;
+            }
+
+            Map<String, byte[]> data = chunks.read(new HashSet<>(hashes));
+            for (int i = 0; i < hashes.size(); i++) {
+                byte[] chunk = data.get(hashes.get(i));
+                int[] slice = slices.get(i);
+                if (chunk == null || chunk.length != slice[2]) {
+                    throw new IOException("Chunk " + hashes.get(i) + " of " + location + " is missing");
+                }
+                ready.add(slice[0] == 0 && slice[1] == chunk.length ? chunk : Arrays.copyOfRange(chunk, slice[0], slice[1]));
+            }
+        }
+
+        @Override
+        public void close() {
+            pages.close();
+        }
+    }
+}
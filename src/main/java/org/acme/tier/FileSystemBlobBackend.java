@@ -0,0 +1,126 @@
+package org.acme.tier;
+
+import org.acme.gridfs.GridFSRepository;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Cold tier keeping the bytes as plain files under a directory
+ * <p>
+ * Each file is stored under the last two hex digits of its id, which are the
+ * ObjectId counter and spread evenly, so no directory grows too large. Every write
+ * gets a name of its own, so two instances copying the same file never touch each
+ * other's copy. Files are written to a temporary name, synced and then moved into
+ * place, so a file at its final path is always complete. When several instances run, the directory has to
+ * be shared between them (NFS, a mounted bucket, etc.).
+ */
+@ApplicationScoped
+public class FileSystemBlobBackend implements BlobBackend {
+
+    public static final String TIER = "filesystem";
+
+    @ConfigProperty(name = "tier.filesystem.directory", defaultValue = "${java.io.tmpdir}/snapshot-archive-tier") Path directory;
+
+    @Override
+    public String tier() {
+        return TIER;
+    }
+
+    @Override
+    public void copyRange(Document blob, long start, long end, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        try (FileChannel channel = FileChannel.open(pathOf(blob), StandardOpenOption.READ)) {
+            long position = start;
+            long remaining = end - start + 1;
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, target);
+                if (sent == 0 && position >= channel.size()) {
+                    throw new IOException("File " + blob.get("_id") + " is shorter than expected in the " + TIER + " tier");
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+    }
+
+    @Override
+    public void copyAll(Document blob, OutputStream out) throws IOException {
+        Files.copy(pathOf(blob), out);
+    }
+
+    @Override
+    public InputStream openStream(Document blob) throws IOException {
+        return Files.newInputStream(pathOf(blob));
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    @Override
+    public String write(Document blob, InputStream in) throws IOException {
+        String id = blob.getObjectId("_id").toHexString();
+        String name = id + "-" + new ObjectId().toHexString();
+        String location = id.substring(id.length() - 2) + "/" + name;
+        Path target = resolve(location);
+        Files.createDirectories(target.getParent());
+
+        Path temp = target.resolveSibling(name + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                in.transferTo(Channels.newOutputStream(channel));
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return location;
+    }
+
+    @Override
+    public void delete(Document blob) throws IOException {
+        Files.deleteIfExists(pathOf(blob));
+    }
+
+    @Override
+    public Path localFile(Document blob) {
+        return pathOf(blob);
+    }
+
+    private Path pathOf(Document blob) {
+        String location = GridFSRepository.metadataOf(blob).getString(GridFSRepository.LOCATION);
+        if (location == null) {
+            throw new IllegalStateException("File " + blob.get("_id") + " has no location in the " + TIER + " tier");
+        }
+        return resolve(location);
+    }
+
+    /**
+     * Locations come from the database, never let one point outside the directory
+     */
+    private Path resolve(String location) {
+        Path root = directory.toAbsolutePath().normalize();
+        Path path = root.resolve(location).normalize();
+        if (!path.startsWith(root)) {
+            throw new IllegalStateException("Location " + location + " is outside of " + root);
+        }
+        return path;
+    }
+}
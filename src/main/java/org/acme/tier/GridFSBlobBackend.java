@@ -0,0 +1,59 @@
+package org.acme.tier;
+
+import org.acme.gridfs.GridFSChunkReader;
+import org.acme.gridfs.GridFSRepository;
+import org.bson.Document;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * The default tier, the bytes are the chunks of the file in GridFS
+ * <p>
+ * New files are always written here by the uploader, so {@link #write} is
+ * not supported: nothing moves back into GridFS.
+ */
+@ApplicationScoped
+public class GridFSBlobBackend implements BlobBackend {
+
+    public static final String TIER = "gridfs";
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    GridFSChunkReader chunkReader;
+
+    @Override
+    public String tier() {
+        return TIER;
+    }
+
+    @Override
+    public void copyRange(Document blob, long start, long end, OutputStream out) throws IOException {
+        chunkReader.copyRange(blob, start, end, out);
+    }
+
+    @Override
+    public void copyAll(Document blob, OutputStream out) throws IOException {
+        chunkReader.copyAll(blob, out);
+    }
+
+    @Override
+    public InputStream openStream(Document blob) {
+        return chunkReader.openStream(blob);
+    }
+
+    /**
+     * Drops the chunks, the files record is left alone
+     */
+    @Override
+    public void delete(Document blob) {
+        repository.chunks().deleteMany(eq(GridFSRepository.FILES_ID, GridFSRepository.chunksIdOf(blob)));
+    }
+}
@@ -0,0 +1,362 @@
+package org.acme.tier;
+
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.runtime.configuration.MemorySize;
+import io.quarkus.scheduler.Scheduled;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.gridfs.GridFSStreamingUploader;
+import org.acme.storage.ArchiveStore;
+import org.acme.storage.StorageCodec;
+import org.apache.commons.codec.binary.Hex;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
+
+/**
+ * Moves the bytes of old files out of GridFS into the cold tier
+ * <p>
+ * Every run picks the oldest files still in GridFS that were uploaded more than
+ * coldAfterDays ago, copies their bytes to the target tier and points the record
+ * at the copy. Only files owning their bytes are moved, records sharing them
+ * follow the owner, and files being deleted are left alone. Reading the bytes
+ * is throttled to bytesPerSecond across the run so it doesn't compete with
+ * downloads for Mongo and disk bandwidth, however large the files are.
+ * <p>
+ * Every instance runs the same query, so a file is claimed with a conditional
+ * update before it is copied and only the attempt holding the claim can point the
+ * record at its copy. Each attempt writes to a location of its own, so a losing
+ * attempt only ever removes its own copy. The copy is read back from the tier
+ * and compared with the stored bytes before the record is switched over.
+ * <p>
+ * The chunks aren't dropped straight away: downloads that looked up the record
+ * before it was moved (or got it from the metadata cache) may still be reading
+ * them. They are dropped by a later run once releaseAfter has passed, the
+ * migratedAt timestamp marks the files that still have chunks to drop.
+ */
+@ApplicationScoped
+public class TierMigrator {
+
+    private final static Logger LOG = LoggerFactory.getLogger(TierMigrator.class);
+
+    @ConfigProperty(name = "tier.migrate.enabled", defaultValue = "false") boolean enabled;
+    @ConfigProperty(name = "tier.migrate.target", defaultValue = FileSystemBlobBackend.TIER) String target;
+    @ConfigProperty(name = "tier.migrate.coldAfterDays", defaultValue = "30") int coldAfterDays;
+    @ConfigProperty(name = "tier.migrate.batchSize", defaultValue = "100") int batchSize;
+    @ConfigProperty(name = "tier.migrate.bytesPerSecond", defaultValue = "20M") MemorySize bytesPerSecond;
+    @ConfigProperty(name = "tier.migrate.releaseAfter", defaultValue = "5M") Duration releaseAfter;
+    @ConfigProperty(name = "tier.migrate.claimFor", defaultValue = "30M") Duration claimFor;
+
+    static final String ATTEMPT = "attempt";
+    static final String UNTIL = "until";
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    BlobBackends backends;
+
+    @Inject
+    GridFSBlobBackend gridFS;
+
+    @Inject
+    MeterRegistry registry;
+
+    private Counter migratedFiles;
+    private Counter migratedBytes;
+
+    @PostConstruct
+    void init() {
+        migratedFiles = registry.counter("archive.tier.migrated.files", "tier", target);
+        migratedBytes = registry.counter("archive.tier.migrated.bytes", "tier", target);
+    }
+
+    /**
+     * Fails startup on a target files can't be moved to, rather than
+     * failing every file of every run
+     */
+    void onStart(@Observes StartupEvent event) {
+        if (!enabled) {
+            return;
+        }
+        // Throws for an unknown tier
+        if (!backends.named(target).isWritable()) {
+            throw new IllegalStateException("tier.migrate.target can't be " + target + ", files can't be moved to it");
+        }
+    }
+
+    /**
+     * Moves the next batch of cold files
+     *
+     * @return Number of files moved
+     */
+    @Scheduled(every = "{tier.migrate.every}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public synchronized int migrate() {
+        if (!enabled) {
+            return 0;
+        }
+
+        releaseChunks();
+
+        BlobBackend backend = backends.named(target);
+        Date cutoff = Date.from(Instant.now().minus(Duration.ofDays(coldAfterDays)));
+        List<Document> cold = repository.files()
+                .find(and(
+                        exists(GridFSRepository.METADATA_BLOB_ID, false),
+                        exists(GridFSRepository.METADATA_TIER, false),
+                        lt(GridFSRepository.UPLOAD_DATE, cutoff)))
+                .sort(ascending(GridFSRepository.UPLOAD_DATE))
+                .limit(batchSize)
+                .into(new ArrayList<>());
+
+        Throttle throttle = new Throttle(bytesPerSecond.asLongValue());
+        long copied = 0;
+        int moved = 0;
+        for (Document blob : cold) {
+            try {
+                if (move(blob, backend, throttle)) {
+                    moved++;
+                    copied += GridFSRepository.lengthOf(blob);
+                }
+            } catch (InterruptedIOException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Failed to move {} to the {} tier", blob.get("_id"), target, e);
+            }
+        }
+
+        if (moved > 0) {
+            LOG.info("Moved {} files ({} bytes) to the {} tier", moved, copied, target);
+        }
+        return moved;
+    }
+
+    /**
+     * Claims the file, copies the bytes and points the record at the copy
+     *
+     * @return Whether the file was moved, false if another instance has it or it changed in the meantime
+     */
+    private boolean move(Document blob, BlobBackend backend, Throttle throttle) throws IOException {
+        String attempt = new ObjectId().toHexString();
+        Date now = new Date();
+        UpdateResult claimed = repository.files().updateOne(
+                and(eq("_id", blob.get("_id")),
+                        exists(GridFSRepository.METADATA_TIER, false),
+                        exists(GridFSRepository.METADATA_BLOB_ID, false),
+                        ArchiveStore.unclaimed(),
+                        or(exists(GridFSRepository.METADATA_MIGRATION_CLAIM, false),
+                                lt(GridFSRepository.METADATA_MIGRATION_CLAIM + "." + UNTIL, now))),
+                set(GridFSRepository.METADATA_MIGRATION_CLAIM, new Document(ATTEMPT, attempt)
+                        .append(UNTIL, new Date(now.getTime() + claimFor.toMillis()))));
+        if (claimed.getModifiedCount() == 0) {
+            return false;
+        }
+
+        boolean moved = false;
+        try {
+            moved = copy(blob, backend, attempt, throttle);
+        } finally {
+            if (!moved) {
+                repository.files().updateOne(
+                        and(eq("_id", blob.get("_id")), eq(GridFSRepository.METADATA_MIGRATION_CLAIM + "." + ATTEMPT, attempt)),
+                        unset(GridFSRepository.METADATA_MIGRATION_CLAIM));
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Copies the bytes of a claimed file and switches the record over if the claim still holds
+     */
+    private boolean copy(Document blob, BlobBackend backend, String attempt, Throttle throttle) throws IOException {
+        long length = GridFSRepository.lengthOf(blob);
+        MessageDigest digest = GridFSStreamingUploader.sha256();
+        CountingInputStream in = new CountingInputStream(new DigestInputStream(gridFS.openStream(blob), digest), throttle);
+
+        String location;
+        try (in) {
+            location = backend.write(blob, in);
+        }
+        Document copy = new Document(blob);
+        copy.put(GridFSRepository.METADATA, new Document(GridFSRepository.metadataOf(blob))
+                .append(GridFSRepository.LOCATION, location));
+
+        boolean switched = false;
+        try {
+            String storedHash = Hex.encodeHexString(digest.digest());
+
+            // The hash is of the original bytes, so it can only be checked on files stored as is
+            String hash = GridFSRepository.metadataOf(blob).getString(GridFSRepository.HASH);
+            if (in.count != length || (StorageCodec.of(blob) == StorageCodec.NONE && hash != null && !hash.equals(storedHash))) {
+                throw new IOException("Bytes of " + blob.get("_id") + " read from GridFS don't match the record");
+            }
+            if (!storedHash.equals(hashOf(backend, copy))) {
+                throw new IOException("Copy of " + blob.get("_id") + " in the " + backend.tier() + " tier doesn't match the stored bytes");
+            }
+
+            // Deleted, promoted, being deleted or claimed by another instance while being copied
+            UpdateResult updated = repository.files().updateOne(
+                    and(eq("_id", blob.get("_id")),
+                            eq(GridFSRepository.METADATA_MIGRATION_CLAIM + "." + ATTEMPT, attempt),
+                            exists(GridFSRepository.METADATA_TIER, false),
+                            exists(GridFSRepository.METADATA_BLOB_ID, false),
+                            ArchiveStore.unclaimed()),
+                    combine(
+                            set(GridFSRepository.METADATA_TIER, backend.tier()),
+                            set(GridFSRepository.METADATA_LOCATION, location),
+                            set(GridFSRepository.METADATA_MIGRATED_AT, new Date()),
+                            unset(GridFSRepository.METADATA_MIGRATION_CLAIM)));
+            switched = updated.getModifiedCount() > 0;
+        } finally {
+            if (!switched) {
+                discard(backend, copy, location);
+            }
+        }
+        if (!switched) {
+            return false;
+        }
+
+        migratedFiles.increment();
+        migratedBytes.increment(length);
+        return true;
+    }
+
+    /**
+     * Reads the copy back from the tier
+     */
+    private static String hashOf(BlobBackend backend, Document copy) throws IOException {
+        MessageDigest digest = GridFSStreamingUploader.sha256();
+        try (InputStream in = new DigestInputStream(backend.openStream(copy), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Removes a copy that didn't make it, unless a record points at it after all
+     */
+    private void discard(BlobBackend backend, Document copy, String location) {
+        if (repository.files().find(eq(GridFSRepository.METADATA_LOCATION, location)).first() != null) {
+            return;
+        }
+        try {
+            backend.delete(copy);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to remove the copy of {} at {} in the {} tier", copy.get("_id"), location, backend.tier(), e);
+        }
+    }
+
+    /**
+     * Drops the chunks of files moved more than releaseAfter ago
+     */
+    void releaseChunks() {
+        Date cutoff = Date.from(Instant.now().minus(releaseAfter));
+        List<Document> released = repository.files()
+                .find(lt(GridFSRepository.METADATA_MIGRATED_AT, cutoff))
+                .limit(batchSize)
+                .into(new ArrayList<>());
+
+        for (Document blob : released) {
+            gridFS.delete(blob);
+            repository.files().updateOne(eq("_id", blob.get("_id")), unset(GridFSRepository.METADATA_MIGRATED_AT));
+        }
+    }
+
+    /**
+     * Paces the bytes read during a run to a rate
+     */
+    private static class Throttle {
+        private final long rate;
+        private final long started = System.nanoTime();
+        private long read;
+
+        Throttle(long rate) {
+            this.rate = rate;
+        }
+
+        /**
+         * Sleeps until the bytes read so far are within the rate
+         */
+        void acquire(long bytes) throws InterruptedIOException {
+            if (rate <= 0) {
+                return;
+            }
+
+            read += bytes;
+            long due = (long) (read * 1_000_000_000d / rate) - (System.nanoTime() - started);
+            if (due > 0) {
+                try {
+                    Thread.sleep(due / 1_000_000, (int) (due % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read, pacing them to the throttle
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final Throttle throttle;
+        private long count;
+
+        CountingInputStream(InputStream in, Throttle throttle) {
+            super(in);
+            this.throttle = throttle;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+                throttle.acquire(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+                throttle.acquire(read);
+            }
+            return read;
+        }
+    }
+}
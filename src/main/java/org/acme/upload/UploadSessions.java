@@ -0,0 +1,494 @@
+package org.acme.upload;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.result.UpdateResult;
+import io.quarkus.runtime.configuration.MemorySize;
+import io.quarkus.scheduler.Scheduled;
+import org.acme.admission.ByteRateLimiter;
+import org.acme.exceptions.InvalidRequestException;
+import org.acme.gridfs.GridFSChunkReader;
+import org.acme.gridfs.GridFSRepository;
+import org.acme.gridfs.GridFSStreamingUploader;
+import org.acme.metrics.ArchiveMetrics;
+import org.acme.storage.ArchiveStore;
+import org.apache.commons.codec.binary.Hex;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
+
+/**
+ * Uploads sent as numbered parts over several requests
+ * <p>
+ * A session fixes the length of the file and the part size up front. The part
+ * size is a whole number of GridFS chunks, so each part maps to its own run of
+ * chunks and is written straight into the chunks collection under the id the
+ * file will get. Parts can arrive in any order, in parallel, and be sent again
+ * after a failure. Nothing is copied at commit: once every part is there the
+ * chunks are read back once to compute the SHA-256 and the files document is
+ * written on top of them (or they are dropped if the content is already stored).
+ * <p>
+ * Sessions live in the uploads collection next to the GridFS bucket. Sessions
+ * without activity for expireAfter are removed with their chunks.
+ * <p>
+ * A part being written is claimed in the session, so the same part can't be
+ * written twice at once and a commit never reads parts that are still changing.
+ * Claims of writers that died lapse after partTimeout.
+ */
+@ApplicationScoped
+public class UploadSessions {
+
+    private final static Logger LOG = LoggerFactory.getLogger(UploadSessions.class);
+
+    static final String FILENAME = "filename";
+    static final String METADATA = "metadata";
+    static final String LENGTH = "length";
+    static final String PART_SIZE = "partSize";
+    static final String CHUNK_SIZE = "chunkSize";
+    static final String SHA256 = "sha256";
+    static final String PARTS = "parts";
+    static final String STATE = "state";
+    static final String UPDATED_AT = "updatedAt";
+    static final String EXPIRES_AT = "expiresAt";
+    static final String WRITING = "writing";
+    static final String CLAIM = "claim";
+    static final String UNTIL = "until";
+
+    /**
+     * Open sessions take parts, committing ones are being turned into a file,
+     * expired ones are about to be removed
+     */
+    enum State {
+        OPEN,
+        COMMITTING,
+        EXPIRED
+    }
+
+    @ConfigProperty(name = "uploads.partSize", defaultValue = "8M") MemorySize defaultPartSize;
+    @ConfigProperty(name = "uploads.maxPartSize", defaultValue = "64M") MemorySize maxPartSize;
+    @ConfigProperty(name = "uploads.maxParts", defaultValue = "10000") int maxParts;
+    @ConfigProperty(name = "uploads.expireAfter", defaultValue = "24H") Duration expireAfter;
+    @ConfigProperty(name = "uploads.partTimeout", defaultValue = "1H") Duration partTimeout;
+
+    @Inject
+    GridFSRepository repository;
+
+    @Inject
+    GridFSChunkReader chunkReader;
+
+    @Inject
+    ArchiveStore archiveStore;
+
+    @Inject
+    ArchiveMetrics metrics;
+
+    @Inject
+    ByteRateLimiter rateLimiter;
+
+    public MongoCollection<Document> collection() {
+        return repository.database().getCollection(repository.bucketName() + ".uploads");
+    }
+
+    /**
+     * Starts a session
+     *
+     * @param length   Length of the whole file
+     * @param partSize Requested part size, rounded down to whole chunks, null for the default
+     * @param sha256   Expected SHA-256 of the file, checked at commit, may be null
+     * @return The session
+     */
+    public Document create(String filename, Map<String, Object> metaData, Long length, Long partSize, String sha256) {
+        if (filename == null || filename.isBlank()) {
+            throw new InvalidRequestException("filename is required");
+        }
+        if (length == null || length < 0) {
+            throw new InvalidRequestException("length of the file is required");
+        }
+
+        int chunkSize = repository.chunkSize();
+        long requested = partSize != null ? partSize : defaultPartSize.asLongValue();
+        if (requested < chunkSize || requested > maxPartSize.asLongValue()) {
+            throw new InvalidRequestException("partSize must be between " + chunkSize + " and " + maxPartSize.asLongValue());
+        }
+        long size = requested / chunkSize * chunkSize;
+
+        if (partCount(length, size) > maxParts) {
+            throw new InvalidRequestException("A file of " + length + " bytes needs more than " + maxParts
+                    + " parts of " + size + " bytes, use a larger partSize");
+        }
+
+        Date now = new Date();
+        Document session = new Document("_id", new ObjectId())
+                .append(FILENAME, filename)
+                .append(METADATA, new Document(metaData))
+                .append(LENGTH, length)
+                .append(PART_SIZE, size)
+                .append(CHUNK_SIZE, chunkSize)
+                .append(PARTS, new Document())
+                .append(WRITING, new Document())
+                .append(STATE, State.OPEN.name())
+                .append(UPDATED_AT, now)
+                .append(EXPIRES_AT, expiry(now));
+        if (sha256 != null) {
+            session.append(SHA256, sha256.toLowerCase());
+        }
+        collection().insertOne(session);
+        return session;
+    }
+
+    /**
+     * Writes one part of the file, replacing it if it was sent before
+     *
+     * @param part Number of the part, starting at 0
+     * @param in   The bytes of the part, every part but the last is exactly partSize long
+     * @return The part number, length and SHA-256 of the part
+     */
+    public Document writePart(String uploadId, int part, InputStream in) throws IOException {
+        Document session = find(uploadId);
+        ObjectId id = session.getObjectId("_id");
+
+        long length = session.getLong(LENGTH);
+        long partSize = session.getLong(PART_SIZE);
+        int chunkSize = session.getInteger(CHUNK_SIZE);
+        int parts = partCount(length, partSize);
+        if (part < 0 || part >= parts) {
+            throw new InvalidRequestException("Part must be between 0 and " + (parts - 1));
+        }
+
+        // Checked and claimed in one step, a commit can't start until the part is written
+        ObjectId claim = new ObjectId();
+        String writing = WRITING + "." + part;
+        Date now = new Date();
+        UpdateResult claimed = collection().updateOne(
+                and(eq("_id", id), eq(STATE, State.OPEN.name()),
+                        or(exists(writing, false), lt(writing + "." + UNTIL, now))),
+                combine(
+                        set(writing, new Document(CLAIM, claim).append(UNTIL, new Date(now.getTime() + partTimeout.toMillis()))),
+                        set(UPDATED_AT, now),
+                        set(EXPIRES_AT, expiry(now))));
+        if (claimed.getMatchedCount() == 0) {
+            Document current = find(uploadId);
+            if (State.OPEN.name().equals(current.getString(STATE))) {
+                throw new InvalidRequestException("Part " + part + " of upload " + uploadId + " is being sent already");
+            }
+            throw new InvalidRequestException("Upload session " + uploadId + " is no longer taking parts");
+        }
+
+        try {
+            return write(session, part, claim, in);
+        } finally {
+            // Already dropped when the part was recorded, this is for failed writes
+            collection().updateOne(and(eq("_id", id), eq(writing + "." + CLAIM, claim)), unset(writing));
+        }
+    }
+
+    private Document write(Document session, int part, ObjectId claim, InputStream in) throws IOException {
+        ObjectId id = session.getObjectId("_id");
+        String uploadId = id.toHexString();
+        long length = session.getLong(LENGTH);
+        long partSize = session.getLong(PART_SIZE);
+        int chunkSize = session.getInteger(CHUNK_SIZE);
+        long expected = Math.min(partSize, length - part * partSize);
+        int firstChunk = (int) (part * (partSize / chunkSize));
+        String ticketNumber = session.get(METADATA, Document.class).getString(GridFSRepository.TICKET_NUMBER);
+        InputStream limited = rateLimiter.limit(in, ticketNumber);
+
+        MessageDigest digest = GridFSStreamingUploader.sha256();
+        byte[] buffer = new byte[chunkSize];
+        long received = 0;
+        int n = firstChunk;
+        int filled;
+        while ((filled = GridFSStreamingUploader.readChunk(limited, buffer)) > 0) {
+            received += filled;
+            if (received > expected) {
+                throw new InvalidRequestException("Part " + part + " must be " + expected + " bytes");
+            }
+            digest.update(buffer, 0, filled);
+            metrics.uploadedBytes(filled);
+
+            // Replaced rather than inserted so a part can be sent again
+            byte[] data = filled == buffer.length ? buffer : Arrays.copyOf(buffer, filled);
+            long start = System.nanoTime();
+            repository.chunks().replaceOne(
+                    and(eq(GridFSRepository.FILES_ID, id), eq(GridFSRepository.CHUNK_NUMBER, n)),
+                    new Document(GridFSRepository.FILES_ID, id)
+                            .append(GridFSRepository.CHUNK_NUMBER, n)
+                            .append(GridFSRepository.CHUNK_DATA, new Binary(data)),
+                    new ReplaceOptions().upsert(true));
+            metrics.recordChunkWrite(System.nanoTime() - start);
+            n++;
+        }
+        if (received != expected) {
+            throw new InvalidRequestException("Part " + part + " must be " + expected + " bytes, got " + received);
+        }
+
+        String hash = Hex.encodeHexString(digest.digest());
+        String writing = WRITING + "." + part;
+        Date now = new Date();
+        UpdateResult recorded = collection().updateOne(
+                and(eq("_id", id), eq(STATE, State.OPEN.name()), eq(writing + "." + CLAIM, claim)),
+                combine(
+                        set(PARTS + "." + part, new Document(LENGTH, received).append(SHA256, hash)),
+                        unset(writing),
+                        set(UPDATED_AT, now),
+                        set(EXPIRES_AT, expiry(now))));
+
+        if (recorded.getMatchedCount() == 0) {
+            // Expired while this part was being written, don't leave its chunks behind
+            Document current = collection().find(eq("_id", id)).first();
+            if (current == null || State.EXPIRED.name().equals(current.getString(STATE))) {
+                repository.chunks().deleteMany(and(eq(GridFSRepository.FILES_ID, id),
+                        gte(GridFSRepository.CHUNK_NUMBER, firstChunk), lt(GridFSRepository.CHUNK_NUMBER, n)));
+                throw new InvalidRequestException("Upload session " + uploadId + " is no longer taking parts");
+            }
+            // Took longer than partTimeout and the part was claimed by another request
+            throw new InvalidRequestException("Part " + part + " of upload " + uploadId + " took too long and was sent again");
+        }
+
+        return new Document("part", part).append(LENGTH, received).append(SHA256, hash);
+    }
+
+    /**
+     * The session with the parts received so far and the ones still missing
+     */
+    public Document status(String uploadId) {
+        Document session = find(uploadId);
+        Document received = session.get(PARTS, Document.class);
+
+        List<Integer> parts = new ArrayList<>();
+        long bytes = 0;
+        for (Map.Entry<String, Object> part : received.entrySet()) {
+            parts.add(Integer.parseInt(part.getKey()));
+            bytes += ((Document) part.getValue()).get(LENGTH, Number.class).longValue();
+        }
+        parts.sort(Integer::compare);
+
+        return new Document("uploadId", session.getObjectId("_id").toHexString())
+                .append(FILENAME, session.getString(FILENAME))
+                .append(LENGTH, session.getLong(LENGTH))
+                .append(PART_SIZE, session.getLong(PART_SIZE))
+                .append(PARTS, partCount(session.getLong(LENGTH), session.getLong(PART_SIZE)))
+                .append("received", parts)
+                .append("receivedBytes", bytes)
+                .append("missing", missing(session))
+                .append(STATE, session.getString(STATE))
+                .append(EXPIRES_AT, session.getDate(EXPIRES_AT).toInstant().toString());
+    }
+
+    /**
+     * Turns the parts into a stored file and ends the session
+     *
+     * @return The id of the stored file
+     * @throws InvalidRequestException if parts are missing or the SHA-256 doesn't match,
+     *                                 the session stays open so parts can be sent again
+     */
+    public ObjectId commit(String uploadId) throws IOException {
+        ObjectId id = GridFSRepository.toObjectId(uploadId);
+        Date now = new Date();
+        // A fresh expiry so the collector leaves the session alone while it is committed
+        Document session = collection().findOneAndUpdate(
+                and(eq("_id", id), eq(STATE, State.OPEN.name())),
+                combine(set(STATE, State.COMMITTING.name()), set(UPDATED_AT, now), set(EXPIRES_AT, expiry(now))),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        if (session == null) {
+            throw new InvalidRequestException("No open upload session with id " + uploadId);
+        }
+
+        // No new part can be claimed now, parts claimed before could still be changing
+        List<Integer> writing = writing(session, now);
+        if (!writing.isEmpty()) {
+            reopen(id);
+            throw new InvalidRequestException("Upload " + uploadId + " is still receiving parts " + writing);
+        }
+
+        long length = session.getLong(LENGTH);
+        int chunkSize = session.getInteger(CHUNK_SIZE);
+        Map<String, Object> metaData = session.get(METADATA, Document.class);
+        String hash;
+        try {
+            List<Integer> missing = missing(session);
+            if (!missing.isEmpty()) {
+                throw new InvalidRequestException("Upload " + uploadId + " is missing parts " + missing);
+            }
+
+            hash = hashOf(new Document("_id", id)
+                    .append(GridFSRepository.LENGTH, length)
+                    .append(GridFSRepository.CHUNK_SIZE, chunkSize));
+
+            String expected = session.getString(SHA256);
+            if (expected != null && !expected.equals(hash)) {
+                throw new InvalidRequestException("SHA-256 of the upload is " + hash + " but " + expected + " was expected");
+            }
+        } catch (IOException | RuntimeException e) {
+            reopen(id);
+            throw e;
+        }
+
+        ObjectId stored;
+        try {
+            stored = archiveStore.storeChunks(id, session.getString(FILENAME), metaData, length, chunkSize, hash);
+        } catch (RuntimeException e) {
+            if (repository.files().find(eq("_id", id)).first() == null) {
+                reopen(id);
+            }
+            throw e;
+        }
+
+        collection().deleteOne(eq("_id", id));
+        return stored;
+    }
+
+    /**
+     * Drops the session and every part sent so far
+     */
+    public void abort(String uploadId) {
+        Document session = find(uploadId);
+        ObjectId id = session.getObjectId("_id");
+        UpdateResult expired = collection().updateOne(and(eq("_id", id), eq(STATE, State.OPEN.name())),
+                set(STATE, State.EXPIRED.name()));
+        if (expired.getModifiedCount() == 0) {
+            throw new InvalidRequestException("Upload session " + uploadId + " is being committed");
+        }
+        remove(id);
+    }
+
+    /**
+     * Removes the sessions nothing happened to for expireAfter, along with their parts
+     * <p>
+     * Sessions being committed are left alone. A commit still running past its
+     * expiry has died, its session is opened again so it can be committed again
+     * or expire.
+     *
+     * @return Number of sessions removed
+     */
+    @Scheduled(every = "{uploads.gcEvery}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public int collectExpired() {
+        Date now = new Date();
+        UpdateResult abandoned = collection().updateMany(and(eq(STATE, State.COMMITTING.name()), lt(EXPIRES_AT, now)),
+                combine(set(STATE, State.OPEN.name()), set(UPDATED_AT, now), set(EXPIRES_AT, expiry(now))));
+        if (abandoned.getModifiedCount() > 0) {
+            LOG.warn("Reopened {} upload sessions whose commit never finished", abandoned.getModifiedCount());
+        }
+
+        int removed = 0;
+        Bson expired = and(lt(EXPIRES_AT, now), ne(STATE, State.COMMITTING.name()));
+        for (Document session : collection().find(expired).into(new ArrayList<>())) {
+            ObjectId id = session.getObjectId("_id");
+
+            // Parts sent from now on fail, and clean up after themselves
+            collection().updateOne(and(eq("_id", id), expired), set(STATE, State.EXPIRED.name()));
+            Document current = collection().find(eq("_id", id)).first();
+            if (current == null || !State.EXPIRED.name().equals(current.getString(STATE))) {
+                continue;
+            }
+            remove(id);
+            removed++;
+        }
+
+        if (removed > 0) {
+            LOG.info("Removed {} abandoned upload sessions", removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Drops the parts and the session, unless a commit that got as far as
+     * writing the file owns the chunks now
+     */
+    private void remove(ObjectId id) {
+        if (repository.files().find(eq("_id", id)).first() == null) {
+            repository.chunks().deleteMany(eq(GridFSRepository.FILES_ID, id));
+        }
+        collection().deleteOne(eq("_id", id));
+    }
+
+    private void reopen(ObjectId id) {
+        collection().updateOne(and(eq("_id", id), eq(STATE, State.COMMITTING.name())), set(STATE, State.OPEN.name()));
+    }
+
+    private String hashOf(Document staged) throws IOException {
+        MessageDigest digest = GridFSStreamingUploader.sha256();
+        try (InputStream in = chunkReader.openStream(staged);
+             OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            in.transferTo(out);
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private Document find(String uploadId) {
+        Document session = collection().find(eq("_id", GridFSRepository.toObjectId(uploadId))).first();
+        if (session == null) {
+            throw new InvalidRequestException("No upload session with id " + uploadId);
+        }
+        return session;
+    }
+
+    private Date expiry(Date from) {
+        return new Date(from.getTime() + expireAfter.toMillis());
+    }
+
+    /**
+     * Parts with a claim that hasn't lapsed
+     */
+    private static List<Integer> writing(Document session, Date now) {
+        List<Integer> parts = new ArrayList<>();
+        Document claims = session.get(WRITING, new Document());
+        for (Map.Entry<String, Object> claim : claims.entrySet()) {
+            if (((Document) claim.getValue()).getDate(UNTIL).after(now)) {
+                parts.add(Integer.parseInt(claim.getKey()));
+            }
+        }
+        parts.sort(Integer::compare);
+        return parts;
+    }
+
+    private static List<Integer> missing(Document session) {
+        Document received = session.get(PARTS, Document.class);
+        List<Integer> missing = new ArrayList<>();
+        int parts = partCount(session.getLong(LENGTH), session.getLong(PART_SIZE));
+        for (int part = 0; part < parts; part++) {
+            if (!received.containsKey(String.valueOf(part))) {
+                missing.add(part);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Number of parts, an empty file is still sent as one empty part
+     */
+    public static int partCount(long length, long partSize) {
+        return (int) Math.max(1, (length + partSize - 1) / partSize);
+    }
+}
@@ -0,0 +1,110 @@
+package org.acme.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single resolved byte range from an HTTP Range header
+ * <p>
+ * Link: https://www.rfc-editor.org/rfc/rfc7233
+ */
+public final class ByteRange {
+
+    // Anything past this is almost certainly abuse, so the header is ignored
+    // and the whole file is sent instead
+    static final int MAX_RANGES = 16;
+
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Last byte of the range (inclusive)
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Value for the Content-Range header
+     */
+    public String toContentRange(long totalLength) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    /**
+     * Parses the Range header against the length of the file
+     *
+     * @param header Value of the Range header, may be null
+     * @param length Length of the file
+     * @return null if the header is missing or malformed and should be ignored,
+     * an empty list if none of the ranges can be satisfied, otherwise the
+     * ranges to send in the order requested
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            String s = spec.trim();
+            int dash = s.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+
+            String first = s.substring(0, dash).trim();
+            String last = s.substring(dash + 1).trim();
+
+            try {
+                if (first.isEmpty()) {
+                    // Suffix range: last N bytes
+                    if (last.isEmpty()) {
+                        return null;
+                    }
+                    long suffix = Long.parseLong(last);
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    if (start < length) {
+                        ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        return Collections.unmodifiableList(ranges);
+    }
+}
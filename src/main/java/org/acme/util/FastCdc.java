@@ -0,0 +1,137 @@
+package org.acme.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Content-defined chunking with the FastCDC rolling hash
+ * <p>
+ * Cut points are picked where a gear hash of the last 64 bytes matches a mask,
+ * so they depend on the content around them rather than the offset. Inserting
+ * or removing a few bytes only changes the chunks touching the edit, every
+ * other chunk comes out the same and can be shared with earlier versions.
+ * <p>
+ * Chunks are at least minSize and at most maxSize bytes. Normalized chunking
+ * uses a harder mask before avgSize and an easier one after it, which keeps
+ * most chunks close to the average.
+ * <p>
+ * Link: https://www.usenix.org/conference/atc16/technical-sessions/presentation/xia
+ */
+public final class FastCdc {
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Any random table works, it only has to be the same everywhere
+        // and forever or chunks stop matching earlier uploads
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskSmall;
+    private final long maskLarge;
+
+    /**
+     * @param avgSize Rounded down to a power of two
+     */
+    public FastCdc(int minSize, int avgSize, int maxSize) {
+        if (minSize < 64 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 64 <= min <= avg <= max");
+        }
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+        this.minSize = minSize;
+        this.avgSize = 1 << bits;
+        this.maxSize = maxSize;
+        // The high bits of the hash depend on the most bytes, so the masks use those
+        this.maskSmall = mask(bits + 2);
+        this.maskLarge = mask(Math.max(1, bits - 2));
+    }
+
+    private static long mask(int bits) {
+        return -1L << (64 - bits);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Length of the chunk starting at the offset
+     *
+     * @param length Bytes available, the last chunk of the data is whatever is left
+     */
+    public int cut(byte[] data, int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int end = Math.min(length, maxSize);
+        int normal = Math.min(end, avgSize);
+
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Splits a stream into chunks, holding at most maxSize bytes of it
+     */
+    public Splitter split(InputStream in) {
+        return new Splitter(in);
+    }
+
+    public final class Splitter {
+        private final InputStream in;
+        private final byte[] buffer = new byte[maxSize];
+        private int filled;
+        private boolean eof;
+
+        private Splitter(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * The next chunk, or null once the stream is used up
+         */
+        public byte[] next() throws IOException {
+            while (!eof && filled < buffer.length) {
+                int read = in.read(buffer, filled, buffer.length - filled);
+                if (read == -1) {
+                    eof = true;
+                } else {
+                    filled += read;
+                }
+            }
+            if (filled == 0) {
+                return null;
+            }
+
+            int length = cut(buffer, 0, filled);
+            byte[] chunk = Arrays.copyOf(buffer, length);
+            System.arraycopy(buffer, length, buffer, 0, filled - length);
+            filled -= length;
+            return chunk;
+        }
+    }
+}
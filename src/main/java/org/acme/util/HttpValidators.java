@@ -0,0 +1,113 @@
+package org.acme.util;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+
+/**
+ * The ETag and Last-Modified of a response and the conditional request
+ * headers checked against them
+ * <p>
+ * Link: https://www.rfc-editor.org/rfc/rfc7232
+ */
+public final class HttpValidators {
+
+    private final String etag;
+    private final Instant lastModified;
+
+    /**
+     * @param etag         Quoted entity tag, may be null
+     * @param lastModified May be null
+     */
+    public HttpValidators(String etag, Date lastModified) {
+        this.etag = etag;
+        // HTTP dates only carry whole seconds
+        this.lastModified = lastModified == null ? null : Instant.ofEpochSecond(lastModified.getTime() / 1000);
+    }
+
+    public static String strong(String value) {
+        return value == null ? null : "\"" + value + "\"";
+    }
+
+    public static String weak(String value) {
+        return value == null ? null : "W/\"" + value + "\"";
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * Last-Modified as an HTTP date, or null if unknown
+     */
+    public String getLastModified() {
+        return lastModified == null ? null : DateTimeFormatter.RFC_1123_DATE_TIME.format(lastModified.atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * Whether the client already has the current representation and should get a 304
+     * <p>
+     * If-Modified-Since is only looked at when there is no If-None-Match,
+     * and dates that can't be parsed are ignored.
+     */
+    public boolean notModified(String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            return etag != null && matches(ifNoneMatch, etag);
+        }
+        if (ifModifiedSince != null && lastModified != null) {
+            Instant since = parseDate(ifModifiedSince);
+            return since != null && !lastModified.isAfter(since);
+        }
+        return false;
+    }
+
+    /**
+     * Whether a Range header should be honoured, false when If-Range names
+     * a different representation and the whole file should be sent
+     * <p>
+     * If-Range uses strong comparison so weak tags never match.
+     */
+    public boolean rangeApplies(String ifRange) {
+        if (ifRange == null) {
+            return true;
+        }
+        String value = ifRange.trim();
+        if (value.startsWith("\"")) {
+            return value.equals(etag);
+        }
+        if (value.startsWith("W/")) {
+            return false;
+        }
+        Instant date = parseDate(value);
+        return date != null && date.equals(lastModified);
+    }
+
+    /**
+     * Weak comparison against a list of entity tags or *
+     */
+    private static boolean matches(String header, String etag) {
+        String opaque = opaque(etag);
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || opaque(candidate).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static Instant parseDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
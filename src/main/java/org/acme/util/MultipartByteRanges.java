@@ -0,0 +1,71 @@
+package org.acme.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Writes a multipart/byteranges body for a request asking for more than one range
+ * <p>
+ * Link: https://www.rfc-editor.org/rfc/rfc7233#appendix-A
+ */
+public class MultipartByteRanges {
+
+    /**
+     * Callback that writes the bytes of a single range
+     */
+    @FunctionalInterface
+    public interface RangeWriter {
+        void write(ByteRange range, OutputStream out) throws IOException;
+    }
+
+    private final String boundary = UUID.randomUUID().toString().replace("-", "");
+    private final List<ByteRange> ranges;
+    private final long totalLength;
+    private final String partContentType;
+
+    public MultipartByteRanges(List<ByteRange> ranges, long totalLength, String partContentType) {
+        this.ranges = ranges;
+        this.totalLength = totalLength;
+        this.partContentType = partContentType;
+    }
+
+    public String getContentType() {
+        return "multipart/byteranges; boundary=" + boundary;
+    }
+
+    /**
+     * Exact size of the body so the Content-Length header can be sent
+     */
+    public long getContentLength() {
+        long size = 0;
+        for (ByteRange range : ranges) {
+            size += partHeader(range).length + range.getLength() + 2;
+        }
+        return size + closing().length;
+    }
+
+    public void write(OutputStream out, RangeWriter writer) throws IOException {
+        for (ByteRange range : ranges) {
+            out.write(partHeader(range));
+            writer.write(range, out);
+            out.write('\r');
+            out.write('\n');
+        }
+        out.write(closing());
+    }
+
+    private byte[] partHeader(ByteRange range) {
+        String header = "--" + boundary + "\r\n"
+                + "Content-Type: " + partContentType + "\r\n"
+                + "Content-Range: " + range.toContentRange(totalLength) + "\r\n"
+                + "\r\n";
+        return header.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] closing() {
+        return ("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
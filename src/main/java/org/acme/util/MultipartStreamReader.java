@@ -0,0 +1,253 @@
+package org.acme.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal streaming multipart/form-data parser
+ * <p>
+ * RESTEasy Reactive always spools multipart parts to disk before calling the
+ * resource, this reads the parts directly off the request body instead so each
+ * part can be consumed as a stream with only a small fixed buffer in memory.
+ * <p>
+ * Link: https://www.rfc-editor.org/rfc/rfc7578
+ */
+public class MultipartStreamReader {
+
+    private static final Pattern BOUNDARY = Pattern.compile("boundary=(?:\"([^\"]+)\"|([^;\\s]+))", Pattern.CASE_INSENSITIVE);
+    private static final int MAX_HEADER_LINE = 8192;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean finished;
+    private PartInputStream current;
+
+    /**
+     * A single part of the body
+     */
+    public static class Part {
+        private final Map<String, String> headers;
+        private final InputStream body;
+
+        Part(Map<String, String> headers, InputStream body) {
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * Header value, names are lower case
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public String getName() {
+            return dispositionParam("name");
+        }
+
+        public String getFileName() {
+            return dispositionParam("filename");
+        }
+
+        /**
+         * Body of the part, only valid until the next call to {@link #nextPart()}
+         */
+        public InputStream getBody() {
+            return body;
+        }
+
+        private String dispositionParam(String param) {
+            String disposition = getHeader("content-disposition");
+            if (disposition == null) {
+                return null;
+            }
+            Matcher m = Pattern.compile("(?:^|;)\\s*" + param + "=(?:\"([^\"]*)\"|([^;\\s]*))", Pattern.CASE_INSENSITIVE).matcher(disposition);
+            return m.find() ? (m.group(1) != null ? m.group(1) : m.group(2)) : null;
+        }
+    }
+
+    public MultipartStreamReader(InputStream in, String boundary, int bufferSize) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        this.buffer = new byte[Math.max(bufferSize, delimiter.length * 2 + MAX_HEADER_LINE)];
+
+        // Pretend the body starts with a CRLF so the first boundary
+        // looks like all the others
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        limit = 2;
+    }
+
+    /**
+     * Pulls the boundary out of a multipart Content-Type header
+     *
+     * @return The boundary or null if there isn't one
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        Matcher m = BOUNDARY.matcher(contentType);
+        return m.find() ? (m.group(1) != null ? m.group(1) : m.group(2)) : null;
+    }
+
+    /**
+     * Advances to the next part, skipping anything left unread in the current one
+     *
+     * @return The next part or null when there are no more
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+
+        // Drain whatever is left of the current part (or the preamble)
+        if (current == null) {
+            current = new PartInputStream();
+        }
+        byte[] skip = new byte[4096];
+        while (current.read(skip, 0, skip.length) != -1) {
+            // discard
+        }
+
+        // After the delimiter it's either "--" for the end or CRLF for another part
+        fill(2);
+        if (limit - pos < 2) {
+            throw new IOException("Unexpected end of multipart body");
+        }
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        readLine();
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+
+        current = new PartInputStream();
+        return new Part(headers, current);
+    }
+
+    private String readLine() throws IOException {
+        while (true) {
+            for (int i = pos; i + 1 < limit; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                    String line = new String(buffer, pos, i - pos, StandardCharsets.UTF_8);
+                    pos = i + 2;
+                    return line;
+                }
+            }
+            if (limit - pos >= MAX_HEADER_LINE) {
+                throw new IOException("Multipart header line too long");
+            }
+            if (!fill(limit - pos + 1)) {
+                throw new IOException("Unexpected end of multipart body");
+            }
+        }
+    }
+
+    /**
+     * Makes sure at least the requested number of bytes are buffered
+     *
+     * @return false if the stream ended first
+     */
+    private boolean fill(int wanted) throws IOException {
+        if (limit - pos >= wanted) {
+            return true;
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (!eof && limit < wanted) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+        return limit - pos >= wanted;
+    }
+
+    private int indexOfDelimiter() {
+        byte first = delimiter[0];
+        int last = limit - delimiter.length;
+        for (int i = pos; i <= last; i++) {
+            if (buffer[i] == first && Arrays.equals(buffer, i, i + delimiter.length, delimiter, 0, delimiter.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the body of a part up to the next delimiter
+     */
+    private class PartInputStream extends InputStream {
+
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return read == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done || current != this) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            while (true) {
+                fill(delimiter.length);
+                int index = indexOfDelimiter();
+
+                if (index == pos) {
+                    // Reached the delimiter, consume it and end the part
+                    pos += delimiter.length;
+                    done = true;
+                    return -1;
+                }
+
+                // Everything before the delimiter, or everything that can't be the
+                // start of a delimiter split across reads
+                int available = index >= 0 ? index - pos : limit - pos - (delimiter.length - 1);
+                if (available > 0) {
+                    int n = Math.min(len, available);
+                    System.arraycopy(buffer, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+
+                if (eof) {
+                    throw new IOException("Unexpected end of multipart body");
+                }
+                fill(limit - pos + 1);
+            }
+        }
+    }
+}
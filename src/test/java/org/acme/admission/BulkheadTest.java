@@ -0,0 +1,84 @@
+package org.acme.admission;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkheadTest {
+
+    @Test
+    void admitsUpToTheLimitThenQueuesThenRejects() {
+        Bulkhead bulkhead = new Bulkhead(2, 1);
+
+        assertEquals(Bulkhead.Admission.ADMITTED, bulkhead.acquire(() -> { }));
+        assertEquals(Bulkhead.Admission.ADMITTED, bulkhead.acquire(() -> { }));
+        assertEquals(Bulkhead.Admission.QUEUED, bulkhead.acquire(() -> { }));
+        assertEquals(Bulkhead.Admission.REJECTED, bulkhead.acquire(() -> { }));
+
+        assertEquals(2, bulkhead.active());
+        assertEquals(1, bulkhead.queued());
+    }
+
+    @Test
+    void releaseHandsThePermitToTheOldestWaiter() {
+        Bulkhead bulkhead = new Bulkhead(1, 2);
+        List<String> admitted = new ArrayList<>();
+
+        bulkhead.acquire(() -> { });
+        bulkhead.acquire(() -> admitted.add("first"));
+        bulkhead.acquire(() -> admitted.add("second"));
+
+        bulkhead.release();
+        assertEquals(List.of("first"), admitted);
+        assertEquals(1, bulkhead.active());
+        assertEquals(1, bulkhead.queued());
+
+        bulkhead.release();
+        assertEquals(List.of("first", "second"), admitted);
+
+        bulkhead.release();
+        assertEquals(0, bulkhead.active());
+        assertEquals(Bulkhead.Admission.ADMITTED, bulkhead.acquire(() -> { }));
+    }
+
+    @Test
+    void cancelledWaiterIsNeverAdmitted() {
+        Bulkhead bulkhead = new Bulkhead(1, 1);
+        List<String> admitted = new ArrayList<>();
+        Runnable waiter = () -> admitted.add("waiter");
+
+        bulkhead.acquire(() -> { });
+        bulkhead.acquire(waiter);
+        assertTrue(bulkhead.cancel(waiter));
+
+        bulkhead.release();
+        assertTrue(admitted.isEmpty());
+        assertEquals(0, bulkhead.active());
+    }
+
+    @Test
+    void cancelAfterAdmissionReportsIt() {
+        Bulkhead bulkhead = new Bulkhead(1, 1);
+        Runnable waiter = () -> { };
+
+        bulkhead.acquire(() -> { });
+        bulkhead.acquire(waiter);
+        bulkhead.release();
+
+        assertFalse(bulkhead.cancel(waiter));
+        assertEquals(1, bulkhead.active());
+    }
+
+    @Test
+    void zeroQueueRejectsStraightAway() {
+        Bulkhead bulkhead = new Bulkhead(1, 0);
+
+        bulkhead.acquire(() -> { });
+        assertEquals(Bulkhead.Admission.REJECTED, bulkhead.acquire(() -> { }));
+    }
+}
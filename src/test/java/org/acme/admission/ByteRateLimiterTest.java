@@ -0,0 +1,123 @@
+package org.acme.admission;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.runtime.configuration.MemorySize;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ByteRateLimiterTest {
+
+    private static final long MILLI = 1_000_000;
+
+    @Test
+    void bucketAllowsTheBurstThenChargesTheRate() {
+        ByteRateLimiter.TokenBucket bucket = new ByteRateLimiter.TokenBucket(1000, 500);
+
+        assertEquals(0, bucket.take(500));
+
+        // 500 bytes over at 1000/s is half a second
+        long wait = bucket.take(500);
+        assertTrue(wait > 490 * MILLI && wait <= 500 * MILLI, "waited " + wait);
+    }
+
+    @Test
+    void bucketRefillsUpToItsCapacity() throws InterruptedException {
+        ByteRateLimiter.TokenBucket bucket = new ByteRateLimiter.TokenBucket(10_000, 1000);
+
+        bucket.take(1000);
+        assertFalse(bucket.isFull());
+        Thread.sleep(150);
+        assertTrue(bucket.isFull());
+
+        // Idle time doesn't build up more than the burst
+        assertEquals(0, bucket.take(1000));
+        assertTrue(bucket.take(1000) > 0);
+    }
+
+    @Test
+    void disabledDirectionsAreNotWrapped() {
+        ByteRateLimiter limiter = limiter(0, 0, 1000);
+        InputStream in = new ByteArrayInputStream(new byte[1]);
+        OutputStream out = new ByteArrayOutputStream();
+
+        assertFalse(limiter.isEnabled(ByteRateLimiter.Direction.UPLOAD));
+        assertSame(in, limiter.limit(in, "INC-1"));
+        assertSame(out, limiter.limit(out, "INC-1"));
+        assertEquals(0, limiter.reserve(ByteRateLimiter.Direction.DOWNLOAD, "INC-1", 1_000_000));
+    }
+
+    @Test
+    void ticketsAndDirectionsHaveTheirOwnBuckets() {
+        ByteRateLimiter limiter = limiter(1000, 1000, 1000);
+
+        assertEquals(0, limiter.reserve(ByteRateLimiter.Direction.UPLOAD, "INC-1", 1000));
+        assertTrue(limiter.reserve(ByteRateLimiter.Direction.UPLOAD, "INC-1", 1000) > 0);
+
+        assertEquals(0, limiter.reserve(ByteRateLimiter.Direction.UPLOAD, "INC-2", 1000));
+        assertEquals(0, limiter.reserve(ByteRateLimiter.Direction.DOWNLOAD, "INC-1", 1000));
+
+        // Files without a ticket share one
+        assertEquals(0, limiter.reserve(ByteRateLimiter.Direction.UPLOAD, null, 1000));
+        assertTrue(limiter.reserve(ByteRateLimiter.Direction.UPLOAD, null, 1) > 0);
+    }
+
+    @Test
+    void limitedStreamsPassTheBytesThroughAtTheRate() throws IOException {
+        // 100 bytes/ms with a 1000 byte burst, so 3000 bytes take at least 20ms
+        ByteRateLimiter limiter = limiter(100_000, 100_000, 1000);
+        byte[] data = new byte[3000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        long started = System.nanoTime();
+        byte[] read = limiter.limit(new ByteArrayInputStream(data), "INC-1").readAllBytes();
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        try (OutputStream out = limiter.limit(written, "INC-1")) {
+            out.write(data, 0, 1500);
+            out.write(data[1500]);
+            out.write(data, 1501, 1499);
+        }
+        long elapsed = System.nanoTime() - started;
+
+        assertArrayEquals(data, read);
+        assertArrayEquals(data, written.toByteArray());
+        assertTrue(elapsed >= 2 * 20 * MILLI, "took " + elapsed);
+    }
+
+    @Test
+    void evictionOnlyDropsRefilledBuckets() throws InterruptedException {
+        ByteRateLimiter limiter = limiter(10_000, 0, 1000);
+
+        limiter.reserve(ByteRateLimiter.Direction.UPLOAD, "INC-1", 1000);
+        limiter.evictIdle();
+        // Still in debt, so the next reserve has to wait
+        assertTrue(limiter.reserve(ByteRateLimiter.Direction.UPLOAD, "INC-1", 1000) > 0);
+
+        Thread.sleep(400);
+        limiter.evictIdle();
+        assertEquals(0, limiter.reserve(ByteRateLimiter.Direction.UPLOAD, "INC-1", 1000));
+    }
+
+    private static ByteRateLimiter limiter(long uploadRate, long downloadRate, long burst) {
+        ByteRateLimiter limiter = new ByteRateLimiter();
+        limiter.uploadRate = new MemorySize(BigInteger.valueOf(uploadRate));
+        limiter.downloadRate = new MemorySize(BigInteger.valueOf(downloadRate));
+        limiter.burst = new MemorySize(BigInteger.valueOf(burst));
+        limiter.registry = new SimpleMeterRegistry();
+        limiter.init();
+        return limiter;
+    }
+}
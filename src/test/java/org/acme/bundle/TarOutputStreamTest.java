@@ -0,0 +1,106 @@
+package org.acme.bundle;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TarOutputStreamTest {
+
+    private static final long MOD_TIME = 1700000000000L;
+
+    @Test
+    void writesUstarHeaderAndPaddedData() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarOutputStream tar = new TarOutputStream(out);
+        byte[] data = "hello".getBytes(StandardCharsets.US_ASCII);
+        tar.putNextEntry("hello.txt", data.length, MOD_TIME);
+        tar.write(data);
+        tar.closeEntry();
+        tar.finish();
+
+        byte[] archive = out.toByteArray();
+        // Header, one block of data, two empty blocks
+        assertEquals(512 * 4, archive.length);
+
+        assertEquals("hello.txt", string(archive, 0, 100));
+        assertEquals("0000644", string(archive, 100, 8));
+        assertEquals(5, octal(archive, 124, 12));
+        assertEquals(MOD_TIME / 1000, octal(archive, 136, 12));
+        assertEquals('0', archive[156]);
+        assertEquals("ustar", string(archive, 257, 6));
+        assertEquals("00", new String(archive, 263, 2, StandardCharsets.US_ASCII));
+        assertEquals(checksum(archive, 0), octal(archive, 148, 8));
+
+        assertArrayEquals(data, Arrays.copyOfRange(archive, 512, 517));
+        assertArrayEquals(new byte[512 * 2 + 507], Arrays.copyOfRange(archive, 517, archive.length));
+    }
+
+    @Test
+    void longNamesGoInAPaxHeader() throws IOException {
+        String name = "x".repeat(120) + "-6ad2849c49d20e67adf03c6e.log";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarOutputStream tar = new TarOutputStream(out);
+        tar.putNextEntry(name, 0, MOD_TIME);
+        tar.closeEntry();
+
+        byte[] archive = out.toByteArray();
+        assertEquals('x', archive[156]);
+        assertEquals(checksum(archive, 0), octal(archive, 148, 8));
+
+        int recordLength = (int) octal(archive, 124, 12);
+        String record = new String(archive, 512, recordLength, StandardCharsets.UTF_8);
+        assertEquals(recordLength + " path=" + name + "\n", record);
+
+        // The entry itself keeps the extension within the 100 bytes
+        assertEquals('0', archive[1024 + 156]);
+        String fallback = string(archive, 1024, 100);
+        assertEquals(100, fallback.length());
+        assertEquals(".log", fallback.substring(96));
+    }
+
+    @Test
+    void paxRecordLengthCountsItsOwnDigits() {
+        for (int length = 1; length < 300; length++) {
+            byte[] record = TarOutputStream.paxRecord("path", "a".repeat(length));
+            String text = new String(record, StandardCharsets.UTF_8);
+            assertEquals(record.length, Integer.parseInt(text.substring(0, text.indexOf(' '))), text);
+        }
+    }
+
+    @Test
+    void rejectsEntriesNotMatchingTheirSize() throws IOException {
+        TarOutputStream tar = new TarOutputStream(new ByteArrayOutputStream());
+        tar.putNextEntry("a", 2, MOD_TIME);
+        assertThrows(IOException.class, () -> tar.write(new byte[3]));
+        tar.write(new byte[1]);
+        assertThrows(IOException.class, tar::closeEntry);
+        assertThrows(IOException.class, () -> tar.putNextEntry("b", 0, MOD_TIME));
+    }
+
+    private static String string(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long octal(byte[] header, int offset, int length) {
+        return Long.parseLong(string(header, offset, length).trim(), 8);
+    }
+
+    private static long checksum(byte[] archive, int offset) {
+        long sum = 0;
+        for (int i = offset; i < offset + 512; i++) {
+            sum += i >= offset + 148 && i < offset + 156 ? ' ' : archive[i] & 0xff;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,94 @@
+package org.acme.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TtlCacheTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private String load(String key) {
+        loads.incrementAndGet();
+        return key + "-" + loads.get();
+    }
+
+    @Test
+    void loadsOnceUntilInvalidated() {
+        TtlCache<String, String> cache = new TtlCache<>("test", 10, Duration.ofMinutes(1), registry);
+
+        assertEquals("a-1", cache.get("a", this::load));
+        assertEquals("a-1", cache.get("a", this::load));
+        assertEquals(1, loads.get());
+
+        cache.invalidate("a");
+        assertEquals("a-2", cache.get("a", this::load));
+        assertEquals(1.0, registry.counter("archive.cache.requests", "cache", "test", "result", "hit").count());
+        assertEquals(2.0, registry.counter("archive.cache.requests", "cache", "test", "result", "miss").count());
+    }
+
+    @Test
+    void entriesExpire() throws InterruptedException {
+        TtlCache<String, String> cache = new TtlCache<>("test", 10, Duration.ofMillis(20), registry);
+
+        cache.get("a", this::load);
+        Thread.sleep(40);
+        assertEquals("a-2", cache.get("a", this::load));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsed() {
+        TtlCache<String, String> cache = new TtlCache<>("test", 2, Duration.ofMinutes(1), registry);
+
+        cache.get("a", this::load);
+        cache.get("b", this::load);
+        cache.get("a", this::load);
+        cache.get("c", this::load);
+
+        assertEquals(2, cache.size());
+        assertEquals("a-1", cache.get("a", this::load));
+        assertEquals("b-4", cache.get("b", this::load));
+    }
+
+    @Test
+    void nullsAreNotCached() {
+        TtlCache<String, String> cache = new TtlCache<>("test", 10, Duration.ofMinutes(1), registry);
+
+        assertNull(cache.get("a", key -> null));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void loadRacingAnInvalidationIsNotKept() {
+        TtlCache<String, String> cache = new TtlCache<>("test", 10, Duration.ofMinutes(1), registry);
+
+        // The record changes while the old value is being loaded
+        assertEquals("stale", cache.get("a", key -> {
+            cache.invalidate("a");
+            return "stale";
+        }));
+        assertEquals(0, cache.size());
+        assertEquals("a-1", cache.get("a", this::load));
+    }
+
+    @Test
+    void invalidateIfOnlyDropsMatches() {
+        TtlCache<String, String> cache = new TtlCache<>("test", 10, Duration.ofMinutes(1), registry);
+        cache.get("a", key -> "keep");
+        cache.get("b", key -> "drop");
+
+        cache.invalidateIf((key, value) -> value.equals("drop"));
+
+        assertEquals(1, cache.size());
+        assertEquals("keep", cache.get("a", this::load));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,73 @@
+package org.acme.query;
+
+import com.mongodb.MongoClientSettings;
+import org.acme.exceptions.InvalidRequestException;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeysetCursorTest {
+
+    private final Date uploadDate = new Date(1700000000123L);
+    private final ObjectId id = new ObjectId();
+
+    @Test
+    void roundTrips() {
+        for (boolean ascending : new boolean[]{true, false}) {
+            KeysetCursor cursor = KeysetCursor.decode(new KeysetCursor(uploadDate, id, ascending).encode());
+
+            assertEquals(ascending, cursor.isAscending());
+            assertEquals(filter(new KeysetCursor(uploadDate, id, ascending)), filter(cursor));
+        }
+    }
+
+    @Test
+    void tokenIsUrlSafe() {
+        String token = new KeysetCursor(uploadDate, id, false).encode();
+        assertTrue(token.matches("[A-Za-z0-9_-]+"), token);
+    }
+
+    @Test
+    void afterTakesThePositionOfTheFile() {
+        Document file = new Document("_id", id).append("uploadDate", uploadDate);
+        assertEquals(filter(new KeysetCursor(uploadDate, id, true)), filter(KeysetCursor.after(file, true)));
+    }
+
+    @Test
+    void filterContinuesInTheSortDirection() {
+        String ascending = filter(new KeysetCursor(uploadDate, id, true));
+        String descending = filter(new KeysetCursor(uploadDate, id, false));
+
+        assertTrue(ascending.contains("$gt"));
+        assertFalse(ascending.contains("$lt"));
+        assertTrue(descending.contains("$lt"));
+        assertFalse(descending.contains("$gt"));
+    }
+
+    @Test
+    void rejectsTokensItDidNotMake() {
+        assertThrows(InvalidRequestException.class, () -> KeysetCursor.decode("not a cursor!"));
+        assertThrows(InvalidRequestException.class, () -> KeysetCursor.decode(encode("A:123")));
+        assertThrows(InvalidRequestException.class, () -> KeysetCursor.decode(encode("X:123:" + id.toHexString())));
+        assertThrows(InvalidRequestException.class, () -> KeysetCursor.decode(encode("A:soon:" + id.toHexString())));
+        assertThrows(InvalidRequestException.class, () -> KeysetCursor.decode(encode("A:123:nothex")));
+    }
+
+    private static String encode(String raw) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String filter(KeysetCursor cursor) {
+        return cursor.toFilter().toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson();
+    }
+}
@@ -0,0 +1,329 @@
+package org.acme.storage;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.acme.cache.ExistenceFilter;
+import org.acme.gridfs.GridFSRepository;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.enterprise.event.Event;
+import javax.enterprise.event.NotificationOptions;
+import javax.enterprise.util.TypeLiteral;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reference counting and hand-over of shared chunks, against an in-memory Mongo
+ */
+class ArchiveStoreTest {
+
+    private static final int CHUNK_SIZE = 4;
+
+    private static MongoServer server;
+    private static MongoClient client;
+
+    private GridFSRepository repository;
+    private ArchiveStore store;
+    private final List<ArchiveEvent> events = new ArrayList<>();
+
+    @BeforeAll
+    static void startMongo() {
+        server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+    }
+
+    @AfterAll
+    static void stopMongo() {
+        client.close();
+        server.shutdownNow();
+    }
+
+    @BeforeEach
+    void wire() {
+        repository = new GridFSRepository();
+        inject(repository, "client", client);
+        inject(repository, "databaseName", "test");
+        inject(repository, "bucketName", "fs");
+        inject(repository, "chunkSize", CHUNK_SIZE);
+        repository.database().drop();
+
+        store = new ArchiveStore();
+        store.repository = repository;
+        store.existenceFilter = new ExistenceFilter();
+        store.events = new RecordingEvent();
+    }
+
+    @Test
+    void duplicateContentOnlyKeepsOneCopy() {
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        ObjectId duplicate = storeChunks("b.txt", "hello world");
+
+        assertNotEquals(owner, duplicate);
+        assertEquals(owner, metadata(duplicate).get(GridFSRepository.BLOB_ID));
+        assertEquals(2, refCount(owner));
+        assertEquals(chunkCount(owner), repository.chunks().countDocuments());
+    }
+
+    @Test
+    void deletingAReferenceReleasesItsShare() {
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        ObjectId duplicate = storeChunks("b.txt", "hello world");
+
+        store.delete(duplicate.toHexString());
+
+        assertNull(find(duplicate));
+        assertEquals(1, refCount(owner));
+        assertEquals(chunkCount(owner), repository.chunks().countDocuments());
+
+        store.delete(owner.toHexString());
+
+        assertEquals(0, repository.files().countDocuments());
+        assertEquals(0, repository.chunks().countDocuments());
+    }
+
+    @Test
+    void deletingTheOwnerHandsTheChunksOver() {
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        ObjectId first = storeChunks("b.txt", "hello world");
+        ObjectId second = storeChunks("c.txt", "hello world");
+
+        store.delete(owner.toHexString());
+
+        // The oldest reference takes over the chunks, still stored under the old id
+        assertNull(find(owner));
+        Document promoted = find(first);
+        assertFalse(metadata(first).containsKey(GridFSRepository.BLOB_ID));
+        assertEquals(owner, GridFSRepository.chunksIdOf(promoted));
+        assertEquals(2, refCount(first));
+        assertEquals(first, metadata(second).get(GridFSRepository.BLOB_ID));
+        assertEquals(3, repository.chunks().countDocuments(eq(GridFSRepository.FILES_ID, owner)));
+
+        // And releases them once the last reference goes
+        store.delete(second.toHexString());
+        store.delete(first.toHexString());
+        assertEquals(0, repository.files().countDocuments());
+        assertEquals(0, repository.chunks().countDocuments());
+    }
+
+    @Test
+    void newContentAfterAHandOverIsStillDeduplicated() {
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        ObjectId first = storeChunks("b.txt", "hello world");
+        store.delete(owner.toHexString());
+
+        ObjectId again = storeChunks("c.txt", "hello world");
+
+        assertEquals(first, metadata(again).get(GridFSRepository.BLOB_ID));
+        assertEquals(2, refCount(first));
+        assertEquals(3, repository.chunks().countDocuments());
+    }
+
+    @Test
+    void countedReferenceThatNeverAppearsDoesNotKeepTheChunks() {
+        // A reference counted by an upload that crashed before writing its record
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        repository.files().updateOne(eq("_id", owner), set(GridFSRepository.METADATA_REF_COUNT, 2));
+
+        store.delete(owner.toHexString());
+
+        assertEquals(0, repository.files().countDocuments());
+        assertEquals(0, repository.chunks().countDocuments());
+    }
+
+    @Test
+    void recordsWithoutACountAreASingleReference() {
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        repository.files().updateOne(eq("_id", owner), unset(GridFSRepository.METADATA_REF_COUNT));
+
+        ObjectId duplicate = storeChunks("b.txt", "hello world");
+        assertEquals(2, refCount(owner));
+
+        store.delete(owner.toHexString());
+        assertEquals(1, refCount(duplicate));
+        assertEquals(3, repository.chunks().countDocuments());
+    }
+
+    @Test
+    void claimedOwnerTakesNoNewReferences() {
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        repository.files().updateOne(eq("_id", owner), set(GridFSRepository.METADATA_DELETING, new ObjectId()));
+
+        ObjectId other = storeChunks("b.txt", "hello world");
+
+        assertFalse(metadata(other).containsKey(GridFSRepository.BLOB_ID));
+        assertEquals(1, refCount(owner));
+    }
+
+    @Test
+    void batchDeletesOwnersReferencesAndChunks() {
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        ObjectId duplicate = storeChunks("b.txt", "hello world");
+        ObjectId single = storeChunks("c.txt", "something else");
+        ObjectId kept = storeChunks("d.txt", "kept");
+
+        List<Document> deleted = store.deleteBatch(List.of(find(owner), find(duplicate), find(single)), new ObjectId(), dropping -> { });
+
+        assertEquals(3, deleted.size());
+        assertEquals(3, events.size());
+        assertEquals(List.of(kept), repository.files().find().map(file -> file.get("_id")).into(new ArrayList<>()));
+        assertEquals(chunkCount(kept), repository.chunks().countDocuments());
+    }
+
+    @Test
+    void batchHandsOverOwnersStillReferenced() {
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        ObjectId duplicate = storeChunks("b.txt", "hello world");
+
+        List<Document> deleted = store.deleteBatch(List.of(find(owner)), new ObjectId(), dropping -> { });
+
+        assertEquals(1, deleted.size());
+        assertEquals(1, refCount(duplicate));
+        assertEquals(owner, GridFSRepository.chunksIdOf(find(duplicate)));
+        assertEquals(3, repository.chunks().countDocuments());
+    }
+
+    @Test
+    void batchInterruptedBeforeDroppingIsFinishedUnderTheSameClaim() {
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        List<Document> batch = List.of(find(owner));
+        ObjectId claim = new ObjectId();
+        List<Document> saved = new ArrayList<>();
+
+        assertThrows(IllegalStateException.class, () -> store.deleteBatch(batch, claim, dropping -> {
+            saved.addAll(dropping);
+            throw new IllegalStateException("crash");
+        }));
+        assertEquals(claim, metadata(owner).get(GridFSRepository.DELETING));
+
+        // Nothing was deleted, so there is nothing to clean up yet
+        store.dropBytesOf(saved);
+        assertEquals(3, repository.chunks().countDocuments());
+
+        assertEquals(1, store.deleteBatch(batch, claim, dropping -> { }).size());
+        assertEquals(0, repository.files().countDocuments());
+        assertEquals(0, repository.chunks().countDocuments());
+    }
+
+    @Test
+    void batchOfAnotherClaimLeavesClaimedRecordsAlone() {
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        repository.files().updateOne(eq("_id", owner), set(GridFSRepository.METADATA_DELETING, new ObjectId()));
+
+        assertTrue(store.deleteBatch(List.of(find(owner)), new ObjectId(), dropping -> { }).isEmpty());
+        assertEquals(1, repository.files().countDocuments());
+    }
+
+    @Test
+    void droppedOwnersLeaveNoChunksBehind() {
+        // Crashed after the record was deleted but before its chunks were
+        ObjectId owner = storeChunks("a.txt", "hello world");
+        Document record = find(owner);
+        repository.files().deleteOne(eq("_id", owner));
+
+        store.dropBytesOf(List.of(record));
+
+        assertEquals(0, repository.chunks().countDocuments());
+    }
+
+    /**
+     * Writes the chunks the way a parted upload does and stores the record for them
+     */
+    private ObjectId storeChunks(String filename, String content) {
+        byte[] bytes = content.getBytes();
+        ObjectId id = new ObjectId();
+        for (int n = 0; n * CHUNK_SIZE < bytes.length; n++) {
+            int from = n * CHUNK_SIZE;
+            byte[] chunk = Arrays.copyOfRange(bytes, from, Math.min(bytes.length, from + CHUNK_SIZE));
+            repository.chunks().insertOne(new Document(GridFSRepository.FILES_ID, id)
+                    .append(GridFSRepository.CHUNK_NUMBER, n)
+                    .append(GridFSRepository.CHUNK_DATA, new Binary(chunk)));
+        }
+        return store.storeChunks(id, filename, Map.of(), bytes.length, CHUNK_SIZE, "hash-" + content);
+    }
+
+    private Document find(ObjectId id) {
+        return repository.files().find(eq("_id", id)).first();
+    }
+
+    private Document metadata(ObjectId id) {
+        return GridFSRepository.metadataOf(find(id));
+    }
+
+    private int refCount(ObjectId id) {
+        return ((Number) metadata(id).get(GridFSRepository.REF_COUNT)).intValue();
+    }
+
+    private long chunkCount(ObjectId id) {
+        return repository.chunks().countDocuments(eq(GridFSRepository.FILES_ID, GridFSRepository.chunksIdOf(find(id))));
+    }
+
+    private static void inject(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private class RecordingEvent implements Event<ArchiveEvent> {
+
+        @Override
+        public void fire(ArchiveEvent event) {
+            if (event.getType() == ArchiveEvent.Type.DELETED) {
+                events.add(event);
+            }
+        }
+
+        @Override
+        public <U extends ArchiveEvent> CompletionStage<U> fireAsync(U event) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <U extends ArchiveEvent> CompletionStage<U> fireAsync(U event, NotificationOptions options) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Event<ArchiveEvent> select(Annotation... qualifiers) {
+            return this;
+        }
+
+        @Override
+        public <U extends ArchiveEvent> Event<U> select(Class<U> subtype, Annotation... qualifiers) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <U extends ArchiveEvent> Event<U> select(TypeLiteral<U> subtype, Annotation... qualifiers) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.acme.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ByteRangeTest {
+
+    @Test
+    void parsesTheFormsOfARange() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-9, -5, 95-200, 30-", 100);
+
+        assertEquals(4, ranges.size());
+        assertRange(0, 9, ranges.get(0));
+        assertRange(95, 99, ranges.get(1));
+        assertRange(95, 99, ranges.get(2));
+        assertRange(30, 99, ranges.get(3));
+    }
+
+    @Test
+    void suffixLongerThanTheFileIsTheWholeFile() {
+        assertRange(0, 99, ByteRange.parse("bytes=-500", 100).get(0));
+    }
+
+    @Test
+    void unitIsCaseInsensitiveAndWhitespaceIgnored() {
+        assertRange(10, 20, ByteRange.parse("  Bytes= 10 - 20 ", 100).get(0));
+    }
+
+    @Test
+    void unsatisfiableRangesAreDropped() {
+        assertTrue(ByteRange.parse("bytes=100-200", 100).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", 100).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-5", 0).isEmpty());
+        assertEquals(1, ByteRange.parse("bytes=100-200, 0-0", 100).size());
+    }
+
+    @Test
+    void malformedHeadersAreIgnored() {
+        assertNull(ByteRange.parse(null, 100));
+        assertNull(ByteRange.parse("items=0-9", 100));
+        assertNull(ByteRange.parse("bytes=9-0", 100));
+        assertNull(ByteRange.parse("bytes=5", 100));
+        assertNull(ByteRange.parse("bytes=-", 100));
+        assertNull(ByteRange.parse("bytes=a-b", 100));
+    }
+
+    @Test
+    void tooManyRangesAreIgnored() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+            header.append(",").append(i).append("-").append(i);
+        }
+        assertNull(ByteRange.parse(header.toString(), 100));
+    }
+
+    @Test
+    void contentRange() {
+        ByteRange range = new ByteRange(10, 19);
+        assertEquals(10, range.getLength());
+        assertEquals("bytes 10-19/100", range.toContentRange(100));
+    }
+
+    private static void assertRange(long start, long end, ByteRange range) {
+        assertEquals(start, range.getStart());
+        assertEquals(end, range.getEnd());
+    }
+}
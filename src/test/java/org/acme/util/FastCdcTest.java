@@ -0,0 +1,142 @@
+package org.acme.util;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FastCdcTest {
+
+    private static final int MIN = 2048;
+    private static final int AVG = 8192;
+    private static final int MAX = 32768;
+
+    // Cut points of random(4, 100_000), fixed once chunks have been stored
+    private static final int[] EXPECTED_LENGTHS = {
+            9138, 8452, 3053, 6630, 4296, 10278, 9530, 8626, 3573, 12464, 8662, 10911, 4387};
+
+    private final FastCdc chunker = new FastCdc(MIN, AVG, MAX);
+
+    @Test
+    void chunksJoinBackToTheInputWithinTheSizeLimits() throws IOException {
+        byte[] data = random(1, 1 << 20);
+        List<byte[]> chunks = split(data);
+
+        int offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            assertTrue(chunk.length <= MAX);
+            if (i < chunks.size() - 1) {
+                assertTrue(chunk.length >= MIN);
+            }
+            assertArrayEquals(Arrays.copyOfRange(data, offset, offset + chunk.length), chunk);
+            offset += chunk.length;
+        }
+        assertEquals(data.length, offset);
+
+        int average = data.length / chunks.size();
+        assertTrue(average > AVG / 2 && average < AVG * 2, "average " + average);
+    }
+
+    @Test
+    void cutPointsDependOnContentNotReads() throws IOException {
+        byte[] data = random(2, 300_000);
+        List<byte[]> whole = split(data);
+
+        // The same bytes handed over a few at a time
+        InputStream trickle = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 777));
+            }
+        };
+        List<byte[]> trickled = new ArrayList<>();
+        FastCdc.Splitter splitter = chunker.split(trickle);
+        byte[] chunk;
+        while ((chunk = splitter.next()) != null) {
+            trickled.add(chunk);
+        }
+
+        assertEquals(whole.size(), trickled.size());
+        for (int i = 0; i < whole.size(); i++) {
+            assertArrayEquals(whole.get(i), trickled.get(i));
+        }
+    }
+
+    @Test
+    void anInsertOnlyChangesTheChunksAroundIt() throws IOException {
+        byte[] base = random(3, 4 << 20);
+        byte[] edited = new byte[base.length + 10];
+        int at = 2 << 20;
+        System.arraycopy(base, 0, edited, 0, at);
+        System.arraycopy(base, at, edited, at + 10, base.length - at);
+
+        Set<String> before = keys(split(base));
+        List<byte[]> after = split(edited);
+        long shared = after.stream().map(DigestUtils::sha256Hex).filter(before::contains).count();
+
+        assertTrue(after.size() - shared <= 3, (after.size() - shared) + " of " + after.size() + " chunks changed");
+    }
+
+    @Test
+    void cutPointsNeverChange() throws IOException {
+        // Stored chunks only match new uploads while the GEAR table and masks stay the same
+        List<byte[]> chunks = split(random(4, 100_000));
+        int[] lengths = chunks.stream().mapToInt(chunk -> chunk.length).toArray();
+        assertArrayEquals(EXPECTED_LENGTHS, lengths);
+    }
+
+    @Test
+    void smallAndEmptyInputs() throws IOException {
+        assertNull(chunker.split(InputStream.nullInputStream()).next());
+
+        List<byte[]> chunks = split(new byte[MIN]);
+        assertEquals(1, chunks.size());
+        assertEquals(MIN, chunks.get(0).length);
+    }
+
+    @Test
+    void rejectsSizesOutOfOrder() {
+        assertThrows(IllegalArgumentException.class, () -> new FastCdc(32, 64, 128));
+        assertThrows(IllegalArgumentException.class, () -> new FastCdc(4096, 2048, 8192));
+        assertThrows(IllegalArgumentException.class, () -> new FastCdc(2048, 8192, 4096));
+    }
+
+    private List<byte[]> split(byte[] data) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        FastCdc.Splitter splitter = chunker.split(new ByteArrayInputStream(data));
+        byte[] chunk;
+        while ((chunk = splitter.next()) != null) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static Set<String> keys(List<byte[]> chunks) {
+        Set<String> keys = new HashSet<>();
+        for (byte[] chunk : chunks) {
+            keys.add(DigestUtils.sha256Hex(chunk));
+        }
+        return keys;
+    }
+
+    private static byte[] random(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,59 @@
+package org.acme.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpValidatorsTest {
+
+    // HTTP_DATE plus some milliseconds
+    private static final Date MODIFIED = new Date(1700000000456L);
+    private static final String HTTP_DATE = "Tue, 14 Nov 2023 22:13:20 GMT";
+
+    private final HttpValidators validators = new HttpValidators(HttpValidators.strong("abc"), MODIFIED);
+
+    @Test
+    void formatsTagsAndDates() {
+        assertEquals("\"abc\"", validators.getETag());
+        assertEquals("W/\"abc\"", HttpValidators.weak("abc"));
+        assertNull(HttpValidators.strong(null));
+        assertEquals(HTTP_DATE, validators.getLastModified());
+        assertNull(new HttpValidators(null, null).getLastModified());
+    }
+
+    @Test
+    void ifNoneMatchUsesWeakComparison() {
+        assertTrue(validators.notModified("\"abc\"", null));
+        assertTrue(validators.notModified("W/\"abc\"", null));
+        assertTrue(validators.notModified("\"x\", \"abc\"", null));
+        assertTrue(validators.notModified("*", null));
+        assertFalse(validators.notModified("\"abcd\"", null));
+        assertFalse(new HttpValidators(null, MODIFIED).notModified("\"abc\"", null));
+    }
+
+    @Test
+    void ifModifiedSinceOnlyWithoutIfNoneMatch() {
+        assertTrue(validators.notModified(null, HTTP_DATE));
+        assertTrue(validators.notModified(null, "Wed, 15 Nov 2023 00:00:00 GMT"));
+        assertFalse(validators.notModified(null, "Tue, 14 Nov 2023 22:13:19 GMT"));
+        assertFalse(validators.notModified("\"other\"", HTTP_DATE));
+        assertFalse(validators.notModified(null, "yesterday"));
+        assertFalse(validators.notModified(null, null));
+    }
+
+    @Test
+    void ifRangeUsesStrongComparison() {
+        assertTrue(validators.rangeApplies(null));
+        assertTrue(validators.rangeApplies("\"abc\""));
+        assertFalse(validators.rangeApplies("W/\"abc\""));
+        assertFalse(validators.rangeApplies("\"other\""));
+        assertTrue(validators.rangeApplies(HTTP_DATE));
+        assertFalse(validators.rangeApplies("Wed, 15 Nov 2023 00:00:00 GMT"));
+        assertFalse(validators.rangeApplies("soon"));
+    }
+}
@@ -0,0 +1,235 @@
+package org.acme.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MultipartStreamReaderTest {
+
+    private static final String BOUNDARY = "XyZ123";
+
+    @Test
+    void readsEveryPartWithItsHeaders() throws IOException {
+        MultipartStreamReader reader = reader(body(
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"ticketNumber\"\r\n",
+                "\r\n",
+                "INC-42\r\n",
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"file\"; filename=\"a b.txt\"\r\n",
+                "Content-Type: text/plain\r\n",
+                "\r\n",
+                "hello\r\nworld\r\n",
+                "--XyZ123--\r\n"), Integer.MAX_VALUE);
+
+        MultipartStreamReader.Part first = reader.nextPart();
+        assertEquals("ticketNumber", first.getName());
+        assertNull(first.getFileName());
+        assertEquals("INC-42", read(first.getBody()));
+
+        MultipartStreamReader.Part second = reader.nextPart();
+        assertEquals("file", second.getName());
+        assertEquals("a b.txt", second.getFileName());
+        assertEquals("text/plain", second.getHeader("Content-Type"));
+        assertEquals("hello\r\nworld", read(second.getBody()));
+
+        assertNull(reader.nextPart());
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void boundarySplitAcrossReadsIsFound() throws IOException {
+        byte[] content = new byte[50_000];
+        new Random(7).nextBytes(content);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes(ascii("--XyZ123\r\nContent-Disposition: form-data; name=\"file\"\r\n\r\n"));
+        body.writeBytes(content);
+        body.writeBytes(ascii("\r\n--XyZ123--\r\n"));
+
+        // Every read size splits the delimiter at a different point somewhere
+        for (int chunk = 1; chunk <= 13; chunk++) {
+            MultipartStreamReader reader = reader(body.toByteArray(), chunk);
+            MultipartStreamReader.Part part = reader.nextPart();
+            assertArrayEquals(content, part.getBody().readAllBytes(), "reads of " + chunk);
+            assertNull(reader.nextPart());
+        }
+    }
+
+    @Test
+    void skipsUnreadPartsAcrossReads() throws IOException {
+        MultipartStreamReader reader = reader(body(
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"skipped\"\r\n",
+                "\r\n",
+                "x".repeat(20_000) + "\r\n",
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"kept\"\r\n",
+                "\r\n",
+                "value\r\n",
+                "--XyZ123--"), 5);
+
+        assertEquals("skipped", reader.nextPart().getName());
+        MultipartStreamReader.Part kept = reader.nextPart();
+        assertEquals("kept", kept.getName());
+        assertEquals("value", read(kept.getBody()));
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void preambleAndEpilogueAreIgnored() throws IOException {
+        MultipartStreamReader reader = reader(body(
+                "This is the preamble.\r\nIt mentions --XyZ but not the boundary line\r\n",
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"a\"\r\n",
+                "\r\n",
+                "1\r\n",
+                "--XyZ123--\r\n",
+                "This is the epilogue\r\n--XyZ123\r\nnot a part\r\n"), Integer.MAX_VALUE);
+
+        MultipartStreamReader.Part part = reader.nextPart();
+        assertEquals("a", part.getName());
+        assertEquals("1", read(part.getBody()));
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void emptyPartBody() throws IOException {
+        MultipartStreamReader reader = reader(body(
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"empty\"\r\n",
+                "\r\n",
+                "\r\n",
+                "--XyZ123--\r\n"), Integer.MAX_VALUE);
+
+        assertEquals("", read(reader.nextPart().getBody()));
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void boundaryLikeBytesInsideAPartAreContent() throws IOException {
+        // Only CRLF followed by the whole delimiter ends a part
+        String content = "--XyZ123 at the start\r\n--XyZ12\r\n-XyZ123\r\n\n--XyZ123\r\r--XyZ123\r\n--XyZ12";
+        MultipartStreamReader reader = reader(body(
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"file\"\r\n",
+                "\r\n",
+                content,
+                "\r\n--XyZ123--\r\n"), 3);
+
+        assertEquals(content, read(reader.nextPart().getBody()));
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void bareLineFeedsAreNotDelimiters() {
+        // RFC 2046 delimiters are CRLF, so a body using bare LF never finds its first part
+        MultipartStreamReader reader = reader(body(
+                "--XyZ123\n",
+                "Content-Disposition: form-data; name=\"a\"\n",
+                "\n",
+                "1\n",
+                "--XyZ123--\n"), Integer.MAX_VALUE);
+
+        assertThrows(IOException.class, reader::nextPart);
+    }
+
+    @Test
+    void bareLineFeedsInsideAPartAreContent() throws IOException {
+        MultipartStreamReader reader = reader(body(
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"a\"\r\n",
+                "\r\n",
+                "line one\nline two\n--XyZ123\nline three\r\n",
+                "--XyZ123--\r\n"), Integer.MAX_VALUE);
+
+        assertEquals("line one\nline two\n--XyZ123\nline three", read(reader.nextPart().getBody()));
+    }
+
+    @Test
+    void missingClosingBoundaryFailsTheBody() throws IOException {
+        MultipartStreamReader reader = reader(body(
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"a\"\r\n",
+                "\r\n",
+                "cut off in the middle"), 4);
+
+        InputStream part = reader.nextPart().getBody();
+        assertThrows(IOException.class, part::readAllBytes);
+    }
+
+    @Test
+    void missingEndOfClosingBoundaryFailsTheNextPart() throws IOException {
+        MultipartStreamReader reader = reader(body(
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"a\"\r\n",
+                "\r\n",
+                "1\r\n",
+                "--XyZ123"), Integer.MAX_VALUE);
+
+        assertEquals("1", read(reader.nextPart().getBody()));
+        assertThrows(IOException.class, reader::nextPart);
+    }
+
+    @Test
+    void truncatedHeadersFail() {
+        MultipartStreamReader reader = reader(body(
+                "--XyZ123\r\n",
+                "Content-Disposition: form-data; name=\"a\"\r\n"), Integer.MAX_VALUE);
+
+        assertThrows(IOException.class, reader::nextPart);
+    }
+
+    @Test
+    void boundaryFromContentType() {
+        assertEquals("abc", MultipartStreamReader.boundaryOf("multipart/form-data; boundary=abc"));
+        assertEquals("a b;c", MultipartStreamReader.boundaryOf("multipart/form-data; Boundary=\"a b;c\"; charset=utf-8"));
+        assertEquals("abc", MultipartStreamReader.boundaryOf("multipart/form-data;boundary=abc;charset=utf-8"));
+        assertNull(MultipartStreamReader.boundaryOf("multipart/form-data"));
+        assertNull(MultipartStreamReader.boundaryOf(null));
+    }
+
+    private static MultipartStreamReader reader(byte[] body, int readSize) {
+        return new MultipartStreamReader(new ShortReads(new ByteArrayInputStream(body), readSize), BOUNDARY, 0);
+    }
+
+    private static byte[] body(String... lines) {
+        return ascii(String.join("", lines));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns at most readSize bytes per read, like a body arriving in small packets
+     */
+    private static class ShortReads extends FilterInputStream {
+        private final int readSize;
+
+        ShortReads(InputStream in, int readSize) {
+            super(in);
+            this.readSize = readSize;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, readSize));
+        }
+    }
+}